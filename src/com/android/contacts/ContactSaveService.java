@@ -35,7 +35,6 @@ import android.os.Handler;
 import android.os.Looper;
 import android.os.Parcelable;
 import android.os.RemoteException;
-import android.os.ServiceManager;
 import android.provider.ContactsContract;
 import android.provider.ContactsContract.AggregationExceptions;
 import android.provider.ContactsContract.CommonDataKinds.GroupMembership;
@@ -48,8 +47,6 @@ import android.provider.ContactsContract.RawContacts;
 import android.provider.ContactsContract.RawContactsEntity;
 import android.text.TextUtils;
 import android.telephony.PhoneNumberUtils;
-import android.telephony.TelephonyManager;
-import android.telephony.SubscriptionManager;
 import android.util.Log;
 import android.widget.Toast;
 
@@ -63,9 +60,9 @@ import com.android.contacts.common.SimContactsConstants;
 import com.android.contacts.common.SimContactsOperation;
 import com.android.contacts.common.MoreContactUtils;
 import com.android.contacts.util.ContactPhotoUtils;
-import com.android.internal.telephony.uicc.AdnRecord;
-import com.android.internal.telephony.uicc.IccConstants;
-import com.android.internal.telephony.IIccPhoneBook;
+import com.android.contacts.util.LongHashSet;
+import com.android.contacts.util.PhotoConstraints;
+import com.android.contacts.util.SimCapacityCache;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 
@@ -155,8 +152,12 @@ public class ContactSaveService extends IntentService {
     );
 
     private static final int PERSIST_TRIES = 3;
-    private static int count = TelephonyManager.getDefault().getPhoneCount();
-    private static int[] mSimMaxCount = new int[count];
+
+    /**
+     * Number of group memberships inserted per batch or deleted per statement. Stays below
+     * the number of operations the provider accepts between two yield points.
+     */
+    private static final int MEMBERSHIP_BATCH_SIZE = 400;
 
     public static final int RESULT_UNCHANGED = 0;
     public static final int RESULT_SUCCESS = 1;
@@ -220,40 +221,6 @@ public class ContactSaveService extends IntentService {
         return getApplicationContext().getSystemService(name);
     }
 
-    /**
-     * when isMultiSimEnabled is true,get the maximum how many contacts can save to sim card
-     */
-    private int getMSimCardMaxCount(int subscription) {
-        if (0 != mSimMaxCount[subscription]) {
-            return mSimMaxCount[subscription];
-        }
-        int[] subId = SubscriptionManager.getSubId(subscription);
-        try {
-            IIccPhoneBook iccIpb = IIccPhoneBook.Stub.asInterface(
-                ServiceManager.getService("simphonebook"));
-
-            if (iccIpb != null) {
-                if (subId != null 
-                        && TelephonyManager.getDefault().isMultiSimEnabled()) {
-                    List<AdnRecord> list = iccIpb.getAdnRecordsInEfForSubscriber(
-                            subId[0], IccConstants.EF_ADN);
-                    if (null != list) {
-                        mSimMaxCount[subscription] = list.size();
-                    }
-                } else {
-                    List<AdnRecord> list = iccIpb
-                            .getAdnRecordsInEf(IccConstants.EF_ADN);
-                    if (null != list) {
-                        mSimMaxCount[subscription] = list.size();
-                    }
-                }
-            }
-        } catch (RemoteException ex) {
-            Log.e(TAG, "Failed to IIccPhoneBookMSim", ex);
-        }
-        return mSimMaxCount[subscription];
-    }
-
     @Override
     protected void onHandleIntent(Intent intent) {
         // Call an appropriate method. If we're sure it affects how incoming phone calls are
@@ -606,7 +573,10 @@ public class ContactSaveService extends IntentService {
                 ContentUris.withAppendedId(RawContacts.CONTENT_URI, rawContactId),
                 RawContacts.DisplayPhoto.CONTENT_DIRECTORY);
 
-        return ContactPhotoUtils.savePhotoFromUriToUri(this, photoUri, outputUri, true);
+        // The provider scales display photos down to this size anyway. Doing it before writing
+        // avoids streaming and decoding camera-sized photos in the provider.
+        return ContactPhotoUtils.saveScaledPhotoFromUriToUri(this, photoUri, outputUri,
+                PhotoConstraints.getInstance(this).loadDisplayPhotoMaxDim(), true);
     }
 
     private Integer doSaveToSimCard(RawContactDelta entity, ContentResolver resolver,
@@ -686,37 +656,21 @@ public class ContactSaveService extends IntentService {
             }
         }
 
-        if (entity.isContactInsert()) {
-            int count = 0;
-            Cursor c = null;
-            Uri iccUri;
-            int[] subId = SubscriptionManager.getSubId(subscription);
-            if (!TelephonyManager.getDefault().isMultiSimEnabled()) {
-                iccUri = Uri.parse(SimContactsConstants.SIM_URI);
-            } else {
-                iccUri = Uri.parse(SimContactsConstants.SIM_SUB_URI + subId[0]);
-            }
-            try {
-                c = resolver.query(iccUri, null, null, null, null);
-                if (c != null) {
-                    count = c.getCount();
-                }
-            } finally {
-                if (c != null) {
-                    c.close();
-                }
-            }
-
-            if (count == getMSimCardMaxCount(subscription)) {
-                return RESULT_SIM_FULL_FAILURE;
-            }
+        final SimCapacityCache simCapacityCache = SimCapacityCache.getInstance(this);
+        if (entity.isContactInsert() && simCapacityCache.isFull(subscription)) {
+            return RESULT_SIM_FULL_FAILURE;
         }
 
         if (isInsert) {
             Uri resultUri = mSimContactsOperation.insert(values,
                     subscription);
-            if (resultUri != null)
+            if (resultUri != null) {
                 result = RESULT_SUCCESS;
+                simCapacityCache.onContactInserted(subscription);
+            } else {
+                // Our idea of the card's occupancy may be off, recount on next insert.
+                simCapacityCache.invalidate(subscription);
+            }
         } else {
             int resultInt = mSimContactsOperation.update(values,
                     subscription);
@@ -953,71 +907,108 @@ public class ContactSaveService extends IntentService {
         deliverCallback(callbackIntent);
     }
 
+    /**
+     * Adds the given raw contacts to a group. Existing memberships are read once up front, so
+     * only missing rows are inserted, in batches of {@link #MEMBERSHIP_BATCH_SIZE}.
+     */
     private static void addMembersToGroup(ContentResolver resolver, long[] rawContactsToAdd,
             long groupId) {
-        if (rawContactsToAdd == null) {
+        if (rawContactsToAdd == null || rawContactsToAdd.length == 0) {
             return;
         }
+
+        final LongHashSet existingMembers = queryGroupMembers(resolver, groupId);
+        final ArrayList<ContentProviderOperation> operations =
+                new ArrayList<ContentProviderOperation>();
         for (long rawContactId : rawContactsToAdd) {
-            try {
-                final ArrayList<ContentProviderOperation> rawContactOperations =
-                        new ArrayList<ContentProviderOperation>();
-
-                // Build an assert operation to ensure the contact is not already in the group
-                final ContentProviderOperation.Builder assertBuilder = ContentProviderOperation
-                        .newAssertQuery(Data.CONTENT_URI);
-                assertBuilder.withSelection(Data.RAW_CONTACT_ID + "=? AND " +
-                        Data.MIMETYPE + "=? AND " + GroupMembership.GROUP_ROW_ID + "=?",
-                        new String[] { String.valueOf(rawContactId),
-                        GroupMembership.CONTENT_ITEM_TYPE, String.valueOf(groupId)});
-                assertBuilder.withExpectedCount(0);
-                rawContactOperations.add(assertBuilder.build());
-
-                // Build an insert operation to add the contact to the group
-                final ContentProviderOperation.Builder insertBuilder = ContentProviderOperation
-                        .newInsert(Data.CONTENT_URI);
-                insertBuilder.withValue(Data.RAW_CONTACT_ID, rawContactId);
-                insertBuilder.withValue(Data.MIMETYPE, GroupMembership.CONTENT_ITEM_TYPE);
-                insertBuilder.withValue(GroupMembership.GROUP_ROW_ID, groupId);
-                rawContactOperations.add(insertBuilder.build());
+            // Also filters out duplicates within rawContactsToAdd.
+            if (!existingMembers.add(rawContactId)) {
+                continue;
+            }
+            final ContentProviderOperation.Builder insertBuilder = ContentProviderOperation
+                    .newInsert(Data.CONTENT_URI);
+            insertBuilder.withValue(Data.RAW_CONTACT_ID, rawContactId);
+            insertBuilder.withValue(Data.MIMETYPE, GroupMembership.CONTENT_ITEM_TYPE);
+            insertBuilder.withValue(GroupMembership.GROUP_ROW_ID, groupId);
+            operations.add(insertBuilder.build());
+
+            if (operations.size() == MEMBERSHIP_BATCH_SIZE) {
+                applyMembershipBatch(resolver, operations, groupId);
+            }
+        }
+        applyMembershipBatch(resolver, operations, groupId);
+    }
 
-                if (DEBUG) {
-                    for (ContentProviderOperation operation : rawContactOperations) {
-                        Log.v(TAG, operation.toString());
-                    }
-                }
+    private static LongHashSet queryGroupMembers(ContentResolver resolver, long groupId) {
+        final Cursor cursor = resolver.query(Data.CONTENT_URI,
+                new String[] { Data.RAW_CONTACT_ID },
+                Data.MIMETYPE + "=? AND " + GroupMembership.GROUP_ROW_ID + "=?",
+                new String[] { GroupMembership.CONTENT_ITEM_TYPE, String.valueOf(groupId) },
+                null);
+        if (cursor == null) {
+            return new LongHashSet();
+        }
+        try {
+            final LongHashSet members = new LongHashSet(cursor.getCount());
+            while (cursor.moveToNext()) {
+                members.add(cursor.getLong(0));
+            }
+            return members;
+        } finally {
+            cursor.close();
+        }
+    }
 
-                // Apply batch
-                if (!rawContactOperations.isEmpty()) {
-                    resolver.applyBatch(ContactsContract.AUTHORITY, rawContactOperations);
-                }
-            } catch (RemoteException e) {
-                // Something went wrong, bail without success
-                Log.e(TAG, "Problem persisting user edits for raw contact ID " +
-                        String.valueOf(rawContactId), e);
-            } catch (OperationApplicationException e) {
-                // The assert could have failed because the contact is already in the group,
-                // just continue to the next contact
-                Log.w(TAG, "Assert failed in adding raw contact ID " +
-                        String.valueOf(rawContactId) + ". Already exists in group " +
-                        String.valueOf(groupId), e);
+    private static void applyMembershipBatch(ContentResolver resolver,
+            ArrayList<ContentProviderOperation> operations, long groupId) {
+        if (operations.isEmpty()) {
+            return;
+        }
+        if (DEBUG) {
+            for (ContentProviderOperation operation : operations) {
+                Log.v(TAG, operation.toString());
             }
         }
+        try {
+            resolver.applyBatch(ContactsContract.AUTHORITY, operations);
+        } catch (RemoteException e) {
+            // Something went wrong, bail without success
+            Log.e(TAG, "Problem adding " + operations.size() + " members to group "
+                    + groupId, e);
+        } catch (OperationApplicationException e) {
+            Log.e(TAG, "Problem adding " + operations.size() + " members to group "
+                    + groupId, e);
+        }
+        operations.clear();
     }
 
+    /**
+     * Removes the given raw contacts from a group with one delete per
+     * {@link #MEMBERSHIP_BATCH_SIZE} raw contacts. Raw contacts which are not members of the
+     * group are ignored.
+     */
     private static void removeMembersFromGroup(ContentResolver resolver, long[] rawContactsToRemove,
             long groupId) {
         if (rawContactsToRemove == null) {
             return;
         }
-        for (long rawContactId : rawContactsToRemove) {
-            // Apply the delete operation on the data row for the given raw contact's
-            // membership in the given group. If no contact matches the provided selection, then
-            // nothing will be done. Just continue to the next contact.
-            resolver.delete(Data.CONTENT_URI, Data.RAW_CONTACT_ID + "=? AND " +
-                    Data.MIMETYPE + "=? AND " + GroupMembership.GROUP_ROW_ID + "=?",
-                    new String[] { String.valueOf(rawContactId),
-                    GroupMembership.CONTENT_ITEM_TYPE, String.valueOf(groupId)});
+        final String[] selectionArgs = new String[] {
+                GroupMembership.CONTENT_ITEM_TYPE, String.valueOf(groupId) };
+        final StringBuilder selection = new StringBuilder();
+        for (int start = 0; start < rawContactsToRemove.length;
+                start += MEMBERSHIP_BATCH_SIZE) {
+            final int end = Math.min(rawContactsToRemove.length, start + MEMBERSHIP_BATCH_SIZE);
+            selection.setLength(0);
+            selection.append(Data.MIMETYPE + "=? AND " + GroupMembership.GROUP_ROW_ID + "=? AND "
+                    + Data.RAW_CONTACT_ID + " IN (");
+            for (int i = start; i < end; i++) {
+                if (i > start) {
+                    selection.append(',');
+                }
+                selection.append(rawContactsToRemove[i]);
+            }
+            selection.append(')');
+            resolver.delete(Data.CONTENT_URI, selection.toString(), selectionArgs);
         }
     }
 
@@ -1189,6 +1180,7 @@ public class ContactSaveService extends IntentService {
                     mSimContactsOperation.getSimAccountValues(uriContactId);
             int result = mSimContactsOperation.delete(values, subscription);
             if (result == RESULT_SUCCESS) {
+                SimCapacityCache.getInstance(this).onContactDeleted(subscription);
                 getContentResolver().delete(contactUri, null, null);
             }
         } else {
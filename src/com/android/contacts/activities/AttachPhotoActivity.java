@@ -22,14 +22,12 @@ import android.content.Intent;
 import android.content.Loader;
 import android.content.Loader.OnLoadCompleteListener;
 import android.content.pm.PackageManager;
-import android.database.Cursor;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.net.Uri;
 import android.os.Bundle;
 import android.provider.ContactsContract.CommonDataKinds.Photo;
 import android.provider.ContactsContract.Contacts;
-import android.provider.ContactsContract.DisplayPhoto;
 import android.util.Log;
 import android.widget.Toast;
 
@@ -45,6 +43,7 @@ import com.android.contacts.common.ContactsUtils;
 import com.android.contacts.common.model.account.AccountType;
 import com.android.contacts.common.model.ValuesDelta;
 import com.android.contacts.util.ContactPhotoUtils;
+import com.android.contacts.util.PhotoConstraints;
 
 import java.io.File;
 import java.io.FileNotFoundException;
@@ -70,11 +69,6 @@ public class AttachPhotoActivity extends ContactsActivity {
 
     private ContentResolver mContentResolver;
 
-    // Height and width (in pixels) to request for the photo - queried from the provider.
-    private static int mPhotoDim;
-    // Default photo dimension to use if unable to query the provider.
-    private static final int mDefaultPhotoDim = 720;
-
     private Uri mContactUri;
 
     @Override
@@ -96,22 +90,9 @@ public class AttachPhotoActivity extends ContactsActivity {
 
         mContentResolver = getContentResolver();
 
-        // Load the photo dimension to request. mPhotoDim is a static class
-        // member varible so only need to load this if this is the first time
-        // through.
-        if (mPhotoDim == 0) {
-            Cursor c = mContentResolver.query(DisplayPhoto.CONTENT_MAX_DIMENSIONS_URI,
-                    new String[]{DisplayPhoto.DISPLAY_MAX_DIM}, null, null, null);
-            if (c != null) {
-                try {
-                    if (c.moveToFirst()) {
-                        mPhotoDim = c.getInt(0);
-                    }
-                } finally {
-                    c.close();
-                }
-            }
-        }
+        // Start loading the photo dimension to request, so that it is known by the time the
+        // photo is cropped.
+        PhotoConstraints.getInstance(this);
     }
 
     @Override
@@ -153,7 +134,8 @@ public class AttachPhotoActivity extends ContactsActivity {
                 intent.setDataAndType(toCrop, myIntent.getStringExtra("mimeType"));
             }
             ContactPhotoUtils.addPhotoPickerExtras(intent, mCroppedPhotoUri);
-            ContactPhotoUtils.addCropExtras(intent, mPhotoDim != 0 ? mPhotoDim : mDefaultPhotoDim);
+            ContactPhotoUtils.addCropExtras(intent,
+                    PhotoConstraints.getInstance(this).getDisplayPhotoMaxDim());
 
             try {
                 startActivityForResult(intent, REQUEST_CROP_PHOTO);
@@ -17,11 +17,13 @@
 package com.android.contacts.activities;
 
 import android.app.DialogFragment;
+import android.app.ProgressDialog;
 import android.app.Fragment;
 import android.app.FragmentManager;
 import android.app.FragmentTransaction;
 import android.content.BroadcastReceiver;
 import android.content.Context;
+import android.content.DialogInterface;
 import android.content.IntentFilter;
 import android.content.Intent;
 import android.graphics.Rect;
@@ -50,6 +52,7 @@ import android.view.View;
 import android.view.ViewGroup;
 import android.view.Window;
 import android.widget.ImageButton;
+import android.widget.Toast;
 import android.widget.Toolbar;
 
 import com.android.contacts.ContactsActivity;
@@ -60,7 +63,6 @@ import com.android.contacts.common.dialog.ClearFrequentsDialog;
 import com.android.contacts.common.editor.SelectAccountDialogFragment;
 import com.android.contacts.interactions.ContactDeletionInteraction;
 import com.android.contacts.common.interactions.ImportExportDialogFragment;
-import com.android.contacts.common.interactions.ImportExportDialogFragment.ExportToSimThread;
 import com.android.contacts.common.list.AccountFilterActivity;
 import com.android.contacts.common.list.ContactEntryListFragment;
 import com.android.contacts.common.list.ContactListFilter;
@@ -83,14 +85,16 @@ import com.android.contacts.preference.ContactsPreferenceActivity;
 import com.android.contacts.common.SimContactsConstants;
 import com.android.contacts.common.util.AccountFilterUtil;
 import com.android.contacts.common.util.ViewUtil;
+import com.android.contacts.editor.MultiPickContactActivity;
+import com.android.contacts.editor.SimContactExporter;
+import com.android.contacts.quickcontact.PhotoThemeCache;
 import com.android.contacts.quickcontact.QuickContactActivity;
 import com.android.contacts.util.AccountPromptUtils;
 import com.android.contacts.common.util.Constants;
 import com.android.contacts.util.DialogManager;
 import com.android.contacts.util.HelpUtils;
 
-import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Arrays;
 import java.util.Locale;
 import java.util.Set;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -169,8 +173,8 @@ public class PeopleActivity extends ContactsActivity implements
     /** Sequential ID assigned to each instance; used for logging */
     private final int mInstanceId;
     private static final AtomicInteger sNextInstanceId = new AtomicInteger();
-    // contacts list for multi contact pick
-    private ArrayList<String[]> mContactList;
+    private SimContactExporter mSimExporter;
+    private ProgressDialog mSimExportDialog;
 
     private BroadcastReceiver mExportToSimCompleteListener = null;
 
@@ -239,11 +243,21 @@ public class PeopleActivity extends ContactsActivity implements
         mIsRecreatedInstance = (savedState != null);
         createViewsAndFragments(savedState);
 
+        // Analyze the photos of the favorites in the background, so that QuickContacts can
+        // theme itself without waiting when they are opened.
+        PhotoThemeCache.getInstance(this).prewarmStarredContacts();
+
         if (Log.isLoggable(Constants.PERFORMANCE_TAG, Log.DEBUG)) {
             Log.d(Constants.PERFORMANCE_TAG, "PeopleActivity.onCreate finish");
         }
         getWindow().setBackgroundDrawable(null);
         registerReceiver();
+
+        // An export started by a previous instance may still be running.
+        final SimContactExporter simExporter = SimContactExporter.getCurrent();
+        if (simExporter != null) {
+            attachSimExporter(simExporter);
+        }
     }
 
     @Override
@@ -476,6 +490,12 @@ public class PeopleActivity extends ContactsActivity implements
         if (mExportToSimCompleteListener != null) {
             unregisterReceiver(mExportToSimCompleteListener);
         }
+        if (mSimExporter != null) {
+            // Let the export run to completion, a recreated instance shows it again.
+            mSimExporter.setListener(null);
+            mSimExporter = null;
+            mSimExportDialog.dismiss();
+        }
         super.onDestroy();
     }
 
@@ -1228,31 +1248,116 @@ public class PeopleActivity extends ContactsActivity implements
 //                break;
             case ImportExportDialogFragment.SUBACTIVITY_MULTI_PICK_CONTACT:
                 if (resultCode == RESULT_OK) {
-                    mContactList = new ArrayList<String[]>();
-                    Bundle b = data.getExtras();
-                    Bundle choiceSet = b.getBundle(SimContactsConstants.RESULT_KEY);
-                    Set<String> set = choiceSet.keySet();
-                    Iterator<String> i = set.iterator();
-                    while (i.hasNext()) {
-                        String contactInfo[] = choiceSet.getStringArray(i.next());
-                        mContactList.add(contactInfo);
-                    }
-                    Log.d(TAG, "return " + mContactList.size() + " contacts");
-                    if (!mContactList.isEmpty()) {
-                        if (!ImportExportDialogFragment.isExportingToSIM()) {
-                            ImportExportDialogFragment.destroyExportToSimThread();
-                            ExportToSimThread exportThread =
-                                    new ImportExportDialogFragment().createExportToSimThread(
-                                    ImportExportDialogFragment.mExportSub, mContactList,
-                                    PeopleActivity.this);
-                            exportThread.start();
-                        }
+                    final long[] contactIds = getPickedContactIds(data);
+                    Log.d(TAG, "return " + contactIds.length + " contacts");
+                    if (contactIds.length > 0 && SimContactExporter.getCurrent() == null
+                            && !ImportExportDialogFragment.isExportingToSIM()) {
+                        exportToSim(ImportExportDialogFragment.mExportSub, contactIds);
                     }
                 }
                 break;
         }
     }
 
+    @Override
+    public void startActivityForResult(Intent intent, int requestCode, Bundle options) {
+        if (requestCode == ImportExportDialogFragment.SUBACTIVITY_MULTI_PICK_CONTACT) {
+            // The export only needs the ids of the picked contacts, it reads their data itself.
+            intent.putExtra(MultiPickContactActivity.EXTRA_IDS_ONLY, true);
+        }
+        super.startActivityForResult(intent, requestCode, options);
+    }
+
+    private static long[] getPickedContactIds(Intent data) {
+        final long[] contactIds = data.getLongArrayExtra(
+                MultiPickContactActivity.EXTRA_CONTACT_IDS);
+        if (contactIds != null) {
+            return contactIds;
+        }
+        // Pickers which don't support EXTRA_IDS_ONLY return {lookup key, id} per contact.
+        final Bundle choiceSet = data.getBundleExtra(SimContactsConstants.RESULT_KEY);
+        if (choiceSet == null) {
+            return new long[0];
+        }
+        final Set<String> keys = choiceSet.keySet();
+        final long[] ids = new long[keys.size()];
+        int count = 0;
+        for (String key : keys) {
+            final String[] contactInfo = choiceSet.getStringArray(key);
+            if (contactInfo != null && contactInfo.length > 1) {
+                ids[count++] = Long.parseLong(contactInfo[1]);
+            }
+        }
+        return count == ids.length ? ids : Arrays.copyOf(ids, count);
+    }
+
+    private void exportToSim(int subscription, long[] contactIds) {
+        final SimContactExporter exporter = new SimContactExporter(this, subscription,
+                contactIds, null);
+        exporter.start();
+        attachSimExporter(exporter);
+    }
+
+    /**
+     * Shows the progress of {@param exporter} until it finishes. The export belongs to the
+     * process, so this is also used to show it again after the activity is recreated.
+     */
+    private void attachSimExporter(SimContactExporter exporter) {
+        mSimExporter = exporter;
+        mSimExportDialog = new ProgressDialog(this);
+        mSimExportDialog.setTitle(R.string.export_to_sim_title);
+        mSimExportDialog.setMessage(getString(R.string.exporting_contact_list_progress,
+                0, exporter.getTotal()));
+        mSimExportDialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
+        mSimExportDialog.setMax(exporter.getTotal());
+        mSimExportDialog.setCanceledOnTouchOutside(false);
+        mSimExportDialog.setButton(DialogInterface.BUTTON_NEGATIVE,
+                getString(android.R.string.cancel), new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        mSimExporter.cancel();
+                    }
+                });
+        mSimExportDialog.setOnCancelListener(new DialogInterface.OnCancelListener() {
+            @Override
+            public void onCancel(DialogInterface dialog) {
+                mSimExporter.cancel();
+            }
+        });
+        mSimExportDialog.show();
+
+        exporter.setListener(new SimContactExporter.Listener() {
+            @Override
+            public void onExportProgress(int exported, int total, int freeCount,
+                    float contactsPerSecond) {
+                mSimExportDialog.setProgress(exported);
+                mSimExportDialog.setMessage(freeCount < 0
+                        ? getString(R.string.exporting_contact_list_progress,
+                                exported, total)
+                        : getString(R.string.export_to_sim_progress, exported, total,
+                                freeCount));
+                if (Log.isLoggable(TAG, Log.VERBOSE)) {
+                    Log.v(TAG, "SIM export: " + contactsPerSecond + " contacts/s");
+                }
+            }
+
+            @Override
+            public void onExportFinished(int exported, int total, boolean simFull,
+                    boolean canceled) {
+                mSimExporter = null;
+                mSimExportDialog.dismiss();
+                if (simFull) {
+                    Toast.makeText(PeopleActivity.this, R.string.sim_card_full,
+                            Toast.LENGTH_SHORT).show();
+                } else {
+                    Toast.makeText(PeopleActivity.this, getString(
+                            R.string.export_to_sim_finished, exported),
+                            Toast.LENGTH_SHORT).show();
+                }
+            }
+        });
+    }
+
     @Override
     public boolean onKeyDown(int keyCode, KeyEvent event) {
         // TODO move to the fragment
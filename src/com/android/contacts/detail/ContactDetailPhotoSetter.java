@@ -38,29 +38,31 @@ import com.android.contacts.util.ImageViewDrawableSetter;
 public class ContactDetailPhotoSetter extends ImageViewDrawableSetter {
     public OnClickListener setupContactPhotoForClick(Context context, Contact contactData,
             ImageView photoView, boolean expandPhotoOnClick) {
-        Bitmap bitmap = setupContactPhoto(contactData, photoView);
-        return setupClickListener(context, contactData, bitmap, expandPhotoOnClick);
+        setupContactPhoto(contactData, photoView);
+        return setupClickListener(context, contactData, expandPhotoOnClick);
     }
 
     private static final class PhotoClickListener implements OnClickListener {
 
         private final Context mContext;
         private final Contact mContactData;
-        private final Bitmap mPhotoBitmap;
-        private final byte[] mPhotoBytes;
+        private final ContactDetailPhotoSetter mPhotoSetter;
         private final boolean mExpandPhotoOnClick;
 
-        public PhotoClickListener(Context context, Contact contactData, Bitmap photoBitmap,
-                byte[] photoBytes, boolean expandPhotoOnClick) {
+        public PhotoClickListener(Context context, Contact contactData,
+                ContactDetailPhotoSetter photoSetter, boolean expandPhotoOnClick) {
             mContext = context;
             mContactData = contactData;
-            mPhotoBitmap = photoBitmap;
-            mPhotoBytes = photoBytes;
+            mPhotoSetter = photoSetter;
             mExpandPhotoOnClick = expandPhotoOnClick;
         }
 
         @Override
         public void onClick(View v) {
+            // The photo is decoded in the background, so get it when it is needed.
+            final Bitmap photoBitmap = mPhotoSetter.getDisplayedBitmap();
+            final byte[] photoBytes = mPhotoSetter.getCompressedImage();
+
             // Assemble the intent.
             RawContactDeltaList delta = mContactData.createRawContactDeltaList();
 
@@ -83,24 +85,23 @@ public class ContactDetailPhotoSetter extends ImageViewDrawableSetter {
                 photoUri = Uri.parse(mContactData.getPhotoUri());
             }
             Intent photoSelectionIntent = PhotoSelectionActivity.buildIntent(mContext,
-                    photoUri, mPhotoBitmap, mPhotoBytes, rect, delta, mContactData.isUserProfile(),
+                    photoUri, photoBitmap, photoBytes, rect, delta, mContactData.isUserProfile(),
                     mContactData.isDirectoryEntry(), mExpandPhotoOnClick);
             // Cache the bitmap directly, so the activity can pull it from the
             // photo manager.
-            if (mPhotoBitmap != null) {
+            if (photoBitmap != null) {
                 ContactPhotoManager.getInstance(mContext).cacheBitmap(
-                        photoUri, mPhotoBitmap, mPhotoBytes);
+                        photoUri, photoBitmap, photoBytes);
             }
             mContext.startActivity(photoSelectionIntent);
         }
     }
 
-    private OnClickListener setupClickListener(Context context, Contact contactData, Bitmap bitmap,
+    private OnClickListener setupClickListener(Context context, Contact contactData,
             boolean expandPhotoOnClick) {
         final ImageView target = getTarget();
         if (target == null) return null;
 
-        return new PhotoClickListener(
-                context, contactData, bitmap, getCompressedImage(), expandPhotoOnClick);
+        return new PhotoClickListener(context, contactData, this, expandPhotoOnClick);
     }
 }
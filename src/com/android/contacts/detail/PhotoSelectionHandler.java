@@ -21,10 +21,8 @@ import android.content.ActivityNotFoundException;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
-import android.database.Cursor;
 import android.net.Uri;
 import android.provider.ContactsContract.CommonDataKinds.Photo;
-import android.provider.ContactsContract.DisplayPhoto;
 import android.provider.ContactsContract.RawContacts;
 import android.provider.MediaStore;
 import android.util.Log;
@@ -43,6 +41,7 @@ import com.android.contacts.common.model.ValuesDelta;
 import com.android.contacts.common.model.account.AccountType;
 import com.android.contacts.common.model.RawContactDeltaList;
 import com.android.contacts.util.ContactPhotoUtils;
+import com.android.contacts.util.PhotoConstraints;
 import com.android.contacts.util.UiClosables;
 
 import java.io.FileNotFoundException;
@@ -59,15 +58,9 @@ public abstract class PhotoSelectionHandler implements OnClickListener {
     private static final int REQUEST_CODE_PHOTO_PICKED_WITH_DATA = 1002;
     private static final int REQUEST_CROP_PHOTO = 1003;
 
-    // Height and width (in pixels) to request for the photo - queried from the provider.
-    private static int mPhotoDim;
-    // Default photo dimension to use if unable to query the provider.
-    private static final int mDefaultPhotoDim = 720;
-
     protected final Context mContext;
     private final View mPhotoView;
     private final int mPhotoMode;
-    private final int mPhotoPickSize;
     private final Uri mCroppedPhotoUri;
     private final Uri mTempPhotoUri;
     private final RawContactDeltaList mState;
@@ -83,7 +76,9 @@ public abstract class PhotoSelectionHandler implements OnClickListener {
         mCroppedPhotoUri = ContactPhotoUtils.generateTempCroppedImageUri(mContext);
         mIsDirectoryContact = isDirectoryContact;
         mState = state;
-        mPhotoPickSize = getPhotoPickSize();
+        // Start loading the photo dimension to request, so that it is known by the time the
+        // photo is cropped.
+        PhotoConstraints.getInstance(context);
     }
 
     public void destroy() {
@@ -267,26 +262,6 @@ public abstract class PhotoSelectionHandler implements OnClickListener {
         startPhotoActivity(intent, REQUEST_CODE_PHOTO_PICKED_WITH_DATA, photoUri);
     }
 
-    private int getPhotoPickSize() {
-        if (mPhotoDim != 0) {
-            return mPhotoDim;
-        }
-
-        // Note that this URI is safe to call on the UI thread.
-        Cursor c = mContext.getContentResolver().query(DisplayPhoto.CONTENT_MAX_DIMENSIONS_URI,
-                new String[]{DisplayPhoto.DISPLAY_MAX_DIM}, null, null, null);
-        if (c != null) {
-            try {
-                if (c.moveToFirst()) {
-                    mPhotoDim = c.getInt(0);
-                }
-            } finally {
-                c.close();
-            }
-        }
-        return mPhotoDim != 0 ? mPhotoDim : mDefaultPhotoDim;
-    }
-
     /**
      * Constructs an intent for capturing a photo and storing it in a temporary output uri.
      */
@@ -313,7 +288,8 @@ public abstract class PhotoSelectionHandler implements OnClickListener {
         Intent intent = new Intent("com.android.camera.action.CROP");
         intent.setDataAndType(inputUri, "image/*");
         ContactPhotoUtils.addPhotoPickerExtras(intent, outputUri);
-        ContactPhotoUtils.addCropExtras(intent, mPhotoPickSize);
+        ContactPhotoUtils.addCropExtras(intent,
+                PhotoConstraints.getInstance(mContext).getDisplayPhotoMaxDim());
         return intent;
     }
 
@@ -25,18 +25,21 @@ import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Message;
 import android.os.Process;
+import android.os.SystemClock;
 import android.provider.ContactsContract.CommonDataKinds.Email;
 import android.provider.ContactsContract.CommonDataKinds.Nickname;
 import android.provider.ContactsContract.CommonDataKinds.Phone;
-import android.provider.ContactsContract.CommonDataKinds.Photo;
 import android.provider.ContactsContract.CommonDataKinds.StructuredName;
 import android.provider.ContactsContract.Contacts;
 import android.provider.ContactsContract.Contacts.AggregationSuggestions;
 import android.provider.ContactsContract.Contacts.AggregationSuggestions.Builder;
 import android.provider.ContactsContract.Data;
+import android.provider.ContactsContract.DeletedContacts;
 import android.provider.ContactsContract.RawContacts;
 import android.text.TextUtils;
+import android.util.LruCache;
 
+import com.android.contacts.common.ContactPhotoManager;
 import com.android.contacts.common.model.ValuesDelta;
 import com.google.common.collect.Lists;
 
@@ -75,14 +78,15 @@ public class AggregationSuggestionEngine extends HandlerThread {
         public String phoneNumber;
         public String emailAddress;
         public String nickname;
-        public byte[] photo;
+        /** Id of the photo of the contact, to be loaded with {@link ContactPhotoManager}. */
+        public long photoId;
         public List<RawContact> rawContacts;
 
         @Override
         public String toString() {
             return "ID: " + contactId + " rawContacts: " + rawContacts + " name: " + name
             + " phone: " + phoneNumber + " email: " + emailAddress + " nickname: "
-            + nickname + (photo != null ? " [has photo]" : "");
+            + nickname + (photoId != 0 ? " [has photo]" : "");
         }
     }
 
@@ -93,18 +97,41 @@ public class AggregationSuggestionEngine extends HandlerThread {
 
         @Override
         public void onChange(boolean selfChange) {
-            scheduleSuggestionLookup();
+            scheduleContentChangeCheck();
         }
     }
 
     private static final int MESSAGE_RESET = 0;
     private static final int MESSAGE_NAME_CHANGE = 1;
-    private static final int MESSAGE_DATA_CURSOR = 2;
+    private static final int MESSAGE_SUGGESTIONS = 2;
+    private static final int MESSAGE_CONTENT_CHANGE = 3;
 
     private static final long SUGGESTION_LOOKUP_DELAY_MILLIS = 300;
 
+    /**
+     * Delay between a change notification and the check whether the change affects the
+     * suggestions. Notifications arriving in the meantime are coalesced into the same check.
+     * The delay doubles while notifications keep coming in, e.g. during a sync, up to
+     * {@link #CONTENT_CHANGE_MAX_DELAY_MILLIS}.
+     */
+    private static final long CONTENT_CHANGE_MIN_DELAY_MILLIS = 500;
+    private static final long CONTENT_CHANGE_MAX_DELAY_MILLIS = 8000;
+
+    /** Number of leading characters two name tokens need to share to possibly match. */
+    private static final int NAME_TOKEN_PREFIX_LENGTH = 2;
+
+    private static final String[] CHANGED_CONTACT_COLUMNS = {
+        Contacts._ID,
+        Contacts.DISPLAY_NAME_PRIMARY,
+        Contacts.DISPLAY_NAME_ALTERNATIVE,
+        Contacts.PHONETIC_NAME,
+    };
+
     private static final int MAX_SUGGESTION_COUNT = 3;
 
+    /** Number of suggested contacts whose data is kept around while the editor is open. */
+    private static final int MAX_CACHED_SUGGESTIONS = 32;
+
     private final Context mContext;
 
     private long[] mSuggestedContactIds = new long[0];
@@ -113,17 +140,33 @@ public class AggregationSuggestionEngine extends HandlerThread {
     private Handler mHandler;
     private long mContactId;
     private Listener mListener;
-    private Cursor mDataCursor;
+    /** The suggestions shown, only accessed on the main thread. */
+    private List<Suggestion> mSuggestions = new ArrayList<Suggestion>();
+    /**
+     * Data of the contacts suggested so far, by contact id. Only accessed on the engine
+     * thread.
+     */
+    private final LruCache<Long, Suggestion> mSuggestionCache =
+            new LruCache<Long, Suggestion>(MAX_CACHED_SUGGESTIONS);
     private ContentObserver mContentObserver;
-    private Uri mSuggestionsUri;
+    private volatile Uri mSuggestionsUri;
+    /** Lower case tokens of the name suggestions are looked up for. */
+    private volatile String[] mNameTokens = new String[0];
+
+    // Only accessed on the engine thread.
+    private long mContentChangeDelayMillis = CONTENT_CHANGE_MIN_DELAY_MILLIS;
+    private long mLastContentChangeMillis;
+    /** Time of the last lookup or change check, changes before it are accounted for. */
+    private long mCheckedTimestamp;
 
     public AggregationSuggestionEngine(Context context) {
         super("AggregationSuggestions", Process.THREAD_PRIORITY_BACKGROUND);
         mContext = context.getApplicationContext();
         mMainHandler = new Handler() {
             @Override
+            @SuppressWarnings("unchecked")
             public void handleMessage(Message msg) {
-                AggregationSuggestionEngine.this.deliverNotification((Cursor) msg.obj);
+                AggregationSuggestionEngine.this.deliverNotification((List<Suggestion>) msg.obj);
             }
         };
     }
@@ -153,10 +196,6 @@ public class AggregationSuggestionEngine extends HandlerThread {
 
     @Override
     public boolean quit() {
-        if (mDataCursor != null) {
-            mDataCursor.close();
-        }
-        mDataCursor = null;
         if (mContentObserver != null) {
             mContext.getContentResolver().unregisterContentObserver(mContentObserver);
             mContentObserver = null;
@@ -167,6 +206,7 @@ public class AggregationSuggestionEngine extends HandlerThread {
     public void reset() {
         Handler handler = getHandler();
         handler.removeMessages(MESSAGE_NAME_CHANGE);
+        handler.removeMessages(MESSAGE_CONTENT_CHANGE);
         handler.sendEmptyMessage(MESSAGE_RESET);
     }
 
@@ -197,6 +237,26 @@ public class AggregationSuggestionEngine extends HandlerThread {
         handler.sendMessageDelayed(msg, SUGGESTION_LOOKUP_DELAY_MILLIS);
     }
 
+    /**
+     * Called on the engine thread when the contacts changed. Throttles the checks whether the
+     * change affects the suggestions, backing off while changes keep coming in.
+     */
+    private void scheduleContentChangeCheck() {
+        final long now = SystemClock.uptimeMillis();
+        if (now - mLastContentChangeMillis < mContentChangeDelayMillis) {
+            mContentChangeDelayMillis = Math.min(mContentChangeDelayMillis * 2,
+                    CONTENT_CHANGE_MAX_DELAY_MILLIS);
+        } else {
+            mContentChangeDelayMillis = CONTENT_CHANGE_MIN_DELAY_MILLIS;
+        }
+        mLastContentChangeMillis = now;
+
+        final Handler handler = getHandler();
+        if (!handler.hasMessages(MESSAGE_CONTENT_CHANGE)) {
+            handler.sendEmptyMessageDelayed(MESSAGE_CONTENT_CHANGE, mContentChangeDelayMillis);
+        }
+    }
+
     private Uri buildAggregationSuggestionUri(ValuesDelta values) {
         StringBuilder nameSb = new StringBuilder();
         appendValue(nameSb, values, StructuredName.PREFIX);
@@ -215,8 +275,10 @@ public class AggregationSuggestionEngine extends HandlerThread {
         appendValue(phoneticNameSb, values, StructuredName.PHONETIC_GIVEN_NAME);
 
         if (nameSb.length() == 0 && phoneticNameSb.length() == 0) {
+            mNameTokens = new String[0];
             return null;
         }
+        mNameTokens = tokenize(nameSb.append(' ').append(phoneticNameSb).toString());
 
         Builder builder = AggregationSuggestions.builder()
                 .setLimit(MAX_SUGGESTION_COUNT)
@@ -250,11 +312,129 @@ public class AggregationSuggestionEngine extends HandlerThread {
                 mSuggestedContactIds = new long[0];
                 break;
             case MESSAGE_NAME_CHANGE:
-                loadAggregationSuggestions((Uri) msg.obj);
+                loadAggregationSuggestions((Uri) msg.obj, false);
+                break;
+            case MESSAGE_CONTENT_CHANGE:
+                handleContentChange();
                 break;
         }
     }
 
+    private void handleContentChange() {
+        final Uri uri = mSuggestionsUri;
+        if (uri == null || getHandler().hasMessages(MESSAGE_NAME_CHANGE)) {
+            // Nothing to update, or a lookup is about to happen anyway.
+            return;
+        }
+        if (isAffectedByChanges()) {
+            loadAggregationSuggestions(uri, true);
+        }
+    }
+
+    /**
+     * Returns true if the contacts changed since the last lookup or check could have an effect
+     * on the suggestions: a suggested contact changed or was deleted, or a changed contact has
+     * a name which may match the one being edited. Every changed or deleted contact is also
+     * removed from {@link #mSuggestionCache}.
+     */
+    private boolean isAffectedByChanges() {
+        final long since = mCheckedTimestamp;
+        mCheckedTimestamp = System.currentTimeMillis();
+        if (since == 0) {
+            return true;
+        }
+
+        final ContentResolver resolver = mContext.getContentResolver();
+        final String[] selectionArgs = new String[] { String.valueOf(since) };
+        Cursor cursor = resolver.query(Contacts.CONTENT_URI, CHANGED_CONTACT_COLUMNS,
+                Contacts.CONTACT_LAST_UPDATED_TIMESTAMP + ">?", selectionArgs, null);
+        if (cursor == null) {
+            return true;
+        }
+        boolean affected = false;
+        try {
+            while (cursor.moveToNext()) {
+                final long contactId = cursor.getLong(0);
+                // Cached contacts that aren't suggested right now may be suggested again later,
+                // so drop every changed contact from the cache.
+                mSuggestionCache.remove(contactId);
+                if (affected || contactId == mContactId) {
+                    continue;
+                }
+                if (Arrays.binarySearch(mSuggestedContactIds, contactId) >= 0
+                        || mayMatchName(cursor.getString(1))
+                        || mayMatchName(cursor.getString(2))
+                        || mayMatchName(cursor.getString(3))) {
+                    affected = true;
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+
+        if (mSuggestedContactIds.length == 0 && mSuggestionCache.size() == 0) {
+            return affected;
+        }
+        cursor = resolver.query(DeletedContacts.CONTENT_URI,
+                new String[] { DeletedContacts.CONTACT_ID },
+                DeletedContacts.CONTACT_DELETED_TIMESTAMP + ">?", selectionArgs, null);
+        if (cursor == null) {
+            mSuggestionCache.evictAll();
+            return true;
+        }
+        try {
+            while (cursor.moveToNext()) {
+                final long contactId = cursor.getLong(0);
+                mSuggestionCache.remove(contactId);
+                if (Arrays.binarySearch(mSuggestedContactIds, contactId) >= 0) {
+                    affected = true;
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        return affected;
+    }
+
+    /**
+     * Returns true if {@code name} has a token which starts like one of the tokens of the name
+     * being edited. This is a superset of the names the provider matches, short of nicknames.
+     */
+    private boolean mayMatchName(String name) {
+        if (TextUtils.isEmpty(name)) {
+            return false;
+        }
+        final String[] nameTokens = mNameTokens;
+        for (String token : tokenize(name)) {
+            for (String nameToken : nameTokens) {
+                if (token.regionMatches(0, nameToken, 0, NAME_TOKEN_PREFIX_LENGTH)
+                        || token.length() < NAME_TOKEN_PREFIX_LENGTH
+                                && nameToken.startsWith(token)
+                        || nameToken.length() < NAME_TOKEN_PREFIX_LENGTH
+                                && token.startsWith(nameToken)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static String[] tokenize(String name) {
+        final ArrayList<String> tokens = new ArrayList<String>();
+        int start = -1;
+        for (int i = 0; i <= name.length(); i++) {
+            final boolean letterOrDigit = i < name.length()
+                    && Character.isLetterOrDigit(name.charAt(i));
+            if (letterOrDigit && start < 0) {
+                start = i;
+            } else if (!letterOrDigit && start >= 0) {
+                tokens.add(name.substring(start, i).toLowerCase());
+                start = -1;
+            }
+        }
+        return tokens.toArray(new String[tokens.size()]);
+    }
+
     private static final class DataQuery {
 
         public static final String SELECTION_PREFIX =
@@ -262,8 +442,7 @@ public class AggregationSuggestionEngine extends HandlerThread {
                     + Phone.CONTENT_ITEM_TYPE + "','"
                     + Email.CONTENT_ITEM_TYPE + "','"
                     + StructuredName.CONTENT_ITEM_TYPE + "','"
-                    + Nickname.CONTENT_ITEM_TYPE + "','"
-                    + Photo.CONTENT_ITEM_TYPE + "')"
+                    + Nickname.CONTENT_ITEM_TYPE + "')"
                 + " AND " + Data.CONTACT_ID + " IN (";
 
         public static final String[] COLUMNS = {
@@ -276,7 +455,6 @@ public class AggregationSuggestionEngine extends HandlerThread {
             Data.MIMETYPE,
             Data.DATA1,
             Data.IS_SUPER_PRIMARY,
-            Photo.PHOTO,
             RawContacts.ACCOUNT_TYPE,
             RawContacts.ACCOUNT_NAME,
             RawContacts.DATA_SET
@@ -291,13 +469,27 @@ public class AggregationSuggestionEngine extends HandlerThread {
         public static final int MIMETYPE = 6;
         public static final int DATA1 = 7;
         public static final int IS_SUPERPRIMARY = 8;
-        public static final int PHOTO = 9;
-        public static final int ACCOUNT_TYPE = 10;
-        public static final int ACCOUNT_NAME = 11;
-        public static final int DATA_SET = 12;
+        public static final int ACCOUNT_TYPE = 9;
+        public static final int ACCOUNT_NAME = 10;
+        public static final int DATA_SET = 11;
     }
 
-    private void loadAggregationSuggestions(Uri uri) {
+    /**
+     * Looks up the suggestions for {@code uri}. Their data is only reloaded if the suggested
+     * contacts changed, or if {@code reloadData} is true.
+     */
+    private void loadAggregationSuggestions(Uri uri, boolean reloadData) {
+        // The lookup accounts for all the changes made so far.
+        getHandler().removeMessages(MESSAGE_CONTENT_CHANGE);
+        if (reloadData) {
+            // The changes were just checked, and the cache is evicted below.
+            mCheckedTimestamp = System.currentTimeMillis();
+        } else {
+            // Only for its side effect: cached suggestions of the contacts changed since the
+            // last check must not be reused, the result doesn't matter since we look up anyway.
+            isAffectedByChanges();
+        }
+
         ContentResolver contentResolver = mContext.getContentResolver();
         Cursor cursor = contentResolver.query(uri, new String[]{Contacts._ID}, null, null, null);
         if (cursor == null) {
@@ -310,26 +502,53 @@ public class AggregationSuggestionEngine extends HandlerThread {
             }
 
             boolean changed = updateSuggestedContactIds(cursor);
-            if (!changed) {
+            if (!changed && (!reloadData || mSuggestedContactIds.length == 0)) {
                 return;
             }
+            if (reloadData) {
+                // Some contacts changed, don't trust the data we have.
+                mSuggestionCache.evictAll();
+            }
 
-            StringBuilder sb = new StringBuilder(DataQuery.SELECTION_PREFIX);
-            int count = mSuggestedContactIds.length;
-            for (int i = 0; i < count; i++) {
-                if (i > 0) {
+            StringBuilder sb = null;
+            for (long contactId : mSuggestedContactIds) {
+                if (mSuggestionCache.get(contactId) != null) {
+                    continue;
+                }
+                if (sb == null) {
+                    sb = new StringBuilder(DataQuery.SELECTION_PREFIX);
+                } else {
                     sb.append(',');
                 }
-                sb.append(mSuggestedContactIds[i]);
+                sb.append(contactId);
             }
-            sb.append(')');
-            sb.toString();
 
-            Cursor dataCursor = contentResolver.query(Data.CONTENT_URI,
-                    DataQuery.COLUMNS, sb.toString(), null, Data.CONTACT_ID);
-            if (dataCursor != null) {
-                mMainHandler.sendMessage(mMainHandler.obtainMessage(MESSAGE_DATA_CURSOR, dataCursor));
+            if (sb != null) {
+                sb.append(')');
+                Cursor dataCursor = contentResolver.query(Data.CONTENT_URI,
+                        DataQuery.COLUMNS, sb.toString(), null, Data.CONTACT_ID);
+                if (dataCursor == null) {
+                    return;
+                }
+                try {
+                    for (Suggestion suggestion : readSuggestions(dataCursor)) {
+                        mSuggestionCache.put(suggestion.contactId, suggestion);
+                    }
+                } finally {
+                    dataCursor.close();
+                }
             }
+
+            final ArrayList<Suggestion> suggestions = new ArrayList<Suggestion>(
+                    mSuggestedContactIds.length);
+            for (long contactId : mSuggestedContactIds) {
+                final Suggestion suggestion = mSuggestionCache.get(contactId);
+                if (suggestion != null) {
+                    suggestions.add(suggestion);
+                }
+            }
+            mMainHandler.sendMessage(mMainHandler.obtainMessage(MESSAGE_SUGGESTIONS,
+                    suggestions));
         } finally {
             cursor.close();
         }
@@ -360,74 +579,70 @@ public class AggregationSuggestionEngine extends HandlerThread {
         return changed;
     }
 
-    protected void deliverNotification(Cursor dataCursor) {
-        if (mDataCursor != null) {
-            mDataCursor.close();
-        }
-        mDataCursor = dataCursor;
+    protected void deliverNotification(List<Suggestion> suggestions) {
+        mSuggestions = suggestions;
         if (mListener != null) {
             mListener.onAggregationSuggestionChange();
         }
     }
 
     public int getSuggestedContactCount() {
-        return mDataCursor != null ? mDataCursor.getCount() : 0;
+        return mSuggestions.size();
     }
 
     public List<Suggestion> getSuggestions() {
+        return new ArrayList<Suggestion>(mSuggestions);
+    }
+
+    /**
+     * Reads the suggestions from a cursor of {@link DataQuery}, sorted by contact id.
+     */
+    private List<Suggestion> readSuggestions(Cursor cursor) {
         ArrayList<Suggestion> list = Lists.newArrayList();
-        if (mDataCursor != null) {
-            Suggestion suggestion = null;
-            long currentContactId = -1;
-            mDataCursor.moveToPosition(-1);
-            while (mDataCursor.moveToNext()) {
-                long contactId = mDataCursor.getLong(DataQuery.CONTACT_ID);
-                if (contactId != currentContactId) {
-                    suggestion = new Suggestion();
-                    suggestion.contactId = contactId;
-                    suggestion.name = mDataCursor.getString(DataQuery.DISPLAY_NAME);
-                    suggestion.lookupKey = mDataCursor.getString(DataQuery.LOOKUP_KEY);
-                    suggestion.rawContacts = Lists.newArrayList();
-                    list.add(suggestion);
-                    currentContactId = contactId;
-                }
+        Suggestion suggestion = null;
+        long currentContactId = -1;
+        while (cursor.moveToNext()) {
+            long contactId = cursor.getLong(DataQuery.CONTACT_ID);
+            if (contactId != currentContactId) {
+                suggestion = new Suggestion();
+                suggestion.contactId = contactId;
+                suggestion.name = cursor.getString(DataQuery.DISPLAY_NAME);
+                suggestion.lookupKey = cursor.getString(DataQuery.LOOKUP_KEY);
+                suggestion.photoId = cursor.getLong(DataQuery.PHOTO_ID);
+                suggestion.rawContacts = Lists.newArrayList();
+                list.add(suggestion);
+                currentContactId = contactId;
+            }
 
-                long rawContactId = mDataCursor.getLong(DataQuery.RAW_CONTACT_ID);
-                if (!containsRawContact(suggestion, rawContactId)) {
-                    RawContact rawContact = new RawContact();
-                    rawContact.rawContactId = rawContactId;
-                    rawContact.accountName = mDataCursor.getString(DataQuery.ACCOUNT_NAME);
-                    rawContact.accountType = mDataCursor.getString(DataQuery.ACCOUNT_TYPE);
-                    rawContact.dataSet = mDataCursor.getString(DataQuery.DATA_SET);
-                    suggestion.rawContacts.add(rawContact);
-                }
+            long rawContactId = cursor.getLong(DataQuery.RAW_CONTACT_ID);
+            if (!containsRawContact(suggestion, rawContactId)) {
+                RawContact rawContact = new RawContact();
+                rawContact.rawContactId = rawContactId;
+                rawContact.accountName = cursor.getString(DataQuery.ACCOUNT_NAME);
+                rawContact.accountType = cursor.getString(DataQuery.ACCOUNT_TYPE);
+                rawContact.dataSet = cursor.getString(DataQuery.DATA_SET);
+                suggestion.rawContacts.add(rawContact);
+            }
 
-                String mimetype = mDataCursor.getString(DataQuery.MIMETYPE);
-                if (Phone.CONTENT_ITEM_TYPE.equals(mimetype)) {
-                    String data = mDataCursor.getString(DataQuery.DATA1);
-                    int superprimary = mDataCursor.getInt(DataQuery.IS_SUPERPRIMARY);
-                    if (!TextUtils.isEmpty(data)
-                            && (superprimary != 0 || suggestion.phoneNumber == null)) {
-                        suggestion.phoneNumber = data;
-                    }
-                } else if (Email.CONTENT_ITEM_TYPE.equals(mimetype)) {
-                    String data = mDataCursor.getString(DataQuery.DATA1);
-                    int superprimary = mDataCursor.getInt(DataQuery.IS_SUPERPRIMARY);
-                    if (!TextUtils.isEmpty(data)
-                            && (superprimary != 0 || suggestion.emailAddress == null)) {
-                        suggestion.emailAddress = data;
-                    }
-                } else if (Nickname.CONTENT_ITEM_TYPE.equals(mimetype)) {
-                    String data = mDataCursor.getString(DataQuery.DATA1);
-                    if (!TextUtils.isEmpty(data)) {
-                        suggestion.nickname = data;
-                    }
-                } else if (Photo.CONTENT_ITEM_TYPE.equals(mimetype)) {
-                    long dataId = mDataCursor.getLong(DataQuery.ID);
-                    long photoId = mDataCursor.getLong(DataQuery.PHOTO_ID);
-                    if (dataId == photoId && !mDataCursor.isNull(DataQuery.PHOTO)) {
-                        suggestion.photo = mDataCursor.getBlob(DataQuery.PHOTO);
-                    }
+            String mimetype = cursor.getString(DataQuery.MIMETYPE);
+            if (Phone.CONTENT_ITEM_TYPE.equals(mimetype)) {
+                String data = cursor.getString(DataQuery.DATA1);
+                int superprimary = cursor.getInt(DataQuery.IS_SUPERPRIMARY);
+                if (!TextUtils.isEmpty(data)
+                        && (superprimary != 0 || suggestion.phoneNumber == null)) {
+                    suggestion.phoneNumber = data;
+                }
+            } else if (Email.CONTENT_ITEM_TYPE.equals(mimetype)) {
+                String data = cursor.getString(DataQuery.DATA1);
+                int superprimary = cursor.getInt(DataQuery.IS_SUPERPRIMARY);
+                if (!TextUtils.isEmpty(data)
+                        && (superprimary != 0 || suggestion.emailAddress == null)) {
+                    suggestion.emailAddress = data;
+                }
+            } else if (Nickname.CONTENT_ITEM_TYPE.equals(mimetype)) {
+                String data = cursor.getString(DataQuery.DATA1);
+                if (!TextUtils.isEmpty(data)) {
+                    suggestion.nickname = data;
                 }
             }
         }
@@ -0,0 +1,322 @@
+/**
+ * Copyright (C) 2014, The Linux Foundation. All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *     * Neither the name of The Linux Foundation nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.android.contacts.editor;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.provider.ContactsContract.RawContacts;
+import android.util.Log;
+
+import com.android.contacts.common.MoreContactUtils;
+import com.android.contacts.common.SimContactsConstants;
+import com.android.contacts.common.SimContactsOperation;
+import com.android.contacts.util.SimCapacityCache;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Deletes a large selection of contacts (or call log entries) off the UI thread.
+ *
+ * <p>The selection is split into SIM and non-SIM partitions. SIM contacts are removed from
+ * the ICC on a dedicated worker and handed over to the provider side only once the card
+ * delete succeeded, while the provider side deletes the rest with chunked
+ * {@code IN (...)} statements. That way provider round-trips overlap with the (much slower)
+ * ICC I/O instead of being serialized behind it.
+ *
+ * <p>Progress and completion are reported on the main thread through {@link Listener}.
+ */
+public class BulkContactDeleter {
+    private static final String TAG = "BulkContactDeleter";
+
+    /** Maximum number of ids bound into a single {@code IN (...)} delete. */
+    private static final int DELETE_CHUNK_SIZE = 500;
+
+    /** Posted by the SIM worker once it has no more ids to hand over. */
+    private static final long END_OF_SIM_IDS = -1;
+
+    private static final String[] SIM_PARTITION_PROJECTION = new String[] {
+            RawContacts.CONTACT_ID,
+            RawContacts.ACCOUNT_NAME,
+    };
+
+    public interface Listener {
+        /** Called whenever more entries have been processed, deleted or skipped. */
+        void onDeleteProgress(int processed, int total);
+
+        /** Called exactly once, after all workers have stopped. */
+        void onDeleteFinished(boolean canceled);
+    }
+
+    private final Context mContext;
+    private final ContentResolver mResolver;
+    private final Uri mUri;
+    private final String mIdColumn;
+    private final boolean mCheckSim;
+    private final long[] mIds;
+    private final Listener mListener;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    private final AtomicInteger mProcessed = new AtomicInteger();
+    private final BlockingQueue<Long> mSimDeletedIds = new LinkedBlockingQueue<Long>();
+    private volatile boolean mCanceled;
+
+    /**
+     * Creates a deleter for contacts. Deletes go through {@link RawContacts#CONTENT_URI}
+     * because the provider ignores selection based deletes on the aggregate table; removing
+     * all raw contacts of an aggregate removes the aggregate as well.
+     */
+    public static BulkContactDeleter forContacts(Context context, long[] contactIds,
+            Listener listener) {
+        return new BulkContactDeleter(context, RawContacts.CONTENT_URI, RawContacts.CONTACT_ID,
+                true, contactIds, listener);
+    }
+
+    /**
+     * Creates a deleter for rows of a provider that supports selection based deletes, such
+     * as the call log.
+     */
+    public static BulkContactDeleter forUri(Context context, Uri uri, String idColumn,
+            long[] ids, Listener listener) {
+        return new BulkContactDeleter(context, uri, idColumn, false, ids, listener);
+    }
+
+    private BulkContactDeleter(Context context, Uri uri, String idColumn, boolean checkSim,
+            long[] ids, Listener listener) {
+        mContext = context.getApplicationContext();
+        mResolver = mContext.getContentResolver();
+        mUri = uri;
+        mIdColumn = idColumn;
+        mCheckSim = checkSim;
+        mIds = ids;
+        mListener = listener;
+    }
+
+    public void start() {
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runDelete();
+            }
+        }, TAG).start();
+    }
+
+    /**
+     * Stops issuing new deletes. Contacts which were already removed from the SIM card are
+     * still removed from the provider so both sides stay consistent.
+     */
+    public void cancel() {
+        mCanceled = true;
+    }
+
+    private void runDelete() {
+        final ArrayList<Long> localIds = new ArrayList<Long>(mIds.length);
+        final ArrayList<Long> simIds = new ArrayList<Long>();
+        final ArrayList<Integer> simSubscriptions = new ArrayList<Integer>();
+        if (mCheckSim) {
+            partition(localIds, simIds, simSubscriptions);
+        } else {
+            for (long id : mIds) {
+                localIds.add(id);
+            }
+        }
+
+        Thread simWorker = null;
+        if (!simIds.isEmpty()) {
+            simWorker = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    deleteFromSim(simIds, simSubscriptions);
+                }
+            }, TAG + "-sim");
+            simWorker.start();
+        }
+
+        // Local contacts are deleted while the SIM worker is busy with the card.
+        final ArrayList<Long> chunk = new ArrayList<Long>(DELETE_CHUNK_SIZE);
+        for (int i = 0; i < localIds.size() && !mCanceled; i++) {
+            chunk.add(localIds.get(i));
+            if (chunk.size() == DELETE_CHUNK_SIZE) {
+                deleteChunk(chunk);
+            }
+        }
+        deleteChunk(chunk);
+
+        if (simWorker != null) {
+            drainSimDeletedIds(chunk);
+        }
+
+        final boolean canceled = mCanceled;
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mListener.onDeleteFinished(canceled);
+            }
+        });
+    }
+
+    /**
+     * Splits {@link #mIds} into SIM and non-SIM contacts with one raw contact query per
+     * chunk, instead of resolving the subscription of every contact individually.
+     */
+    private void partition(ArrayList<Long> localIds, ArrayList<Long> simIds,
+            ArrayList<Integer> simSubscriptions) {
+        final ArrayList<Long> chunk = new ArrayList<Long>(DELETE_CHUNK_SIZE);
+        for (int start = 0; start < mIds.length; start += DELETE_CHUNK_SIZE) {
+            chunk.clear();
+            final int end = Math.min(mIds.length, start + DELETE_CHUNK_SIZE);
+            for (int i = start; i < end; i++) {
+                chunk.add(mIds[i]);
+            }
+            final String selection = buildInSelection(RawContacts.CONTACT_ID, chunk)
+                    + " AND " + RawContacts.ACCOUNT_TYPE + "=?";
+            final Cursor cursor = mResolver.query(RawContacts.CONTENT_URI,
+                    SIM_PARTITION_PROJECTION, selection,
+                    new String[] { SimContactsConstants.ACCOUNT_TYPE_SIM }, null);
+            final HashSet<Long> simInChunk = new HashSet<Long>();
+            if (cursor != null) {
+                try {
+                    while (cursor.moveToNext()) {
+                        final long contactId = cursor.getLong(0);
+                        if (!simInChunk.add(contactId)) {
+                            continue;
+                        }
+                        simIds.add(contactId);
+                        simSubscriptions.add(
+                                SimContactsConstants.SIM_NAME_2.equals(cursor.getString(1))
+                                        ? SimContactsConstants.SUB_2
+                                        : SimContactsConstants.SUB_1);
+                    }
+                } finally {
+                    cursor.close();
+                }
+            }
+            for (Long id : chunk) {
+                if (!simInChunk.contains(id)) {
+                    localIds.add(id);
+                }
+            }
+        }
+    }
+
+    private void deleteFromSim(ArrayList<Long> simIds, ArrayList<Integer> simSubscriptions) {
+        final SimContactsOperation simOperation = new SimContactsOperation(mContext);
+        final SimCapacityCache simCapacityCache = SimCapacityCache.getInstance(mContext);
+        try {
+            for (int i = 0; i < simIds.size() && !mCanceled; i++) {
+                if (MoreContactUtils.isAPMOnAndSIMPowerDown(mContext)) {
+                    Log.w(TAG, "SIM powered down, stop deleting SIM contacts");
+                    break;
+                }
+                final long contactId = simIds.get(i);
+                final ContentValues values = simOperation.getSimAccountValues(contactId);
+                if (simOperation.delete(values, simSubscriptions.get(i)) == 0) {
+                    // The card refused the delete, keep the local copy.
+                    reportProgress(1);
+                    continue;
+                }
+                simCapacityCache.onContactDeleted(simSubscriptions.get(i));
+                mSimDeletedIds.add(contactId);
+            }
+        } finally {
+            mSimDeletedIds.add(END_OF_SIM_IDS);
+        }
+    }
+
+    /**
+     * Deletes the provider rows of contacts the SIM worker removed from the card, batching
+     * whatever has queued up since the last delete.
+     */
+    private void drainSimDeletedIds(ArrayList<Long> chunk) {
+        final ArrayList<Long> drained = new ArrayList<Long>(DELETE_CHUNK_SIZE);
+        boolean done = false;
+        while (!done) {
+            try {
+                drained.add(mSimDeletedIds.take());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            mSimDeletedIds.drainTo(drained, DELETE_CHUNK_SIZE - 1);
+            for (Long id : drained) {
+                if (id == END_OF_SIM_IDS) {
+                    done = true;
+                } else {
+                    chunk.add(id);
+                }
+            }
+            drained.clear();
+            deleteChunk(chunk);
+        }
+    }
+
+    private void deleteChunk(ArrayList<Long> ids) {
+        if (ids.isEmpty()) {
+            return;
+        }
+        try {
+            mResolver.delete(mUri, buildInSelection(mIdColumn, ids), null);
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Failed to delete " + ids.size() + " rows from " + mUri, e);
+        }
+        reportProgress(ids.size());
+        ids.clear();
+    }
+
+    private void reportProgress(int delta) {
+        final int processed = mProcessed.addAndGet(delta);
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mListener.onDeleteProgress(processed, mIds.length);
+            }
+        });
+    }
+
+    private static String buildInSelection(String column, ArrayList<Long> ids) {
+        final StringBuilder sb = new StringBuilder(column).append(" IN (");
+        for (int i = 0; i < ids.size(); i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(ids.get(i));
+        }
+        return sb.append(')').toString();
+    }
+}
@@ -38,30 +38,24 @@ import android.accounts.AccountManager;
 import android.content.AsyncQueryHandler;
 import android.content.BroadcastReceiver;
 import android.content.ContentResolver;
-import android.content.ContentValues;
 import android.content.Context;
-import android.content.ContentProviderOperation;
 import android.content.DialogInterface;
 import android.content.IntentFilter;
 import android.content.DialogInterface.OnCancelListener;
-import android.content.DialogInterface.OnClickListener;
 import android.content.Intent;
-import android.content.OperationApplicationException;
 import android.database.Cursor;
 import android.graphics.drawable.Drawable;
 import android.net.Uri;
 import android.net.Uri.Builder;
+import android.os.AsyncTask;
 import android.os.Bundle;
-import android.os.RemoteException;
-import android.provider.CallLog;
+import android.os.Handler;
 import android.provider.ContactsContract;
 import android.provider.CallLog.Calls;
 import android.provider.ContactsContract.CommonDataKinds.Email;
 import android.provider.ContactsContract.CommonDataKinds.Phone;
 import android.provider.ContactsContract.Contacts;
 import android.provider.ContactsContract.RawContacts;
-import android.provider.ContactsContract.Data;
-import android.provider.ContactsContract.CommonDataKinds.StructuredName;
 import android.telephony.PhoneNumberUtils;
 import android.telephony.TelephonyManager;
 import android.telephony.SubscriptionManager;
@@ -93,17 +87,14 @@ import com.android.contacts.R;
 import com.android.contacts.common.ContactPhotoManager;
 import com.android.contacts.common.ContactPhotoManager.DefaultImageRequest;
 import com.android.contacts.common.SimContactsConstants;
-import com.android.contacts.common.SimContactsOperation;
 import com.android.contacts.common.list.AccountFilterActivity;
 import com.android.contacts.common.list.ContactListFilter;
 import com.android.contacts.common.MoreContactUtils;
 import com.android.contacts.common.model.account.SimAccountType;
 
 import java.lang.ref.WeakReference;
-import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Set;
 
 public class MultiPickContactActivity extends ListActivity implements
         View.OnClickListener, TextView.OnEditorActionListener,
@@ -189,6 +180,8 @@ public class MultiPickContactActivity extends ListActivity implements
     private static final int EMAIL_COLUMN_ADDRESS = 2;
 
     private static final int QUERY_TOKEN = 42;
+    /** Delay between the last change of the search text and the query for it. */
+    private static final long FILTER_DELAY_MILLIS = 200;
     private static final int MODE_MASK_SEARCH = 0x80000000;
 
     private static final int MODE_DEFAULT_CONTACT = 0;
@@ -203,10 +196,34 @@ public class MultiPickContactActivity extends ListActivity implements
     private static final int MODE_SEARCH_SIM = MODE_DEFAULT_SIM | MODE_MASK_SEARCH;
 
     private static final int DIALOG_DEL_CALL = 1;
+
+    /**
+     * Boolean extra of a contact pick request. If true, the ids of the picked contacts are
+     * returned in {@link #EXTRA_CONTACT_IDS} instead of the result Bundle, which can get too
+     * large for a transaction with big selections.
+     */
+    public static final String EXTRA_IDS_ONLY = "ids_only";
+    /** Result extra holding the ids of the picked contacts, as a long array. */
+    public static final String EXTRA_CONTACT_IDS = "contact_ids";
+
     private ContactItemListAdapter mAdapter;
     private QueryHandler mQueryHandler;
-    private Bundle mChoiceSet;
-    private Bundle mBackupChoiceSet;
+    /** Sequence number of the last query started. Results of older queries are dropped. */
+    private int mQuerySequence;
+    /**
+     * Filter text of the query whose results are displayed if it found nothing, null
+     * otherwise.
+     */
+    private String mEmptyResultFilter;
+    private final Handler mHandler = new Handler();
+    private final Runnable mFilterRunnable = new Runnable() {
+        @Override
+        public void run() {
+            doFilter(mSearchEditor.getText());
+        }
+    };
+    private MultiPickSelection mChoiceSet;
+    private MultiPickSelection mBackupChoiceSet;
     private EditText mSearchEditor;
     private Button mOKButton;
     private Button mCancelButton;
@@ -217,7 +234,6 @@ public class MultiPickContactActivity extends ListActivity implements
     public static final String KEY_SELECT_CALLLOG = "selectcalllog";
 
     private ProgressDialog mProgressDialog;
-    private SimContactsOperation mSimContactsOperation;
     private Context mContext;
     private Intent mIntent;
     private AccountManager accountManager;
@@ -300,11 +316,10 @@ public class MultiPickContactActivity extends ListActivity implements
         }
 
         setContentView(R.layout.pick_contact);
-        mChoiceSet = new Bundle();
+        mChoiceSet = new MultiPickSelection();
         mAdapter = new ContactItemListAdapter(this);
         getListView().setAdapter(mAdapter);
         mQueryHandler = new QueryHandler(this);
-        mSimContactsOperation = new SimContactsOperation(this);
         mContext = getApplicationContext();
         accountManager = AccountManager.get(mContext);
         initResource();
@@ -361,41 +376,12 @@ public class MultiPickContactActivity extends ListActivity implements
         CheckBox checkBox = (CheckBox) v.findViewById(R.id.pick_contact_check);
         boolean isChecked = !checkBox.isChecked();
         checkBox.setChecked(isChecked);
+        mChoiceSet.setSelected(id, isChecked);
         if (isChecked) {
-            String[] value = null;
-            ContactItemCache cache = (ContactItemCache) v.getTag();
-            if (isPickContact()) {
-                value = new String[] {
-                        cache.lookupKey, String.valueOf(cache.id)
-                };
-            } else if (isPickPhone()) {
-                value = new String[] {
-                        cache.name, cache.number, cache.type,
-                        cache.label, cache.contact_id
-                };
-            } else if (isPickEmail()) {
-                value = new String[] {
-                        cache.name, cache.email
-                };
-            } else if (isPickSim()) {
-                value = new String[] {
-                        cache.name, cache.number, cache.email, cache.anrs
-                };
-            } else if (isPickCall()) {
-                if (mSelectCallLog) {
-                    value = new String[] {
-                            cache.name, cache.number
-                    };
-                }
-            }
-            mChoiceSet.putStringArray(String.valueOf(id), value);
-            if (!isSearchMode()) {
-                if (mChoiceSet.size() == mAdapter.getCount()) {
-                    mSelectAllCheckBox.setChecked(true);
-                }
+            if (!isSearchMode() && mChoiceSet.isAllSelected()) {
+                mSelectAllCheckBox.setChecked(true);
             }
         } else {
-            mChoiceSet.remove(String.valueOf(id));
             mSelectAllCheckBox.setChecked(false);
         }
         mOKButton.setText(getOKString());
@@ -415,7 +401,7 @@ public class MultiPickContactActivity extends ListActivity implements
     }
 
     private String getOKString() {
-        if (0 == mChoiceSet.size()) {
+        if (mChoiceSet.isEmpty()) {
             mOKButton.setEnabled(false);
         } else {
             mOKButton.setEnabled(true);
@@ -425,7 +411,7 @@ public class MultiPickContactActivity extends ListActivity implements
     }
 
     private void backupChoiceSet() {
-        mBackupChoiceSet = (Bundle) mChoiceSet.clone();
+        mBackupChoiceSet = mChoiceSet.copy();
     }
 
     private void restoreChoiceSet() {
@@ -484,130 +470,90 @@ public class MultiPickContactActivity extends ListActivity implements
         return super.onCreateDialog(id, bundle);
     }
 
-    private class DeleteContactsThread extends Thread
-            implements OnCancelListener, DialogInterface.OnClickListener {
-
-        boolean mCanceled = false;
-        private String name = null;
-        private String number = null;
-        final String[] PROJECTION = new String[] {
-                Phone.CONTACT_ID,
-                Phone.NUMBER,
-                Phone.DISPLAY_NAME
-        };
-        private final int COLUMN_NUMBER = 1;
-        private final int COLUMN_NAME = 2;
-
-        private ArrayList<ContentProviderOperation> mOpsCalls = null;
-
-        private ArrayList<ContentProviderOperation> mOpsContacts = null;
+    /**
+     * A long running operation driven by the progress dialog shown from
+     * {@link DeleteClickListener}.
+     */
+    private interface ProgressTask extends OnCancelListener, DialogInterface.OnClickListener {
+        void start();
+    }
 
-        public DeleteContactsThread() {
-        }
+    private class DeleteContactsTask implements ProgressTask, BulkContactDeleter.Listener {
+        private BulkContactDeleter mDeleter;
+        /** Lists the selected ids when all the items were selected. */
+        private AsyncTask<Void, Void, long[]> mIdsTask;
 
         @Override
-        public void run() {
-            final ContentResolver resolver = getContentResolver();
-
-            // The mChoiceSet object will change when activity restart, but
-            // DeleteContactsThread running in background, so we need clone the
-            // choiceSet to avoid ConcurrentModificationException.
-            Bundle choiceSet = (Bundle) mChoiceSet.clone();
-            Set<String> keySet = choiceSet.keySet();
-            Iterator<String> it = keySet.iterator();
-
-            android.content.ContentProviderOperation.Builder builder = null;
-
-            ContentProviderOperation cpo = null;
-
-            // Current contact count we can delete.
-            int count = 0;
-
-            // The contacts we batch delete once.
-            final int BATCH_DELETE_CONTACT_NUMBER = 100;
-
-            mOpsCalls = new ArrayList<ContentProviderOperation>();
-            mOpsContacts = new ArrayList<ContentProviderOperation>();
+        public void start() {
+            // Take a snapshot of the selection, mChoiceSet keeps changing with the UI while
+            // the deleter is running in the background.
+            final MultiPickSelection selection = mChoiceSet.copy();
+            if (!selection.needsAllIds()) {
+                startDeleter(selection.getSelectedIds());
+                return;
+            }
+            final AllItemsQuery query = new AllItemsQuery();
+            mIdsTask = new AsyncTask<Void, Void, long[]>() {
+                @Override
+                protected long[] doInBackground(Void... params) {
+                    return query.getSelectedIds(selection);
+                }
 
-            while (!mCanceled && it.hasNext()) {
-                String id = it.next();
-                Uri uri = null;
-                if (isPickCall()) {
-                    uri = Uri.withAppendedPath(Calls.CONTENT_URI, id);
-                    builder = ContentProviderOperation.newDelete(uri);
-                    cpo = builder.build();
-                    mOpsCalls.add(cpo);
-                } else {
-                    uri = Uri.withAppendedPath(Contacts.CONTENT_URI, id);
-                    long longId = Long.parseLong(id);
-                    int subscription =
-                            mSimContactsOperation.getSimSubscription(longId);
-
-                    if (subscription == SimContactsConstants.SUB_1
-                            || subscription == SimContactsConstants.SUB_2) {
-                        if (MoreContactUtils.isAPMOnAndSIMPowerDown(mContext)) {
-                            break;
-                        }
-                        ContentValues values =
-                                mSimContactsOperation.getSimAccountValues(longId);
-                        log("values is : " + values + "; sub is " + subscription);
-                        int result = mSimContactsOperation.delete(values, subscription);
-                        if (result == 0) {
-                            mProgressDialog.incrementProgressBy(1);
-                            continue;
-                        }
-                    }
-                    builder = ContentProviderOperation.newDelete(uri);
-                    cpo = builder.build();
-                    mOpsContacts.add(cpo);
+                @Override
+                protected void onPostExecute(long[] ids) {
+                    startDeleter(ids);
                 }
-                // If contacts more than 2000, delete all contacts
-                // one by one will cause UI nonresponse.
-                mProgressDialog.incrementProgressBy(1);
-                // We batch delete contacts every 100.
-                if (count % BATCH_DELETE_CONTACT_NUMBER == 0) {
-                    batchDelete();
+
+                @Override
+                protected void onCancelled(long[] ids) {
+                    onDeleteFinished(true);
                 }
-                count ++;
+            };
+            mIdsTask.execute();
+        }
+
+        private void startDeleter(long[] ids) {
+            if (isPickCall()) {
+                mDeleter = BulkContactDeleter.forUri(mContext, Calls.CONTENT_URI, Calls._ID,
+                        ids, this);
+            } else {
+                mDeleter = BulkContactDeleter.forContacts(mContext, ids, this);
             }
+            mDeleter.start();
+        }
 
-            batchDelete();
-            mOpsCalls = null;
-            mOpsContacts = null;
-            Log.d(TAG, "DeleteContactsThread run, progress:" + mProgressDialog.getProgress());
-            mProgressDialog.dismiss();
-            finish();
+        @Override
+        public void onDeleteProgress(int processed, int total) {
+            mProgressDialog.setProgress(processed);
         }
 
-        /**
-         * Batch delete contacts more efficient than one by one.
-         */
-        private void batchDelete() {
-            try {
-                 mContext.getContentResolver().applyBatch(CallLog.AUTHORITY, mOpsCalls);
-                 mContext.getContentResolver().applyBatch(ContactsContract.AUTHORITY, mOpsContacts);
-                 mOpsCalls.clear();
-                 mOpsContacts.clear();
-             } catch (RemoteException e) {
-                 e.printStackTrace();
-             } catch (OperationApplicationException e) {
-                 e.printStackTrace();
-             }
+        @Override
+        public void onDeleteFinished(boolean canceled) {
+            Log.d(TAG, "DeleteContactsTask finished, canceled:" + canceled + ", progress:"
+                    + mProgressDialog.getProgress());
+            mProgressDialog.dismiss();
+            finish();
         }
 
         public void onCancel(DialogInterface dialog) {
-            mCanceled = true;
-            Log.d(TAG, "DeleteContactsThread onCancel, progress:" + mProgressDialog.getProgress());
-            //  Give a toast show to tell user delete termination
+            cancel();
+            Log.d(TAG, "DeleteContactsTask onCancel, progress:" + mProgressDialog.getProgress());
         }
 
         public void onClick(DialogInterface dialog, int which) {
             if (which == DialogInterface.BUTTON_NEGATIVE) {
-                mCanceled = true;
+                cancel();
                 mProgressDialog.dismiss();
             }
         }
 
+        private void cancel() {
+            if (mDeleter != null) {
+                mDeleter.cancel();
+            } else if (mIdsTask != null) {
+                mIdsTask.cancel(false);
+            }
+        }
     }
 
     private class DeleteClickListener implements DialogInterface.OnClickListener {
@@ -626,11 +572,11 @@ public class MultiPickContactActivity extends ListActivity implements
                 message = getString(R.string.delete_contacts_message);
             }
 
-            Thread thread;
+            ProgressTask task;
             if (isPickSim()) {
-                thread = new ImportAllSimContactsThread();
+                task = new ImportAllSimContactsThread();
             } else {
-                thread = new DeleteContactsThread();
+                task = new DeleteContactsTask();
             }
 
             DialogInterface.OnKeyListener keyListener = new DialogInterface.OnKeyListener() {
@@ -650,8 +596,8 @@ public class MultiPickContactActivity extends ListActivity implements
             mProgressDialog.setMessage(message);
             mProgressDialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
             mProgressDialog.setButton(DialogInterface.BUTTON_NEGATIVE,
-                    getString(R.string.btn_cancel), (OnClickListener) thread);
-            mProgressDialog.setOnCancelListener((OnCancelListener) thread);
+                    getString(R.string.btn_cancel), task);
+            mProgressDialog.setOnCancelListener(task);
             mProgressDialog.setOnKeyListener(keyListener);
             mProgressDialog.setProgress(0);
             mProgressDialog.setMax(mChoiceSet.size());
@@ -661,7 +607,7 @@ public class MultiPickContactActivity extends ListActivity implements
             mProgressDialog.setCanceledOnTouchOutside(false);
             mProgressDialog.show();
 
-            thread.start();
+            task.start();
         }
     }
 
@@ -681,43 +627,23 @@ public class MultiPickContactActivity extends ListActivity implements
                                             MAX_CONTACTS_NUM_TO_SELECT_ONCE), Toast.LENGTH_SHORT)
                                     .show();
                         } else {
-                            Intent intent = new Intent();
-                            Bundle bundle = new Bundle();
-                            bundle.putBundle(SimContactsConstants.RESULT_KEY, mChoiceSet);
-                            intent.putExtras(bundle);
-                            this.setResult(RESULT_OK, intent);
-                            finish();
+                            returnSelection();
                         }
-                    } else if (mChoiceSet.size() > 0) {
+                    } else if (!mChoiceSet.isEmpty()) {
                         showDialog(R.id.dialog_delete_contact_confirmation);
                     }
                 } else if (mMode == MODE_DEFAULT_PHONE) {
-                    Intent intent = new Intent();
-                    Bundle bundle = new Bundle();
-                    bundle.putBundle(SimContactsConstants.RESULT_KEY, mChoiceSet);
-                    intent.putExtras(bundle);
-                    this.setResult(RESULT_OK, intent);
-                    finish();
+                    returnSelection();
                 } else if (mMode == MODE_DEFAULT_SIM) {
-                    if (mChoiceSet.size() > 0) {
+                    if (!mChoiceSet.isEmpty()) {
                         showDialog(R.id.dialog_import_sim_contact_confirmation);
                     }
                 } else if (mMode == MODE_DEFAULT_EMAIL) {
-                    Intent intent = new Intent();
-                    Bundle bundle = new Bundle();
-                    bundle.putBundle(SimContactsConstants.RESULT_KEY, mChoiceSet);
-                    intent.putExtras(bundle);
-                    this.setResult(RESULT_OK, intent);
-                    finish();
+                    returnSelection();
                 } else if (mMode == MODE_DEFAULT_CALL) {
-                    if (mChoiceSet.size() > 0) {
+                    if (!mChoiceSet.isEmpty()) {
                         if (mSelectCallLog) {
-                            Intent intent = new Intent();
-                            Bundle bundle = new Bundle();
-                            bundle.putBundle(SimContactsConstants.RESULT_KEY, mChoiceSet);
-                            intent.putExtras(bundle);
-                            this.setResult(RESULT_OK, intent);
-                            finish();
+                            returnSelection();
                         } else {
                             showDialog(DIALOG_DEL_CALL);
                         }
@@ -747,7 +673,8 @@ public class MultiPickContactActivity extends ListActivity implements
 
     @Override
     public void onDestroy() {
-        mQueryHandler.removeCallbacksAndMessages(QUERY_TOKEN);
+        mHandler.removeCallbacks(mFilterRunnable);
+        cancelPendingQueries();
         if (mAdapter.getCursor() != null) {
             mAdapter.getCursor().close();
         }
@@ -956,6 +883,10 @@ public class MultiPickContactActivity extends ListActivity implements
     }
 
     public void startQuery() {
+        startQuery(null, getUnfilteredUri());
+    }
+
+    private Uri getUnfilteredUri() {
         Uri uri = getUriToQuery();
         ContactListFilter filter = (ContactListFilter) getIntent().getExtra(
                           AccountFilterActivity.KEY_EXTRA_CONTACT_LIST_FILTER);
@@ -977,11 +908,25 @@ public class MultiPickContactActivity extends ListActivity implements
                 }
             }
         }
+        return uri;
+    }
+
+    private void startQuery(String filterText, Uri uri) {
+        cancelPendingQueries();
         String[] projection = getProjectionForQuery();
         String selection = getSelectionForQuery();
         String[] selectionArgs = getSelectionArgsForQuery();
-        mQueryHandler.startQuery(QUERY_TOKEN, null, uri, projection, selection,
-                selectionArgs, getSortOrder(projection));
+        mQueryHandler.startQuery(QUERY_TOKEN, new QueryCookie(mQuerySequence, filterText), uri,
+                projection, selection, selectionArgs, getSortOrder(projection));
+    }
+
+    /**
+     * Cancels the queries that haven't reached the provider yet, and makes sure that the
+     * results of the ones that already did are dropped.
+     */
+    private void cancelPendingQueries() {
+        mQueryHandler.cancelOperation(QUERY_TOKEN);
+        mQuerySequence++;
     }
 
     @Override
@@ -993,7 +938,14 @@ public class MultiPickContactActivity extends ListActivity implements
         } else if (isSearchMode()) {
             exitSearchMode(true);
         }
-        doFilter(s);
+        // Only query once the user pauses typing. Clearing the text shows all the items again
+        // right away.
+        mHandler.removeCallbacks(mFilterRunnable);
+        if (TextUtils.isEmpty(s)) {
+            doFilter(s);
+        } else {
+            mHandler.postDelayed(mFilterRunnable, FILTER_DELAY_MILLIS);
+        }
     }
 
     @Override
@@ -1005,20 +957,46 @@ public class MultiPickContactActivity extends ListActivity implements
     }
 
     public void doFilter(Editable s) {
+        mHandler.removeCallbacks(mFilterRunnable);
         if (TextUtils.isEmpty(s)) {
             startQuery();
             return;
         }
 
-        Uri uri = Uri.withAppendedPath(getFilterUri(), Uri.encode(s.toString()));
-        String[] projection = getProjectionForQuery();
-        String selection = getSelectionForQuery();
-        String[] selectionArgs = getSelectionArgsForQuery();
-        mQueryHandler.startQuery(QUERY_TOKEN, null, uri, projection, selection,
-                selectionArgs, getSortOrder(projection));
+        String filterText = s.toString();
+        if (mEmptyResultFilter != null && filterText.startsWith(mEmptyResultFilter)
+                && isPrefixOnlyFilter(filterText)) {
+            // The provider matches the filter by prefix, so narrowing down a filter that found
+            // nothing can't find anything either. Keep the empty results on display.
+            cancelPendingQueries();
+            return;
+        }
+        Uri uri = Uri.withAppendedPath(getFilterUri(), Uri.encode(filterText));
+        startQuery(filterText, uri);
+    }
+
+    /**
+     * Returns true if the provider only matches {@param filterText} by prefix, so that a longer
+     * filter can't match more than a shorter one. That isn't the case for phone numbers: they
+     * are also matched on their E.164 form, which only exists once the number is complete.
+     */
+    private boolean isPrefixOnlyFilter(String filterText) {
+        final int mode = mMode & ~MODE_MASK_SEARCH;
+        if (mode != MODE_DEFAULT_CONTACT && mode != MODE_DEFAULT_EMAIL) {
+            return false;
+        }
+        for (int i = 0; i < filterText.length(); i++) {
+            final char c = filterText.charAt(i);
+            if (!Character.isLetter(c) && !Character.isWhitespace(c)) {
+                return false;
+            }
+        }
+        return true;
     }
 
     public void updateContent() {
+        // The data changed, the results of previous queries can't be reused.
+        mEmptyResultFilter = null;
         if (isSearchMode()) {
             doFilter(mSearchEditor.getText());
         } else {
@@ -1057,69 +1035,14 @@ public class MultiPickContactActivity extends ListActivity implements
     }
 
     private void selectAll(boolean isSelected) {
-        // update mChoiceSet.
-        // TODO: make it more efficient
-        Cursor cursor = mAdapter.getCursor();
-        if (cursor == null) {
+        if (mAdapter.getCursor() == null) {
             log("cursor is null.");
             return;
         }
-
-        cursor.moveToPosition(-1);
-        while (cursor.moveToNext()) {
-            String id = null;
-            String[] value = null;
-            if (isPickContact()) {
-                id = String.valueOf(cursor.getLong(SUMMARY_ID_COLUMN_INDEX));
-                value = new String[] {
-                        cursor.getString(SUMMARY_LOOKUP_KEY_COLUMN_INDEX), id
-                };
-            } else if (isPickPhone()) {
-                id = String.valueOf(cursor.getLong(PHONE_COLUMN_ID));
-                String name = cursor.getString(PHONE_COLUMN_DISPLAY_NAME);
-                String number = cursor.getString(PHONE_COLUMN_NUMBER);
-                String type = String.valueOf(cursor.getInt(PHONE_COLUMN_TYPE));
-                String label = cursor.getString(PHONE_COLUMN_LABEL);
-                String contact_id = String.valueOf(cursor.getLong(PHONE_COLUMN_CONTACT_ID));
-                value = new String[] {
-                        name, number, type, label, contact_id
-                };
-            } else if (isPickEmail()) {
-                id = String.valueOf(cursor.getLong(EMAIL_COLUMN_ID));
-                String name = cursor.getString(EMAIL_COLUMN_DISPLAY_NAME);
-                String email = cursor.getString(EMAIL_COLUMN_ADDRESS);
-                value = new String[] {
-                        name, email, id
-                };
-            } else if (isPickCall()) {
-                if (mSelectCallLog) {
-                    id = String.valueOf(cursor.getLong(ID_COLUMN_INDEX));
-                    String number = cursor.getString(NUMBER_COLUMN_INDEX);
-                    String name = cursor.getString(CALLER_NAME_COLUMN_INDEX);
-                    value = new String[] {
-                            name, number
-                    };
-                } else {
-                    id = String.valueOf(cursor.getLong(ID_COLUMN_INDEX));
-                    value = new String[] {
-                            id
-                    };
-                }
-            } else if (isPickSim()) {
-                id = String.valueOf(cursor.getLong(SIM_COLUMN_ID));
-                String name = cursor.getString(SIM_COLUMN_DISPLAY_NAME);
-                String number = cursor.getString(SIM_COLUMN_NUMBER);
-                String email = cursor.getString(SIM_COLUMN_EMAILS);
-                String anrs = cursor.getString(SIM_COLUMN_ANRS);
-                value = new String[] {
-                        name, number, email, anrs
-                };
-            }
-            if (isSelected) {
-                mChoiceSet.putStringArray(id, value);
-            } else {
-                mChoiceSet.remove(id);
-            }
+        if (isSelected) {
+            mChoiceSet.selectAll();
+        } else {
+            mChoiceSet.clear();
         }
 
         // update UI items.
@@ -1133,6 +1056,236 @@ public class MultiPickContactActivity extends ListActivity implements
         }
     }
 
+    private int getIdColumnIndex() {
+        if (isPickContact()) {
+            return SUMMARY_ID_COLUMN_INDEX;
+        } else if (isPickPhone()) {
+            return PHONE_COLUMN_ID;
+        } else if (isPickEmail()) {
+            return EMAIL_COLUMN_ID;
+        } else if (isPickCall()) {
+            return ID_COLUMN_INDEX;
+        } else if (isPickSim()) {
+            return SIM_COLUMN_ID;
+        }
+        throw new IllegalStateException("getIdColumnIndex: Incorrect mode: " + mMode);
+    }
+
+    /**
+     * Returns the data handed back to the caller for the item at the current position of
+     * {@code cursor}.
+     */
+    private String[] getResultValue(Cursor cursor) {
+        if (isPickContact()) {
+            return new String[] {
+                    cursor.getString(SUMMARY_LOOKUP_KEY_COLUMN_INDEX),
+                    String.valueOf(cursor.getLong(SUMMARY_ID_COLUMN_INDEX))
+            };
+        } else if (isPickPhone()) {
+            return new String[] {
+                    cursor.getString(PHONE_COLUMN_DISPLAY_NAME),
+                    cursor.getString(PHONE_COLUMN_NUMBER),
+                    String.valueOf(cursor.getInt(PHONE_COLUMN_TYPE)),
+                    cursor.getString(PHONE_COLUMN_LABEL),
+                    String.valueOf(cursor.getLong(PHONE_COLUMN_CONTACT_ID))
+            };
+        } else if (isPickEmail()) {
+            return new String[] {
+                    cursor.getString(EMAIL_COLUMN_DISPLAY_NAME),
+                    cursor.getString(EMAIL_COLUMN_ADDRESS),
+                    String.valueOf(cursor.getLong(EMAIL_COLUMN_ID))
+            };
+        } else if (isPickCall()) {
+            if (mSelectCallLog) {
+                return new String[] {
+                        cursor.getString(CALLER_NAME_COLUMN_INDEX),
+                        cursor.getString(NUMBER_COLUMN_INDEX)
+                };
+            }
+            return new String[] {
+                    String.valueOf(cursor.getLong(ID_COLUMN_INDEX))
+            };
+        } else if (isPickSim()) {
+            return new String[] {
+                    cursor.getString(SIM_COLUMN_DISPLAY_NAME),
+                    cursor.getString(SIM_COLUMN_NUMBER),
+                    cursor.getString(SIM_COLUMN_EMAILS),
+                    cursor.getString(SIM_COLUMN_ANRS)
+            };
+        }
+        return null;
+    }
+
+    /**
+     * Reads the data of the selected items in the background, and finishes the activity with
+     * it as the result.
+     */
+    private void returnSelection() {
+        mOKButton.setEnabled(false);
+        final MultiPickSelection selection = mChoiceSet.copy();
+        if (isPickContact() && getIntent().getBooleanExtra(EXTRA_IDS_ONLY, false)) {
+            if (!selection.needsAllIds()) {
+                returnContactIds(selection.getSelectedIds());
+                return;
+            }
+            final AllItemsQuery query = new AllItemsQuery();
+            new AsyncTask<Void, Void, long[]>() {
+                @Override
+                protected long[] doInBackground(Void... params) {
+                    return query.getSelectedIds(selection);
+                }
+
+                @Override
+                protected void onPostExecute(long[] ids) {
+                    returnContactIds(ids);
+                }
+            }.execute();
+            return;
+        }
+        final AllItemsQuery query = new AllItemsQuery();
+        new AsyncTask<Void, Void, Bundle>() {
+            @Override
+            protected Bundle doInBackground(Void... params) {
+                return query.getSelectedValues(selection);
+            }
+
+            @Override
+            protected void onPostExecute(Bundle values) {
+                Intent intent = new Intent();
+                Bundle bundle = new Bundle();
+                bundle.putBundle(SimContactsConstants.RESULT_KEY, values);
+                intent.putExtras(bundle);
+                setResult(RESULT_OK, intent);
+                finish();
+            }
+        }.execute();
+    }
+
+    private void returnContactIds(long[] ids) {
+        Intent intent = new Intent();
+        intent.putExtra(EXTRA_CONTACT_IDS, ids);
+        setResult(RESULT_OK, intent);
+        finish();
+    }
+
+    /**
+     * Query for all the items of the list, regardless of the search text. The selection
+     * only holds ids, this is used to read the data of the selected items once they are
+     * confirmed. Must be created on the UI thread, and run in the background.
+     */
+    private final class AllItemsQuery {
+        /** Maximum number of ids in one {@link #queryIds} selection. */
+        private static final int IDS_CHUNK_SIZE = 500;
+
+        private final Uri mUri = getUnfilteredUri();
+        private final String[] mProjection = getProjectionForQuery();
+        private final String mSelection = getSelectionForQuery();
+        private final String[] mSelectionArgs = getSelectionArgsForQuery();
+        private final String mSortOrder = getSortOrder(mProjection);
+        private final int mIdColumn = getIdColumnIndex();
+        /** Null for the SIM, whose provider doesn't support selections. */
+        private final Uri mIdsUri = isPickSim() ? null : getUriToQuery();
+
+        public Cursor query() {
+            return getContentResolver().query(mUri, mProjection, mSelection, mSelectionArgs,
+                    mSortOrder);
+        }
+
+        /**
+         * Queries the items whose id is in {@param ids} from {@param start} to {@param end}.
+         * The selection of the list isn't applied: items picked from search results must be
+         * found even if the unfiltered list doesn't show them.
+         */
+        private Cursor queryIds(long[] ids, int start, int end) {
+            final StringBuilder selection = new StringBuilder(mProjection[mIdColumn])
+                    .append(" IN (");
+            for (int i = start; i < end; i++) {
+                if (i > start) {
+                    selection.append(',');
+                }
+                selection.append(ids[i]);
+            }
+            selection.append(')');
+            return getContentResolver().query(mIdsUri, mProjection, selection.toString(), null,
+                    null);
+        }
+
+        public long[] getSelectedIds(MultiPickSelection selection) {
+            Cursor cursor = query();
+            if (cursor == null) {
+                return new long[0];
+            }
+            try {
+                long[] ids = new long[selection.size()];
+                int count = 0;
+                while (cursor.moveToNext()) {
+                    long id = cursor.getLong(mIdColumn);
+                    if (selection.isSelected(id)) {
+                        if (count == ids.length) {
+                            ids = Arrays.copyOf(ids, count * 2 + 1);
+                        }
+                        ids[count++] = id;
+                    }
+                }
+                return count == ids.length ? ids : Arrays.copyOf(ids, count);
+            } finally {
+                cursor.close();
+            }
+        }
+
+        /**
+         * Returns the {@link #getResultValue values} of the selected items, keyed by id.
+         */
+        public Bundle getSelectedValues(MultiPickSelection selection) {
+            Bundle values = new Bundle();
+            if (!selection.needsAllIds() && mIdsUri != null) {
+                final long[] ids = selection.getSelectedIds();
+                for (int start = 0; start < ids.length; start += IDS_CHUNK_SIZE) {
+                    final Cursor cursor = queryIds(ids, start,
+                            Math.min(ids.length, start + IDS_CHUNK_SIZE));
+                    if (cursor == null) {
+                        continue;
+                    }
+                    try {
+                        while (cursor.moveToNext()) {
+                            values.putStringArray(String.valueOf(cursor.getLong(mIdColumn)),
+                                    getResultValue(cursor));
+                        }
+                    } finally {
+                        cursor.close();
+                    }
+                }
+                return values;
+            }
+            Cursor cursor = query();
+            if (cursor == null) {
+                return values;
+            }
+            try {
+                while (cursor.moveToNext()) {
+                    long id = cursor.getLong(mIdColumn);
+                    if (selection.isSelected(id)) {
+                        values.putStringArray(String.valueOf(id), getResultValue(cursor));
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+            return values;
+        }
+    }
+
+    private static final class QueryCookie {
+        final int sequence;
+        /** The filter text of the query, or null if the query isn't filtered. */
+        final String filterText;
+
+        QueryCookie(int sequence, String filterText) {
+            this.sequence = sequence;
+            this.filterText = filterText;
+        }
+    }
+
     private class QueryHandler extends AsyncQueryHandler {
         protected WeakReference<MultiPickContactActivity> mActivity;
 
@@ -1151,6 +1304,16 @@ public class MultiPickContactActivity extends ListActivity implements
                         MultiPickContactActivity.this);
             }
             final MultiPickContactActivity activity = mActivity.get();
+            final QueryCookie query = (QueryCookie) cookie;
+            if (query.sequence != activity.mQuerySequence) {
+                // A newer query was started since, or the activity is being destroyed.
+                if (cursor != null) {
+                    cursor.close();
+                }
+                return;
+            }
+            activity.mEmptyResultFilter = cursor != null && cursor.getCount() == 0
+                    ? query.filterText : null;
             activity.mAdapter.changeCursor(cursor);
             if (cursor == null || cursor.getCount() == 0) {
                 Toast.makeText(mContext, R.string.listFoundAllContactsZero,
@@ -1327,7 +1490,7 @@ public class MultiPickContactActivity extends ListActivity implements
             }
 
             CheckBox checkBox = (CheckBox) view.findViewById(R.id.pick_contact_check);
-            if (mChoiceSet.containsKey(String.valueOf(cache.id))) {
+            if (mChoiceSet.isSelected(cache.id)) {
                 checkBox.setChecked(true);
             } else {
                 checkBox.setChecked(false);
@@ -1373,6 +1536,7 @@ public class MultiPickContactActivity extends ListActivity implements
         public void changeCursor(Cursor cursor) {
             super.changeCursor(cursor);
             if (!isSearchMode()) {
+                mChoiceSet.setTotalCount(cursor == null ? 0 : cursor.getCount());
                 if (cursor == null || cursor.getCount() == 0) {
                     mSelectAllCheckBox.setChecked(false);
                     mSelectAllLabel.setEnabled(false);
@@ -1380,11 +1544,7 @@ public class MultiPickContactActivity extends ListActivity implements
                 } else {
                     mSelectAllLabel.setEnabled(true);
                     mSelectAllCheckBox.setClickable(true);
-                    if (cursor.getCount() > mChoiceSet.size()) {
-                        mSelectAllCheckBox.setChecked(false);
-                    } else {
-                        mSelectAllCheckBox.setChecked(true);
-                    }
+                    mSelectAllCheckBox.setChecked(mChoiceSet.isAllSelected());
                 }
             }
         }
@@ -1449,8 +1609,7 @@ public class MultiPickContactActivity extends ListActivity implements
                 .getAccountsByType(SimContactsConstants.ACCOUNT_TYPE_SIM);
     }
 
-    private class ImportAllSimContactsThread extends Thread
-            implements OnCancelListener, DialogInterface.OnClickListener {
+    private class ImportAllSimContactsThread extends Thread implements ProgressTask {
         boolean mCanceled = false;
         // The total count how many to import.
         private int mTotalCount = 0;
@@ -1458,13 +1617,14 @@ public class MultiPickContactActivity extends ListActivity implements
         private int mActualCount = 0;
 
         private Account mAccount;
+        private final MultiPickSelection mSelection = mChoiceSet.copy();
+        private final AllItemsQuery mQuery = new AllItemsQuery();
 
         public ImportAllSimContactsThread() {
         }
 
         @Override
         public void run() {
-            final ContentValues emptyContentValues = new ContentValues();
             final ContentResolver resolver = mContext.getContentResolver();
 
             String type = getIntent().getStringExtra(SimContactsConstants.ACCOUNT_TYPE);
@@ -1473,16 +1633,40 @@ public class MultiPickContactActivity extends ListActivity implements
                     type != null ? type
                             : SimContactsConstants.ACCOUNT_TYPE_PHONE);
             log("import sim contact to account: " + mAccount);
-            Set<String> keySet = mChoiceSet.keySet();
-            mTotalCount = keySet.size();
-            Iterator<String> it = keySet.iterator();
-            while (!mCanceled && it.hasNext()) {
-                String key = it.next();
-                String[] values = mChoiceSet.getStringArray(key);
-                actuallyImportOneSimContact(values, resolver, mAccount);
-                mActualCount++;
-                mProgressDialog.incrementProgressBy(1);
+            mTotalCount = mSelection.size();
+            SimContactImporter importer = new SimContactImporter(resolver, mAccount);
+            // The rows are read here rather than from the list's cursor, which belongs to the UI
+            // thread. This doesn't access the card again: the phone process serves the ADN from
+            // the records it cached when the list was loaded.
+            Cursor cursor = mQuery.query();
+            if (cursor != null) {
+                try {
+                    while (!mCanceled && cursor.moveToNext()) {
+                        if (!mSelection.isSelected(cursor.getLong(SIM_COLUMN_ID))) {
+                            continue;
+                        }
+                        importer.add(cursor.getString(SIM_COLUMN_DISPLAY_NAME),
+                                cursor.getString(SIM_COLUMN_NUMBER),
+                                cursor.getString(SIM_COLUMN_EMAILS),
+                                cursor.getString(SIM_COLUMN_ANRS));
+                        mActualCount++;
+                        mProgressDialog.incrementProgressBy(1);
+                    }
+                } finally {
+                    cursor.close();
+                }
+            }
+            finishImport(importer);
+        }
+
+        private void finishImport(SimContactImporter importer) {
+            importer.finish();
+            if (importer.getImportedCount() < mActualCount) {
+                Log.w(TAG, "Only imported " + importer.getImportedCount() + " of "
+                        + mActualCount + " SIM contacts");
             }
+            // Count the contacts that made it, not the ones that were read from the SIM.
+            mActualCount = importer.getImportedCount();
             finish();
         }
 
@@ -1505,84 +1689,6 @@ public class MultiPickContactActivity extends ListActivity implements
         }
     }
 
-    private static void actuallyImportOneSimContact(
-            String[] values, final ContentResolver resolver, Account account) {
-
-        final String name = values[SIM_COLUMN_DISPLAY_NAME];
-        final String phoneNumber = values[SIM_COLUMN_NUMBER];
-        final String emailAddresses = values[SIM_COLUMN_EMAILS];
-        final String anrs = values[SIM_COLUMN_ANRS];
-        final String[] emailAddressArray;
-        final String[] anrArray;
-        if (!TextUtils.isEmpty(emailAddresses)) {
-            emailAddressArray = emailAddresses.split(",");
-        } else {
-            emailAddressArray = null;
-        }
-        if (!TextUtils.isEmpty(anrs)) {
-            anrArray = anrs.split(",");
-        } else {
-            anrArray = null;
-        }
-        log(" actuallyImportOneSimContact: name= " + name +
-                ", phoneNumber= " + phoneNumber + ", emails= " + emailAddresses
-                + ", anrs= " + anrs + ", account is " + account);
-        final ArrayList<ContentProviderOperation> operationList =
-                new ArrayList<ContentProviderOperation>();
-        ContentProviderOperation.Builder builder =
-                ContentProviderOperation.newInsert(RawContacts.CONTENT_URI);
-        builder.withValue(RawContacts.AGGREGATION_MODE, RawContacts.AGGREGATION_MODE_SUSPENDED);
-        if (account != null) {
-            builder.withValue(RawContacts.ACCOUNT_NAME, account.name);
-            builder.withValue(RawContacts.ACCOUNT_TYPE, account.type);
-        }
-        operationList.add(builder.build());
-
-        builder = ContentProviderOperation.newInsert(Data.CONTENT_URI);
-        builder.withValueBackReference(StructuredName.RAW_CONTACT_ID, 0);
-        builder.withValue(Data.MIMETYPE, StructuredName.CONTENT_ITEM_TYPE);
-        builder.withValue(StructuredName.DISPLAY_NAME, name);
-        operationList.add(builder.build());
-
-        builder = ContentProviderOperation.newInsert(Data.CONTENT_URI);
-        builder.withValueBackReference(Phone.RAW_CONTACT_ID, 0);
-        builder.withValue(Data.MIMETYPE, Phone.CONTENT_ITEM_TYPE);
-        builder.withValue(Phone.TYPE, Phone.TYPE_MOBILE);
-        builder.withValue(Phone.NUMBER, phoneNumber);
-        builder.withValue(Data.IS_PRIMARY, 1);
-        operationList.add(builder.build());
-
-        if (anrArray != null) {
-            for (String anr : anrArray) {
-                builder = ContentProviderOperation.newInsert(Data.CONTENT_URI);
-                builder.withValueBackReference(Phone.RAW_CONTACT_ID, 0);
-                builder.withValue(Data.MIMETYPE, Phone.CONTENT_ITEM_TYPE);
-                builder.withValue(Phone.TYPE, Phone.TYPE_HOME);
-                builder.withValue(Phone.NUMBER, anr);
-                operationList.add(builder.build());
-            }
-        }
-
-        if (emailAddresses != null) {
-            for (String emailAddress : emailAddressArray) {
-                builder = ContentProviderOperation.newInsert(Data.CONTENT_URI);
-                builder.withValueBackReference(Email.RAW_CONTACT_ID, 0);
-                builder.withValue(Data.MIMETYPE, Email.CONTENT_ITEM_TYPE);
-                builder.withValue(Email.TYPE, Email.TYPE_MOBILE);
-                builder.withValue(Email.ADDRESS, emailAddress);
-                operationList.add(builder.build());
-            }
-        }
-
-        try {
-            resolver.applyBatch(ContactsContract.AUTHORITY, operationList);
-        } catch (RemoteException e) {
-            log(String.format("%s: %s", e.toString(), e.getMessage()));
-        } catch (OperationApplicationException e) {
-            log(String.format("%s: %s", e.toString(), e.getMessage()));
-        }
-    }
-
     /**
      * After turn on airplane mode, cancel import sim contacts operation.
      */
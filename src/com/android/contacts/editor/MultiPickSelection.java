@@ -0,0 +1,131 @@
+/**
+ * Copyright (C) 2014, The Linux Foundation. All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *     * Neither the name of The Linux Foundation nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.android.contacts.editor;
+
+import com.android.contacts.util.LongHashSet;
+
+/**
+ * The items selected in {@link MultiPickContactActivity}, identified by their row id.
+ *
+ * After {@link #selectAll}, the selection is stored as the set of ids that were deselected
+ * since, so selecting all the items of a large list doesn't need to enumerate them. The
+ * data of the selected items is only read when the selection is confirmed.
+ */
+public class MultiPickSelection {
+    /** The selected ids, or the deselected ones if {@link #mAllSelected}. */
+    private final LongHashSet mIds;
+    private boolean mAllSelected;
+    /** Number of items in the list, only used to compute the size of the selection. */
+    private int mTotalCount;
+
+    public MultiPickSelection() {
+        mIds = new LongHashSet();
+    }
+
+    private MultiPickSelection(MultiPickSelection other) {
+        mIds = new LongHashSet(other.mIds.size());
+        mIds.addAll(other.mIds.toArray());
+        mAllSelected = other.mAllSelected;
+        mTotalCount = other.mTotalCount;
+    }
+
+    public MultiPickSelection copy() {
+        return new MultiPickSelection(this);
+    }
+
+    /**
+     * Sets the number of items in the unfiltered list.
+     */
+    public void setTotalCount(int totalCount) {
+        mTotalCount = totalCount;
+    }
+
+    public boolean isSelected(long id) {
+        return mIds.contains(id) != mAllSelected;
+    }
+
+    public void setSelected(long id, boolean selected) {
+        if (selected != mAllSelected) {
+            mIds.add(id);
+        } else {
+            mIds.remove(id);
+        }
+    }
+
+    /**
+     * Selects all the items of the list, including the ones added to it later on.
+     */
+    public void selectAll() {
+        mIds.clear();
+        mAllSelected = true;
+    }
+
+    public void clear() {
+        mIds.clear();
+        mAllSelected = false;
+    }
+
+    /**
+     * Returns true if all the items of the list are selected.
+     */
+    public boolean isAllSelected() {
+        return mAllSelected ? mIds.isEmpty() : mIds.size() >= mTotalCount && mTotalCount > 0;
+    }
+
+    /**
+     * Returns the number of selected items.
+     */
+    public int size() {
+        return mAllSelected ? Math.max(0, mTotalCount - mIds.size()) : mIds.size();
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * Returns true if the selected ids can't be listed without going through all the items of
+     * the list and checking them with {@link #isSelected}.
+     */
+    public boolean needsAllIds() {
+        return mAllSelected;
+    }
+
+    /**
+     * Returns the selected ids. Must not be called if {@link #needsAllIds()}.
+     */
+    public long[] getSelectedIds() {
+        if (mAllSelected) {
+            throw new IllegalStateException("The ids of all the items are needed");
+        }
+        return mIds.toArray();
+    }
+}
@@ -0,0 +1,444 @@
+/**
+ * Copyright (C) 2014, The Linux Foundation. All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *     * Neither the name of The Linux Foundation nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+
+package com.android.contacts.editor;
+
+import android.accounts.Account;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.provider.ContactsContract.CommonDataKinds.Email;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.provider.ContactsContract.Data;
+import android.telephony.TelephonyManager;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.android.contacts.common.MoreContactUtils;
+import com.android.contacts.common.SimContactsConstants;
+import com.android.contacts.common.SimContactsOperation;
+import com.android.contacts.util.SimCapacityCache;
+
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Exports contacts to the SIM card in a given slot, off the UI thread.
+ *
+ * <p>Only the ids of the contacts are kept in memory. A reader reads the names, phone numbers
+ * and email addresses of the contacts from the provider a page of contacts at a time, and
+ * hands the resulting SIM entries over to a writer through a small bounded queue, so the
+ * reader never gets far ahead of the (much slower) ICC writes. The writer stops as soon as
+ * the card is full. Exported entries are also added to the SIM account of the slot, the way
+ * contacts created on the SIM from the editor are.
+ *
+ * <p>Progress and completion are reported on the main thread through {@link Listener}. Only
+ * one export runs per process: it is available from {@link #getCurrent} until its completion
+ * has been reported, so that an activity which is recreated during the export can attach
+ * itself again.
+ */
+public class SimContactExporter {
+    private static final String TAG = "SimContactExporter";
+
+    /** Number of contacts whose data is read from the provider per query. */
+    private static final int CONTACTS_PER_PAGE = 100;
+
+    /** Number of SIM entries the reader may prepare ahead of the writer. */
+    private static final int PENDING_ENTRIES = 20;
+
+    private static final long OFFER_TIMEOUT_MILLIS = 200;
+
+    /** Number of consecutive failed inserts after which the used entries are recounted. */
+    private static final int FAILURES_BEFORE_RECOUNT = 5;
+
+    private static final String[] DATA_PROJECTION = new String[] {
+            Data.CONTACT_ID,
+            Data.MIMETYPE,
+            Data.DATA1,
+            Data.DISPLAY_NAME,
+    };
+
+    private static final int DATA_CONTACT_ID = 0;
+    private static final int DATA_MIMETYPE = 1;
+    private static final int DATA_DATA1 = 2;
+    private static final int DATA_DISPLAY_NAME = 3;
+
+    /** Queued by the reader once it has no more entries to hand over. */
+    private static final SimEntry END_OF_ENTRIES = new SimEntry(null);
+
+    public interface Listener {
+        /**
+         * Called after every entry written to the card.
+         *
+         * @param freeCount number of entries still free on the card, or -1 if unknown
+         * @param contactsPerSecond export throughput so far
+         */
+        void onExportProgress(int exported, int total, int freeCount, float contactsPerSecond);
+
+        /** Called exactly once, after both the reader and the writer have stopped. */
+        void onExportFinished(int exported, int total, boolean simFull, boolean canceled);
+    }
+
+    private static final class SimEntry {
+        final String name;
+        final ArrayList<String> numbers = new ArrayList<String>();
+        final ArrayList<String> emails = new ArrayList<String>();
+
+        SimEntry(String name) {
+            this.name = name;
+        }
+    }
+
+    private final Context mContext;
+    private final ContentResolver mResolver;
+    private final int mSubscription;
+    private final long[] mContactIds;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final BlockingQueue<SimEntry> mEntries =
+            new ArrayBlockingQueue<SimEntry>(PENDING_ENTRIES);
+
+    /** The export which is running or whose completion wasn't reported yet. Main thread only. */
+    private static SimContactExporter sCurrent;
+
+    private Listener mListener;
+    // Last reported state, so that a new listener can catch up. Main thread only.
+    private int mExported;
+    private int mFreeCount = -1;
+    private float mContactsPerSecond;
+    private boolean mFinished;
+    private boolean mSimFull;
+    private boolean mFinishedCanceled;
+
+    private volatile boolean mCanceled;
+    /** Set by the writer when it stops early, so the reader doesn't block on the queue. */
+    private volatile boolean mWriterStopped;
+
+    public SimContactExporter(Context context, int subscription, long[] contactIds,
+            Listener listener) {
+        mContext = context.getApplicationContext();
+        mResolver = mContext.getContentResolver();
+        mSubscription = subscription;
+        mContactIds = contactIds;
+        mListener = listener;
+    }
+
+    /** Returns the number of contacts to export. */
+    public int getTotal() {
+        return mContactIds.length;
+    }
+
+    /**
+     * Returns the export which is running, or which finished without anybody listening, or
+     * null. Must be called on the main thread.
+     */
+    public static SimContactExporter getCurrent() {
+        return sCurrent;
+    }
+
+    /**
+     * Replaces the listener, or removes it if {@code listener} is null. A new listener is told
+     * right away about the progress so far, or about the completion if the export already
+     * finished. Must be called on the main thread.
+     */
+    public void setListener(Listener listener) {
+        mListener = listener;
+        if (listener == null) {
+            return;
+        }
+        if (mFinished) {
+            notifyFinished();
+        } else if (mExported > 0) {
+            listener.onExportProgress(mExported, mContactIds.length, mFreeCount,
+                    mContactsPerSecond);
+        }
+    }
+
+    /**
+     * Starts the export. Must be called on the main thread, and only when {@link #getCurrent}
+     * returns null.
+     */
+    public void start() {
+        if (sCurrent != null) {
+            throw new IllegalStateException("Another export to the SIM is running");
+        }
+        sCurrent = this;
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                readEntries();
+            }
+        }, TAG + "-reader").start();
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeEntries();
+            }
+        }, TAG).start();
+    }
+
+    /**
+     * Stops the export. Entries which were already written to the card are kept.
+     */
+    public void cancel() {
+        mCanceled = true;
+    }
+
+    private void readEntries() {
+        try {
+            final StringBuilder selection = new StringBuilder();
+            final String[] selectionArgs = new String[] {
+                    Phone.CONTENT_ITEM_TYPE, Email.CONTENT_ITEM_TYPE
+            };
+            for (int start = 0; start < mContactIds.length && !isStopped();
+                    start += CONTACTS_PER_PAGE) {
+                final int end = Math.min(mContactIds.length, start + CONTACTS_PER_PAGE);
+                selection.setLength(0);
+                selection.append(Data.CONTACT_ID).append(" IN (");
+                for (int i = start; i < end; i++) {
+                    if (i > start) {
+                        selection.append(',');
+                    }
+                    selection.append(mContactIds[i]);
+                }
+                selection.append(") AND ").append(Data.MIMETYPE).append(" IN (?,?)");
+                final Cursor cursor = mResolver.query(Data.CONTENT_URI, DATA_PROJECTION,
+                        selection.toString(), selectionArgs,
+                        Data.CONTACT_ID + "," + Data.IS_SUPER_PRIMARY + " DESC");
+                if (cursor == null) {
+                    continue;
+                }
+                try {
+                    readPage(cursor);
+                } finally {
+                    cursor.close();
+                }
+            }
+        } finally {
+            offer(END_OF_ENTRIES);
+        }
+    }
+
+    private void readPage(Cursor cursor) {
+        long contactId = -1;
+        SimEntry entry = null;
+        while (cursor.moveToNext() && !isStopped()) {
+            if (entry == null || cursor.getLong(DATA_CONTACT_ID) != contactId) {
+                if (entry != null && !offer(entry)) {
+                    return;
+                }
+                contactId = cursor.getLong(DATA_CONTACT_ID);
+                entry = new SimEntry(cursor.getString(DATA_DISPLAY_NAME));
+            }
+            final String value = cursor.getString(DATA_DATA1);
+            if (TextUtils.isEmpty(value)) {
+                continue;
+            }
+            if (Phone.CONTENT_ITEM_TYPE.equals(cursor.getString(DATA_MIMETYPE))) {
+                entry.numbers.add(value);
+            } else {
+                entry.emails.add(value);
+            }
+        }
+        if (entry != null) {
+            offer(entry);
+        }
+    }
+
+    /**
+     * Blocks until the writer takes {@code entry}. Returns false if the export was stopped in
+     * the meantime.
+     */
+    private boolean offer(SimEntry entry) {
+        while (true) {
+            if (entry != END_OF_ENTRIES && isStopped()) {
+                return false;
+            }
+            try {
+                if (mEntries.offer(entry, OFFER_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                    return true;
+                }
+                if (entry == END_OF_ENTRIES && mWriterStopped) {
+                    return false;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+    }
+
+    private boolean isStopped() {
+        return mCanceled || mWriterStopped;
+    }
+
+    private void writeEntries() {
+        final SimContactsOperation simOperation = new SimContactsOperation(mContext);
+        final SimCapacityCache simCapacityCache = SimCapacityCache.getInstance(mContext);
+        final SimContactImporter localCopy = new SimContactImporter(mResolver,
+                new Account(getSimAccountName(), SimContactsConstants.ACCOUNT_TYPE_SIM));
+        final int maxAnrs = MoreContactUtils.canSaveAnr(mSubscription)
+                ? MoreContactUtils.getOneSimAnrCount(mSubscription) : 0;
+        final int maxEmails = MoreContactUtils.canSaveEmail(mSubscription)
+                ? MoreContactUtils.getOneSimEmailCount(mSubscription) : 0;
+        final long startTime = SystemClock.elapsedRealtime();
+
+        int exported = 0;
+        int failures = 0;
+        boolean simFull = false;
+        try {
+            while (!mCanceled) {
+                final SimEntry entry;
+                try {
+                    entry = mEntries.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                if (entry == END_OF_ENTRIES) {
+                    break;
+                }
+                if (entry.numbers.isEmpty() && (maxEmails == 0 || entry.emails.isEmpty())) {
+                    // Nothing the card can hold.
+                    continue;
+                }
+                if (MoreContactUtils.isAPMOnAndSIMPowerDown(mContext)) {
+                    Log.w(TAG, "SIM powered down, stop exporting");
+                    break;
+                }
+                if (simCapacityCache.isFull(mSubscription)) {
+                    simFull = true;
+                    break;
+                }
+
+                final String number = entry.numbers.isEmpty() ? null : entry.numbers.get(0);
+                final String anrs = join(entry.numbers, 1, maxAnrs);
+                final String emails = join(entry.emails, 0, maxEmails);
+                final ContentValues values = new ContentValues(4);
+                values.put(SimContactsConstants.STR_TAG, entry.name);
+                values.put(SimContactsConstants.STR_NUMBER, number);
+                values.put(SimContactsConstants.STR_EMAILS, emails);
+                values.put(SimContactsConstants.STR_ANRS, anrs);
+                final Uri result = simOperation.insert(values, mSubscription);
+                if (result == null) {
+                    // Entries are mostly rejected for their contents (e.g. a name which is too
+                    // long), which doesn't call for a recount of the card. Only a run of
+                    // failures hints that something else filled the card behind our back.
+                    failures++;
+                    if (failures == FAILURES_BEFORE_RECOUNT) {
+                        simCapacityCache.invalidate(mSubscription);
+                    }
+                    continue;
+                }
+                failures = 0;
+                simCapacityCache.onContactInserted(mSubscription);
+                localCopy.add(entry.name, number, emails, anrs);
+                exported++;
+
+                final long elapsed = Math.max(1, SystemClock.elapsedRealtime() - startTime);
+                reportProgress(exported, simCapacityCache.getFreeCount(mSubscription),
+                        exported * 1000f / elapsed);
+            }
+        } finally {
+            mWriterStopped = true;
+            localCopy.finish();
+            final long elapsed = SystemClock.elapsedRealtime() - startTime;
+            Log.d(TAG, "Exported " + exported + " of " + mContactIds.length + " contacts in "
+                    + elapsed + "ms, sim full: " + simFull);
+            reportFinished(exported, simFull, mCanceled);
+        }
+    }
+
+    private String getSimAccountName() {
+        if (!TelephonyManager.getDefault().isMultiSimEnabled()) {
+            return SimContactsConstants.SIM_NAME;
+        }
+        return mSubscription == SimContactsConstants.SUB_2
+                ? SimContactsConstants.SIM_NAME_2 : SimContactsConstants.SIM_NAME_1;
+    }
+
+    /**
+     * Joins at most {@code max} values of {@code values} starting at {@code start} with commas,
+     * the format the ICC provider expects for additional numbers and email addresses.
+     */
+    private static String join(ArrayList<String> values, int start, int max) {
+        final int end = Math.min(values.size(), start + max);
+        if (start >= end) {
+            return null;
+        }
+        return TextUtils.join(",", values.subList(start, end));
+    }
+
+    private void reportProgress(final int exported, final int freeCount,
+            final float contactsPerSecond) {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mExported = exported;
+                mFreeCount = freeCount;
+                mContactsPerSecond = contactsPerSecond;
+                if (mListener != null) {
+                    mListener.onExportProgress(exported, mContactIds.length, freeCount,
+                            contactsPerSecond);
+                }
+            }
+        });
+    }
+
+    private void reportFinished(final int exported, final boolean simFull,
+            final boolean canceled) {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mExported = exported;
+                mSimFull = simFull;
+                mFinishedCanceled = canceled;
+                mFinished = true;
+                if (mListener != null) {
+                    notifyFinished();
+                }
+            }
+        });
+    }
+
+    private void notifyFinished() {
+        if (sCurrent == this) {
+            sCurrent = null;
+        }
+        mListener.onExportFinished(mExported, mContactIds.length, mSimFull, mFinishedCanceled);
+    }
+}
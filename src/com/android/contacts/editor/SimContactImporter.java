@@ -0,0 +1,245 @@
+/**
+ * Copyright (C) 2014, The Linux Foundation. All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *     * Neither the name of The Linux Foundation nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.android.contacts.editor;
+
+import android.accounts.Account;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.OperationApplicationException;
+import android.os.RemoteException;
+import android.provider.ContactsContract;
+import android.provider.ContactsContract.CommonDataKinds.Email;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.provider.ContactsContract.CommonDataKinds.StructuredName;
+import android.provider.ContactsContract.Data;
+import android.provider.ContactsContract.RawContacts;
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.util.ArrayList;
+
+/**
+ * Imports SIM contacts into the contacts provider, packing many raw contacts into a single
+ * {@link ContentResolver#applyBatch} call.
+ *
+ * <p>Raw contacts are inserted with aggregation suspended, so the provider does not run an
+ * aggregation pass per contact. Once all batches are applied, {@link #finish()} switches the
+ * inserted raw contacts back to the default aggregation mode in a few bulk updates.
+ */
+public class SimContactImporter {
+    private static final String TAG = "SimContactImporter";
+
+    /** Number of contacts applied per provider transaction. */
+    private static final int CONTACTS_PER_BATCH = 50;
+
+    /** Number of contacts between two yield points inside a batch. */
+    private static final int CONTACTS_PER_YIELD = 10;
+
+    /** Maximum number of ids bound into a single {@code IN (...)} update. */
+    private static final int UPDATE_CHUNK_SIZE = 500;
+
+    private final ContentResolver mResolver;
+    private final Account mAccount;
+
+    /** Contacts queued by {@link #add} and not applied yet. */
+    private final ArrayList<String[]> mPendingContacts = new ArrayList<String[]>();
+    private final ArrayList<Long> mInsertedRawContactIds = new ArrayList<Long>();
+    private int mImportedCount;
+
+    public SimContactImporter(ContentResolver resolver, Account account) {
+        mResolver = resolver;
+        mAccount = account;
+    }
+
+    /**
+     * Queues one SIM contact for import. {@code emailAddresses} and {@code anrs} are comma
+     * separated lists as returned by the ICC provider.
+     */
+    public void add(String name, String phoneNumber, String emailAddresses, String anrs) {
+        mPendingContacts.add(new String[] { name, phoneNumber, emailAddresses, anrs });
+        if (mPendingContacts.size() >= CONTACTS_PER_BATCH) {
+            flush();
+        }
+    }
+
+    /**
+     * Returns the number of contacts actually inserted so far. Contacts that were added but
+     * failed to insert aren't counted.
+     */
+    public int getImportedCount() {
+        return mImportedCount;
+    }
+
+    /**
+     * Applies any pending contacts and lets the provider aggregate everything imported so far.
+     * Must be called once the import is over, including when it was canceled.
+     */
+    public void finish() {
+        flush();
+
+        final ContentValues values = new ContentValues(1);
+        values.put(RawContacts.AGGREGATION_MODE, RawContacts.AGGREGATION_MODE_DEFAULT);
+        final StringBuilder selection = new StringBuilder();
+        for (int start = 0; start < mInsertedRawContactIds.size();
+                start += UPDATE_CHUNK_SIZE) {
+            final int end = Math.min(mInsertedRawContactIds.size(), start + UPDATE_CHUNK_SIZE);
+            selection.setLength(0);
+            selection.append(RawContacts._ID).append(" IN (");
+            for (int i = start; i < end; i++) {
+                if (i > start) {
+                    selection.append(',');
+                }
+                selection.append(mInsertedRawContactIds.get(i));
+            }
+            selection.append(')');
+            try {
+                mResolver.update(RawContacts.CONTENT_URI, values, selection.toString(), null);
+            } catch (RuntimeException e) {
+                // The contacts of this chunk stay unaggregated, keep going with the others.
+                Log.e(TAG, "Failed to resume aggregation of " + (end - start) + " contacts", e);
+            }
+        }
+        mInsertedRawContactIds.clear();
+    }
+
+    private void flush() {
+        if (mPendingContacts.isEmpty()) {
+            return;
+        }
+        final ArrayList<ContentProviderOperation> operations =
+                new ArrayList<ContentProviderOperation>();
+        final int[] rawContactOps = new int[mPendingContacts.size()];
+        for (int i = 0; i < rawContactOps.length; i++) {
+            rawContactOps[i] = operations.size();
+            addOperations(operations, mPendingContacts.get(i), i % CONTACTS_PER_YIELD == 0);
+        }
+        if (!applyBatch(operations, rawContactOps)) {
+            // Don't lose the whole batch to a single bad contact, retry them one by one.
+            Log.w(TAG, "Failed to import " + rawContactOps.length
+                    + " contacts at once, importing them one by one");
+            final int[] singleRawContactOp = new int[] { 0 };
+            for (String[] contact : mPendingContacts) {
+                operations.clear();
+                addOperations(operations, contact, false);
+                applyBatch(operations, singleRawContactOp);
+            }
+        }
+        mPendingContacts.clear();
+    }
+
+    /**
+     * Applies {@param operations}, and records the raw contacts inserted by the operations at
+     * {@param rawContactOps}. Returns false if the batch failed.
+     */
+    private boolean applyBatch(ArrayList<ContentProviderOperation> operations,
+            int[] rawContactOps) {
+        try {
+            final ContentProviderResult[] results =
+                    mResolver.applyBatch(ContactsContract.AUTHORITY, operations);
+            for (int index : rawContactOps) {
+                if (results[index].uri != null) {
+                    mInsertedRawContactIds.add(ContentUris.parseId(results[index].uri));
+                    mImportedCount++;
+                }
+            }
+            return true;
+        } catch (RemoteException e) {
+            Log.e(TAG, String.format("%s: %s", e.toString(), e.getMessage()));
+        } catch (OperationApplicationException e) {
+            Log.e(TAG, String.format("%s: %s", e.toString(), e.getMessage()));
+        }
+        return false;
+    }
+
+    /**
+     * Appends the operations inserting {@param contact}, as queued by {@link #add}, to
+     * {@param operations}.
+     */
+    private void addOperations(ArrayList<ContentProviderOperation> operations,
+            String[] contact, boolean yieldAllowed) {
+        final String name = contact[0];
+        final String phoneNumber = contact[1];
+        final String emailAddresses = contact[2];
+        final String anrs = contact[3];
+
+        final int backReference = operations.size();
+        ContentProviderOperation.Builder builder =
+                ContentProviderOperation.newInsert(RawContacts.CONTENT_URI);
+        builder.withValue(RawContacts.AGGREGATION_MODE, RawContacts.AGGREGATION_MODE_SUSPENDED);
+        if (mAccount != null) {
+            builder.withValue(RawContacts.ACCOUNT_NAME, mAccount.name);
+            builder.withValue(RawContacts.ACCOUNT_TYPE, mAccount.type);
+        }
+        if (yieldAllowed) {
+            builder.withYieldAllowed(true);
+        }
+        operations.add(builder.build());
+
+        builder = ContentProviderOperation.newInsert(Data.CONTENT_URI);
+        builder.withValueBackReference(StructuredName.RAW_CONTACT_ID, backReference);
+        builder.withValue(Data.MIMETYPE, StructuredName.CONTENT_ITEM_TYPE);
+        builder.withValue(StructuredName.DISPLAY_NAME, name);
+        operations.add(builder.build());
+
+        builder = ContentProviderOperation.newInsert(Data.CONTENT_URI);
+        builder.withValueBackReference(Phone.RAW_CONTACT_ID, backReference);
+        builder.withValue(Data.MIMETYPE, Phone.CONTENT_ITEM_TYPE);
+        builder.withValue(Phone.TYPE, Phone.TYPE_MOBILE);
+        builder.withValue(Phone.NUMBER, phoneNumber);
+        builder.withValue(Data.IS_PRIMARY, 1);
+        operations.add(builder.build());
+
+        if (!TextUtils.isEmpty(anrs)) {
+            for (String anr : anrs.split(",")) {
+                builder = ContentProviderOperation.newInsert(Data.CONTENT_URI);
+                builder.withValueBackReference(Phone.RAW_CONTACT_ID, backReference);
+                builder.withValue(Data.MIMETYPE, Phone.CONTENT_ITEM_TYPE);
+                builder.withValue(Phone.TYPE, Phone.TYPE_HOME);
+                builder.withValue(Phone.NUMBER, anr);
+                operations.add(builder.build());
+            }
+        }
+
+        if (!TextUtils.isEmpty(emailAddresses)) {
+            for (String emailAddress : emailAddresses.split(",")) {
+                builder = ContentProviderOperation.newInsert(Data.CONTENT_URI);
+                builder.withValueBackReference(Email.RAW_CONTACT_ID, backReference);
+                builder.withValue(Data.MIMETYPE, Email.CONTENT_ITEM_TYPE);
+                builder.withValue(Email.TYPE, Email.TYPE_MOBILE);
+                builder.withValue(Email.ADDRESS, emailAddress);
+                operations.add(builder.build());
+            }
+        }
+    }
+}
@@ -12,6 +12,7 @@ import java.util.Set;
 import android.content.AsyncTaskLoader;
 import android.content.ContentValues;
 import android.content.Context;
+import android.database.ContentObserver;
 import android.database.Cursor;
 import android.database.DatabaseUtils;
 import android.provider.CalendarContract;
@@ -28,6 +29,15 @@ import android.util.Log;
 public class CalendarInteractionsLoader extends AsyncTaskLoader<List<ContactInteraction>> {
     private static final String TAG = CalendarInteractionsLoader.class.getSimpleName();
 
+    /**
+     * Ids of the calendars owned by the phone's accounts, see {@link #getOwnedCalendarIds}. Null
+     * if they need to be queried.
+     */
+    private static List<String> sOwnedCalendarIds;
+    /** Incremented when the calendars change, so that queries started before aren't cached */
+    private static int sOwnedCalendarIdsGeneration;
+    private static ContentObserver sCalendarsObserver;
+
     private List<String> mEmailAddresses;
     private int mMaxFutureToRetrieve;
     private int mMaxPastToRetrieve;
@@ -58,56 +68,49 @@ public class CalendarInteractionsLoader extends AsyncTaskLoader<List<ContactInte
         if (mEmailAddresses == null || mEmailAddresses.size() < 1) {
             return Collections.emptyList();
         }
-        // Perform separate calendar queries for events in the past and future.
-        Cursor cursor = getSharedEventsCursor(/* isFuture= */ true, mMaxFutureToRetrieve);
-        List<ContactInteraction> interactions = getInteractionsFromEventsCursor(cursor);
-        cursor = getSharedEventsCursor(/* isFuture= */ false, mMaxPastToRetrieve);
-        List<ContactInteraction> interactions2 = getInteractionsFromEventsCursor(cursor);
-
-        ArrayList<ContactInteraction> allInteractions = new ArrayList<ContactInteraction>(
-                interactions.size() + interactions2.size());
-        allInteractions.addAll(interactions);
-        allInteractions.addAll(interactions2);
+        // Query the past and future windows at once and split the events afterwards.
+        final long timeMillis = System.currentTimeMillis();
+        final Cursor cursor = getSharedEventsCursor(timeMillis);
+        final List<ContactInteraction> allInteractions =
+                getInteractionsFromEventsCursor(cursor, timeMillis);
 
         Log.v(TAG, "# ContactInteraction Loaded: " + allInteractions.size());
         return allInteractions;
     }
 
     /**
-     * @return events inside phone owners' calendars, that are shared with people inside mEmails
+     * @return events inside phone owners' calendars, that are shared with people inside mEmails,
+     * in both the past and the future search window, sorted by ascending start time
      */
-    private Cursor getSharedEventsCursor(boolean isFuture, int limit) {
-        List<String> calendarIds = getOwnedCalendarIds();
+    private Cursor getSharedEventsCursor(long timeMillis) {
+        List<String> calendarIds = getOwnedCalendarIds(getContext());
         if (calendarIds == null) {
             return null;
         }
-        long timeMillis = System.currentTimeMillis();
 
         List<String> selectionArgs = new ArrayList<>();
         selectionArgs.addAll(mEmailAddresses);
         selectionArgs.addAll(calendarIds);
 
         // Add time constraints to selectionArgs
-        String timeOperator = isFuture ? " > " : " < ";
         long pastTimeCutoff = timeMillis - mNumberPastMillisecondToSearchLocalCalendar;
         long futureTimeCutoff = timeMillis
                 + mNumberFutureMillisecondToSearchLocalCalendar;
-        String[] timeArguments = {String.valueOf(timeMillis), String.valueOf(pastTimeCutoff),
+        String[] timeArguments = {String.valueOf(pastTimeCutoff),
                 String.valueOf(futureTimeCutoff)};
         selectionArgs.addAll(Arrays.asList(timeArguments));
 
-        String orderBy = CalendarContract.Attendees.DTSTART + (isFuture ? " ASC " : " DESC ");
+        String orderBy = CalendarContract.Attendees.DTSTART + " ASC ";
         String selection = caseAndDotInsensitiveEmailComparisonClause(mEmailAddresses.size())
                 + " AND " + CalendarContract.Attendees.CALENDAR_ID
                 + " IN " + ContactInteractionUtil.questionMarks(calendarIds.size())
-                + " AND " + CalendarContract.Attendees.DTSTART + timeOperator + " ? "
                 + " AND " + CalendarContract.Attendees.DTSTART + " > ? "
                 + " AND " + CalendarContract.Attendees.DTSTART + " < ? ";
 
         return getContext().getContentResolver().query(CalendarContract.Attendees.CONTENT_URI,
                 /* projection = */ null, selection,
                 selectionArgs.toArray(new String[selectionArgs.size()]),
-                orderBy + " LIMIT " + limit);
+                orderBy);
     }
 
     /**
@@ -135,26 +138,46 @@ public class CalendarInteractionsLoader extends AsyncTaskLoader<List<ContactInte
     }
 
     /**
-     * @return A list with upto one Card. The Card contains events from {@param Cursor}.
-     * Only returns unique events.
+     * @return up to {@link #mMaxFutureToRetrieve} unique future events from {@param cursor},
+     * soonest first, followed by up to {@link #mMaxPastToRetrieve} unique past events, most
+     * recent first. {@param cursor} must be sorted by ascending start time.
      */
-    private List<ContactInteraction> getInteractionsFromEventsCursor(Cursor cursor) {
+    private List<ContactInteraction> getInteractionsFromEventsCursor(Cursor cursor,
+            long timeMillis) {
         try {
             if (cursor == null || cursor.getCount() == 0) {
                 return Collections.emptyList();
             }
             Set<String> uniqueUris = new HashSet<String>();
-            ArrayList<ContactInteraction> interactions = new ArrayList<ContactInteraction>();
+            ArrayList<ContactInteraction> past = new ArrayList<ContactInteraction>();
+            ArrayList<ContactInteraction> future = new ArrayList<ContactInteraction>();
             while (cursor.moveToNext()) {
                 ContentValues values = new ContentValues();
                 DatabaseUtils.cursorRowToContentValues(cursor, values);
                 CalendarInteraction calendarInteraction = new CalendarInteraction(values);
-                if (!uniqueUris.contains(calendarInteraction.getIntent().getData().toString())) {
-                    uniqueUris.add(calendarInteraction.getIntent().getData().toString());
-                    interactions.add(calendarInteraction);
+                final long dtstart = calendarInteraction.getInteractionDate();
+                if (dtstart == timeMillis) {
+                    continue;
+                }
+                if (dtstart > timeMillis && future.size() >= mMaxFutureToRetrieve) {
+                    // Everything after this starts even later.
+                    break;
+                }
+                if (uniqueUris.add(calendarInteraction.getIntent().getData().toString())) {
+                    if (dtstart > timeMillis) {
+                        future.add(calendarInteraction);
+                    } else {
+                        past.add(calendarInteraction);
+                    }
                 }
             }
 
+            ArrayList<ContactInteraction> interactions = new ArrayList<ContactInteraction>(
+                    future.size() + Math.min(past.size(), mMaxPastToRetrieve));
+            interactions.addAll(future);
+            for (int i = past.size() - 1; i >= 0 && i >= past.size() - mMaxPastToRetrieve; i--) {
+                interactions.add(past.get(i));
+            }
             return interactions;
         } finally {
             if (cursor != null) {
@@ -164,11 +187,45 @@ public class CalendarInteractionsLoader extends AsyncTaskLoader<List<ContactInte
     }
 
     /**
-     * @return the Ids of calendars that are owned by accounts on the phone.
+     * @return the Ids of calendars that are owned by accounts on the phone. The result is cached
+     * until the calendars change.
      */
-    private List<String> getOwnedCalendarIds() {
+    private static List<String> getOwnedCalendarIds(Context context) {
+        final int generation;
+        synchronized (CalendarInteractionsLoader.class) {
+            if (sCalendarsObserver == null) {
+                sCalendarsObserver = new ContentObserver(null) {
+                    @Override
+                    public void onChange(boolean selfChange) {
+                        synchronized (CalendarInteractionsLoader.class) {
+                            sOwnedCalendarIdsGeneration++;
+                            sOwnedCalendarIds = null;
+                        }
+                    }
+                };
+                context.getApplicationContext().getContentResolver().registerContentObserver(
+                        Calendars.CONTENT_URI, /* notifyForDescendents = */ true,
+                        sCalendarsObserver);
+            }
+            if (sOwnedCalendarIds != null) {
+                return sOwnedCalendarIds;
+            }
+            generation = sOwnedCalendarIdsGeneration;
+        }
+
+        final List<String> calendarIds = queryOwnedCalendarIds(context);
+        synchronized (CalendarInteractionsLoader.class) {
+            // Don't cache a failed query, nor one that may have missed a change of the calendars.
+            if (calendarIds != null && generation == sOwnedCalendarIdsGeneration) {
+                sOwnedCalendarIds = calendarIds;
+            }
+        }
+        return calendarIds;
+    }
+
+    private static List<String> queryOwnedCalendarIds(Context context) {
         String[] projection = new String[] {Calendars._ID, Calendars.CALENDAR_ACCESS_LEVEL};
-        Cursor cursor = getContext().getContentResolver().query(Calendars.CONTENT_URI, projection,
+        Cursor cursor = context.getContentResolver().query(Calendars.CONTENT_URI, projection,
                 Calendars.VISIBLE + " = 1 AND " + Calendars.CALENDAR_ACCESS_LEVEL + " = ? ",
                 new String[] {String.valueOf(Calendars.CAL_ACCESS_OWNER)}, null);
         try {
@@ -180,7 +237,7 @@ public class CalendarInteractionsLoader extends AsyncTaskLoader<List<ContactInte
             while (cursor.moveToNext()) {
                 calendarIds.add(String.valueOf(cursor.getInt(0)));
             }
-            return calendarIds;
+            return Collections.unmodifiableList(calendarIds);
         } finally {
             if (cursor != null) {
                 cursor.close();
@@ -148,6 +148,10 @@ public class CallLogInteraction implements ContactInteraction {
         return mValues.getAsLong(Calls.DURATION);
     }
 
+    public Long getId() {
+        return mValues.getAsLong(Calls._ID);
+    }
+
     public Boolean getIsRead() {
         return mValues.getAsBoolean(Calls.IS_READ);
     }
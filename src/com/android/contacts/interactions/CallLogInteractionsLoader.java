@@ -31,7 +31,11 @@ import com.android.internal.annotations.VisibleForTesting;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
 
 public class CallLogInteractionsLoader extends AsyncTaskLoader<List<ContactInteraction>> {
 
@@ -53,61 +57,72 @@ public class CallLogInteractionsLoader extends AsyncTaskLoader<List<ContactInter
             return Collections.emptyList();
         }
 
-        final List<ContactInteraction> interactions = new ArrayList<>();
+        // Numbers which only differ in formatting match the same calls, query them once.
+        final Set<String> normalizedNumbers = new LinkedHashSet<>(mPhoneNumbers.length);
         for (String number : mPhoneNumbers) {
-            interactions.addAll(getCallLogInteractions(number));
+            final String normalizedNumber = PhoneNumberUtils.normalizeNumber(number);
+            // If the number contains only symbols, we can skip it
+            if (!TextUtils.isEmpty(normalizedNumber)) {
+                normalizedNumbers.add(normalizedNumber);
+            }
         }
-        // Sort the call log interactions by date for duplicate removal
-        Collections.sort(interactions, new Comparator<ContactInteraction>() {
-            @Override
-            public int compare(ContactInteraction i1, ContactInteraction i2) {
-                if (i2.getInteractionDate() - i1.getInteractionDate() > 0) {
-                    return 1;
-                } else if (i2.getInteractionDate() == i1.getInteractionDate()) {
-                    return 0;
-                } else {
-                    return -1;
-                }
+
+        // Every query returns at most mMaxToRetrieve calls, most recent first.
+        final List<List<CallLogInteraction>> interactionsPerNumber =
+                new ArrayList<>(normalizedNumbers.size());
+        for (String normalizedNumber : normalizedNumbers) {
+            final List<CallLogInteraction> interactions =
+                    getCallLogInteractions(normalizedNumber);
+            if (!interactions.isEmpty()) {
+                interactionsPerNumber.add(interactions);
             }
-        });
-        // Duplicates only occur because of fuzzy matching. No need to dedupe a single number.
-        if (mPhoneNumbers.length == 1) {
-            return interactions;
         }
-        return pruneDuplicateCallLogInteractions(interactions, mMaxToRetrieve);
+        return mergeCallLogInteractions(interactionsPerNumber, mMaxToRetrieve);
     }
 
     /**
-     * Two different phone numbers can match the same call log entry (since phone number
-     * matching is inexact). Therefore, we need to remove duplicates. In a reasonable call log,
-     * every entry should have a distinct date. Therefore, we can assume duplicate entries are
-     * adjacent entries.
-     * @param interactions The interaction list potentially containing duplicates
-     * @return The list with duplicates removed
+     * Merges the per number call lists, each sorted by most recent first, into a single list of
+     * at most {@param maxToRetrieve} calls. Two different phone numbers can match the same call
+     * log entry (since phone number matching is inexact), so calls are deduplicated by their
+     * {@link Calls#_ID}.
      */
     @VisibleForTesting
-    static List<ContactInteraction> pruneDuplicateCallLogInteractions(
-            List<ContactInteraction> interactions, int maxToRetrieve) {
-        final List<ContactInteraction> subsetInteractions = new ArrayList<>();
-        for (int i = 0; i < interactions.size(); i++) {
-            if (i >= 1 && interactions.get(i).getInteractionDate() ==
-                    interactions.get(i-1).getInteractionDate()) {
-                continue;
+    static List<ContactInteraction> mergeCallLogInteractions(
+            final List<List<CallLogInteraction>> interactionsPerNumber, int maxToRetrieve) {
+        final List<ContactInteraction> merged = new ArrayList<>(maxToRetrieve);
+        final int[] positions = new int[interactionsPerNumber.size()];
+        final PriorityQueue<Integer> heads = new PriorityQueue<>(
+                Math.max(1, interactionsPerNumber.size()), new Comparator<Integer>() {
+                    @Override
+                    public int compare(Integer a, Integer b) {
+                        return Long.compare(
+                                interactionsPerNumber.get(b).get(positions[b]).getInteractionDate(),
+                                interactionsPerNumber.get(a).get(positions[a]).getInteractionDate());
+                    }
+                });
+        for (int i = 0; i < interactionsPerNumber.size(); i++) {
+            if (!interactionsPerNumber.get(i).isEmpty()) {
+                heads.add(i);
+            }
+        }
+
+        final Set<Long> seenIds = new HashSet<>();
+        while (!heads.isEmpty() && merged.size() < maxToRetrieve) {
+            final int list = heads.poll();
+            final CallLogInteraction interaction =
+                    interactionsPerNumber.get(list).get(positions[list]++);
+            final Long id = interaction.getId();
+            if (id == null || seenIds.add(id)) {
+                merged.add(interaction);
             }
-            subsetInteractions.add(interactions.get(i));
-            if (subsetInteractions.size() >= maxToRetrieve) {
-                break;
+            if (positions[list] < interactionsPerNumber.get(list).size()) {
+                heads.add(list);
             }
         }
-        return subsetInteractions;
+        return merged;
     }
 
-    private List<ContactInteraction> getCallLogInteractions(String phoneNumber) {
-        final String normalizedNumber = PhoneNumberUtils.normalizeNumber(phoneNumber);
-        // If the number contains only symbols, we can skip it
-        if (TextUtils.isEmpty(normalizedNumber)) {
-            return Collections.emptyList();
-        }
+    private List<CallLogInteraction> getCallLogInteractions(String normalizedNumber) {
         final Uri uri = Uri.withAppendedPath(Calls.CONTENT_FILTER_URI,
                 Uri.encode(normalizedNumber));
         // Append the LIMIT clause onto the ORDER BY clause. This won't cause crashes as long
@@ -121,7 +136,7 @@ public class CallLogInteractionsLoader extends AsyncTaskLoader<List<ContactInter
                 return Collections.emptyList();
             }
             cursor.moveToPosition(-1);
-            List<ContactInteraction> interactions = new ArrayList<>();
+            List<CallLogInteraction> interactions = new ArrayList<>();
             while (cursor.moveToNext()) {
                 final ContentValues values = new ContentValues();
                 DatabaseUtils.cursorRowToContentValues(cursor, values);
@@ -0,0 +1,292 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.contacts.interactions;
+
+import android.content.AsyncTaskLoader;
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Loads the recent interactions (sms, call log and calendar) with a contact as a single
+ * timeline, most recent first.
+ *
+ * The three sources are queried concurrently. Each of them returns its interactions already
+ * sorted by date, so they are k-way merged instead of being sorted again. As soon as the first
+ * source returns, the partial timeline is delivered so the UI can start binding it;
+ * {@link #isLoadComplete()} tells whether the last delivered result contains all sources.
+ */
+public class ContactInteractionTimelineLoader
+        extends AsyncTaskLoader<List<ContactInteraction>> {
+    private static final String TAG = ContactInteractionTimelineLoader.class.getSimpleName();
+
+    private static final int SOURCE_COUNT = 3;
+
+    /** Shared by all instances, so concurrent QuickContacts can't flood the providers. */
+    private static final ThreadPoolExecutor sExecutor = new ThreadPoolExecutor(
+            SOURCE_COUNT, SOURCE_COUNT, 10, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                private final AtomicInteger mCount = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    return new Thread(r, TAG + " #" + mCount.incrementAndGet());
+                }
+            });
+
+    static {
+        sExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    private static final Comparator<ContactInteraction> MOST_RECENT_FIRST =
+            new Comparator<ContactInteraction>() {
+                @Override
+                public int compare(ContactInteraction a, ContactInteraction b) {
+                    return Long.compare(b.getInteractionDate(), a.getInteractionDate());
+                }
+            };
+
+    private final SmsInteractionsLoader mSmsSource;
+    private final CallLogInteractionsLoader mCallLogSource;
+    private final CalendarInteractionsLoader mCalendarSource;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    private List<ContactInteraction> mData;
+    private boolean mLoadComplete;
+    private volatile List<Future<List<ContactInteraction>>> mPendingSources;
+    /** Incremented on every load, so partial results of a stale load are dropped. */
+    private volatile int mLoadGeneration;
+
+    public ContactInteractionTimelineLoader(Context context, String[] phoneNumbers,
+            List<String> emailAddresses, int maxSmsToRetrieve, int maxCallLogToRetrieve,
+            int maxFutureCalendarToRetrieve, int maxPastCalendarToRetrieve,
+            long numberFutureMillisecondToSearchLocalCalendar,
+            long numberPastMillisecondToSearchLocalCalendar) {
+        super(context);
+        mSmsSource = new SmsInteractionsLoader(context, phoneNumbers, maxSmsToRetrieve);
+        mCallLogSource = new CallLogInteractionsLoader(context, phoneNumbers,
+                maxCallLogToRetrieve);
+        mCalendarSource = new CalendarInteractionsLoader(context, emailAddresses,
+                maxFutureCalendarToRetrieve, maxPastCalendarToRetrieve,
+                numberFutureMillisecondToSearchLocalCalendar,
+                numberPastMillisecondToSearchLocalCalendar);
+    }
+
+    /**
+     * Returns true if the last delivered result contains the interactions of all sources.
+     */
+    public boolean isLoadComplete() {
+        return mLoadComplete;
+    }
+
+    @Override
+    public List<ContactInteraction> loadInBackground() {
+        final int generation = ++mLoadGeneration;
+        final CompletionService<List<ContactInteraction>> completionService =
+                new ExecutorCompletionService<List<ContactInteraction>>(sExecutor);
+        final List<Future<List<ContactInteraction>>> futures = new ArrayList<>(SOURCE_COUNT);
+        futures.add(completionService.submit(new Callable<List<ContactInteraction>>() {
+            @Override
+            public List<ContactInteraction> call() {
+                return mSmsSource.loadInBackground();
+            }
+        }));
+        futures.add(completionService.submit(new Callable<List<ContactInteraction>>() {
+            @Override
+            public List<ContactInteraction> call() {
+                return mCallLogSource.loadInBackground();
+            }
+        }));
+        futures.add(completionService.submit(new Callable<List<ContactInteraction>>() {
+            @Override
+            public List<ContactInteraction> call() {
+                return mCalendarSource.loadInBackground();
+            }
+        }));
+        mPendingSources = futures;
+
+        final List<List<ContactInteraction>> sources = new ArrayList<>(SOURCE_COUNT);
+        List<ContactInteraction> timeline = Collections.emptyList();
+        try {
+            for (int i = 0; i < SOURCE_COUNT; i++) {
+                final List<ContactInteraction> source = getQuietly(completionService.take());
+                if (source == null || source.isEmpty()) {
+                    continue;
+                }
+                sources.add(source);
+                timeline = mergeMostRecentFirst(sources);
+                if (i < SOURCE_COUNT - 1) {
+                    deliverPartialResult(timeline, generation);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            mPendingSources = null;
+        }
+        return timeline;
+    }
+
+    @Override
+    public void cancelLoadInBackground() {
+        final List<Future<List<ContactInteraction>>> pending = mPendingSources;
+        if (pending != null) {
+            for (Future<List<ContactInteraction>> future : pending) {
+                future.cancel(/* mayInterruptIfRunning = */ false);
+            }
+        }
+    }
+
+    private static List<ContactInteraction> getQuietly(
+            Future<List<ContactInteraction>> future) throws InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Log.e(TAG, "Failed to load interactions", e.getCause());
+        } catch (CancellationException e) {
+            // The load was canceled, treat the source as empty.
+        }
+        return null;
+    }
+
+    private void deliverPartialResult(final List<ContactInteraction> timeline,
+            final int generation) {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                // Drop results of a load that was superseded or reset meanwhile.
+                if (generation != mLoadGeneration || isReset() || isAbandoned()) {
+                    return;
+                }
+                deliver(timeline, /* isComplete = */ false);
+            }
+        });
+    }
+
+    /**
+     * Merges lists that are each sorted most recent first into a single such list. Sources which
+     * are not sorted (the calendar source returns future events ahead of past ones) are sorted
+     * first.
+     */
+    @VisibleForTesting
+    static List<ContactInteraction> mergeMostRecentFirst(
+            List<List<ContactInteraction>> sources) {
+        int total = 0;
+        final List<List<ContactInteraction>> sorted = new ArrayList<>(sources.size());
+        for (List<ContactInteraction> source : sources) {
+            total += source.size();
+            if (isSortedMostRecentFirst(source)) {
+                sorted.add(source);
+            } else {
+                final List<ContactInteraction> copy = new ArrayList<>(source);
+                Collections.sort(copy, MOST_RECENT_FIRST);
+                sorted.add(copy);
+            }
+        }
+
+        final List<ContactInteraction> merged = new ArrayList<>(total);
+        final int[] positions = new int[sorted.size()];
+        while (merged.size() < total) {
+            int best = -1;
+            for (int i = 0; i < sorted.size(); i++) {
+                if (positions[i] >= sorted.get(i).size()) {
+                    continue;
+                }
+                if (best < 0 || sorted.get(i).get(positions[i]).getInteractionDate()
+                        > sorted.get(best).get(positions[best]).getInteractionDate()) {
+                    best = i;
+                }
+            }
+            merged.add(sorted.get(best).get(positions[best]++));
+        }
+        return merged;
+    }
+
+    private static boolean isSortedMostRecentFirst(List<ContactInteraction> interactions) {
+        for (int i = 1; i < interactions.size(); i++) {
+            if (interactions.get(i - 1).getInteractionDate()
+                    < interactions.get(i).getInteractionDate()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    protected void onStartLoading() {
+        super.onStartLoading();
+
+        if (mData != null) {
+            deliver(mData, mLoadComplete);
+        }
+
+        if (takeContentChanged() || mData == null || !mLoadComplete) {
+            forceLoad();
+        }
+    }
+
+    @Override
+    protected void onStopLoading() {
+        // Attempt to cancel the current load task if possible.
+        cancelLoad();
+    }
+
+    /**
+     * Called by {@link AsyncTaskLoader} with the result of a finished load.
+     */
+    @Override
+    public void deliverResult(List<ContactInteraction> data) {
+        deliver(data, /* isComplete = */ true);
+    }
+
+    private void deliver(List<ContactInteraction> data, boolean isComplete) {
+        mData = data;
+        mLoadComplete = isComplete;
+        if (isStarted()) {
+            super.deliverResult(data);
+        }
+    }
+
+    @Override
+    protected void onReset() {
+        super.onReset();
+
+        // Ensure the loader is stopped
+        onStopLoading();
+        mLoadGeneration++;
+        mData = null;
+        mLoadComplete = false;
+    }
+}
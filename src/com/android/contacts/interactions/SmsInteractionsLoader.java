@@ -32,8 +32,8 @@ import java.util.List;
  * Loads the most recent sms between the passed in phone numbers.
  *
  * This is a two part process. The first step is retrieving the threadIds for each of the phone
- * numbers using fuzzy matching. The next step is to run another query against these threadIds
- * to retrieve the actual sms.
+ * numbers using fuzzy matching, which are cached by {@link SmsThreadIdCache}. The next step is
+ * to run another query against these threadIds to retrieve the actual sms.
  */
 public class SmsInteractionsLoader extends AsyncTaskLoader<List<ContactInteraction>> {
 
@@ -63,15 +63,15 @@ public class SmsInteractionsLoader extends AsyncTaskLoader<List<ContactInteracti
             return Collections.emptyList();
         }
 
-        // Retrieve the thread IDs
+        // Retrieve the thread IDs. A number without a thread has no messages, so there is no
+        // need to create one.
+        final SmsThreadIdCache threadIdCache = SmsThreadIdCache.getInstance(getContext());
         List<String> threadIdStrings = new ArrayList<>();
         for (String phone : mPhoneNums) {
-            try {
-                threadIdStrings.add(String.valueOf(
-                        Telephony.Threads.getOrCreateThreadId(getContext(), phone)));
-            } catch (Exception e) {
-                // Do nothing. Telephony.Threads.getOrCreateThreadId() throws exceptions when
-                // it can't find/create a threadId (b/17657656).
+            final Long threadId = threadIdCache.getThreadId(phone,
+                    /* createIfMissing = */ false);
+            if (threadId != null && !threadIdStrings.contains(String.valueOf(threadId))) {
+                threadIdStrings.add(String.valueOf(threadId));
             }
         }
 
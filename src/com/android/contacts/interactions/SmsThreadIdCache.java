@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.contacts.interactions;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.BaseColumns;
+import android.provider.Telephony.CanonicalAddressesColumns;
+import android.provider.Telephony.MmsSms;
+import android.provider.Telephony.Threads;
+import android.telephony.PhoneNumberUtils;
+import android.text.TextUtils;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Process wide cache of sms thread ids, keyed on the normalized phone number.
+ *
+ * Looking up a thread id is a synchronous call into the telephony provider, which
+ * {@link Threads#getOrCreateThreadId} follows up with creating a thread if none exists. The cache
+ * is flushed whenever anything below {@link Threads#CONTENT_URI} changes, since threads can be
+ * created, merged or deleted by the messaging app at any time.
+ */
+public class SmsThreadIdCache {
+    private static final String TAG = SmsThreadIdCache.class.getSimpleName();
+
+    private static final int MAX_ENTRIES = 64;
+
+    /** Cached for numbers which don't have a thread, so repeated read-only lookups are free */
+    private static final long NO_THREAD = -1;
+
+    private static final Uri CANONICAL_ADDRESSES_URI =
+            Uri.withAppendedPath(MmsSms.CONTENT_URI, "canonical-addresses");
+    private static final Uri THREADS_URI = Threads.CONTENT_URI.buildUpon()
+            .appendQueryParameter("simple", "true").build();
+
+    private static SmsThreadIdCache sInstance;
+
+    private final Context mContext;
+    private final LruCache<String, Long> mThreadIds = new LruCache<String, Long>(MAX_ENTRIES);
+
+    private final ContentObserver mThreadsObserver = new ContentObserver(null) {
+        @Override
+        public void onChange(boolean selfChange) {
+            mThreadIds.evictAll();
+        }
+    };
+
+    public synchronized static SmsThreadIdCache getInstance(Context context) {
+        if (sInstance == null) {
+            final Context applicationContext = context.getApplicationContext();
+            sInstance = new SmsThreadIdCache(applicationContext);
+            applicationContext.getContentResolver().registerContentObserver(
+                    Threads.CONTENT_URI, /* notifyForDescendents = */ true,
+                    sInstance.mThreadsObserver);
+        }
+        return sInstance;
+    }
+
+    private SmsThreadIdCache(Context context) {
+        mContext = context;
+    }
+
+    /**
+     * Returns the id of the thread with {@param phoneNumber}, or null if there is none.
+     *
+     * @param createIfMissing whether to create a thread if none exists yet. If false, this never
+     *     writes to the telephony provider.
+     */
+    public Long getThreadId(String phoneNumber, boolean createIfMissing) {
+        final String normalizedNumber = PhoneNumberUtils.normalizeNumber(phoneNumber);
+        if (TextUtils.isEmpty(normalizedNumber)) {
+            return null;
+        }
+        final Long cachedThreadId = mThreadIds.get(normalizedNumber);
+        if (cachedThreadId != null && (cachedThreadId != NO_THREAD || !createIfMissing)) {
+            return cachedThreadId == NO_THREAD ? null : cachedThreadId;
+        }
+
+        long threadId = NO_THREAD;
+        if (createIfMissing) {
+            try {
+                threadId = Threads.getOrCreateThreadId(mContext, phoneNumber);
+            } catch (Exception e) {
+                // Telephony.Threads.getOrCreateThreadId() throws exceptions when
+                // it can't find/create a threadId (b/17657656).
+                return null;
+            }
+        } else {
+            threadId = findThreadId(phoneNumber);
+        }
+        mThreadIds.put(normalizedNumber, threadId);
+        return threadId == NO_THREAD ? null : threadId;
+    }
+
+    /**
+     * Finds the single recipient thread with {@param phoneNumber} without creating one. Uses the
+     * same fuzzy number matching as {@link Threads#getOrCreateThreadId}.
+     *
+     * Canonical addresses are kept as they were sent or received, possibly formatted, so they
+     * can't be filtered in SQL. The table only holds one row per correspondent, comparing all of
+     * them in memory is cheap.
+     */
+    private long findThreadId(String phoneNumber) {
+        final ContentResolver resolver = mContext.getContentResolver();
+        final List<String> recipientIds = new ArrayList<>();
+        Cursor cursor = null;
+        try {
+            cursor = resolver.query(CANONICAL_ADDRESSES_URI,
+                    new String[] { BaseColumns._ID, CanonicalAddressesColumns.ADDRESS },
+                    null, null, null);
+            if (cursor == null) {
+                return NO_THREAD;
+            }
+            while (cursor.moveToNext()) {
+                if (PhoneNumberUtils.compare(phoneNumber, cursor.getString(1))) {
+                    recipientIds.add(String.valueOf(cursor.getLong(0)));
+                }
+            }
+            cursor.close();
+            if (recipientIds.isEmpty()) {
+                return NO_THREAD;
+            }
+
+            cursor = resolver.query(THREADS_URI, new String[] { Threads._ID },
+                    Threads.RECIPIENT_IDS + " IN "
+                            + ContactInteractionUtil.questionMarks(recipientIds.size()),
+                    recipientIds.toArray(new String[recipientIds.size()]),
+                    Threads.DATE + " DESC");
+            if (cursor != null && cursor.moveToFirst()) {
+                return cursor.getLong(0);
+            }
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Failed to look up thread id", e);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        return NO_THREAD;
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.quickcontact;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.view.InflateException;
+import android.view.LayoutInflater;
+import android.view.ViewGroup;
+import android.widget.LinearLayout;
+
+import com.android.contacts.R;
+import com.android.contacts.quickcontact.ExpandingEntryCardView.EntryView;
+
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Pool of {@link EntryView}s shared by the {@link ExpandingEntryCardView}s of an activity.
+ * Views dropped by a card when it is reinitialized are reused by the next card that needs
+ * one, and views can be inflated ahead of time on a background thread, so that expanding a
+ * card with many entries doesn't inflate them all on the UI thread.
+ *
+ * Except for the background inflation, this must only be used from the UI thread.
+ */
+public class EntryViewPool {
+    private static final String TAG = "EntryViewPool";
+
+    /** Maximum number of spare views kept by the pool. */
+    private static final int MAX_POOL_SIZE = 48;
+
+    private static final ExecutorService sInflaterExecutor = Executors.newSingleThreadExecutor(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    return new Thread(r, TAG);
+                }
+            });
+
+    private final LayoutInflater mLayoutInflater;
+    /**
+     * Separate inflater for the background thread. LayoutInflater isn't thread safe, and the
+     * activity's one is shared with all its views.
+     */
+    private final LayoutInflater mBackgroundLayoutInflater;
+    /** Only used to generate the LayoutParams of the inflated views. */
+    private final ViewGroup mLayoutParamsParent;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final ArrayList<EntryView> mViews = new ArrayList<EntryView>();
+    private int mPendingInflations;
+
+    public EntryViewPool(Context context) {
+        mLayoutInflater = LayoutInflater.from(context);
+        mBackgroundLayoutInflater = mLayoutInflater.cloneInContext(context);
+        mLayoutParamsParent = new LinearLayout(context);
+    }
+
+    /**
+     * Returns a spare view, or inflates a new one if there is none. The view must be reset
+     * with {@link EntryView#reset} before it is bound to an entry.
+     */
+    public EntryView obtain() {
+        final int size = mViews.size();
+        if (size > 0) {
+            return mViews.remove(size - 1);
+        }
+        return inflate(mLayoutInflater);
+    }
+
+    /**
+     * Gives back a view that is no longer displayed.
+     */
+    public void recycle(EntryView view) {
+        final ViewGroup parent = (ViewGroup) view.getParent();
+        if (parent != null) {
+            parent.removeView(view);
+        }
+        if (mViews.size() < MAX_POOL_SIZE) {
+            mViews.add(view);
+        }
+    }
+
+    /**
+     * Inflates views on a background thread until the pool holds {@param count} spare views,
+     * counting the inflations that are already pending.
+     */
+    public void prefill(int count) {
+        final int missing = Math.min(count, MAX_POOL_SIZE) - mViews.size() - mPendingInflations;
+        if (missing <= 0) {
+            return;
+        }
+        mPendingInflations += missing;
+        sInflaterExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < missing; i++) {
+                    EntryView inflated = null;
+                    try {
+                        inflated = inflate(mBackgroundLayoutInflater);
+                    } catch (InflateException e) {
+                        // The view will be inflated on the UI thread when it is needed instead.
+                        Log.w(TAG, "Failed to inflate entry view in the background", e);
+                    }
+                    final EntryView view = inflated;
+                    mMainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            mPendingInflations--;
+                            if (view != null && mViews.size() < MAX_POOL_SIZE) {
+                                mViews.add(view);
+                            }
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    private EntryView inflate(LayoutInflater inflater) {
+        return (EntryView) inflater.inflate(R.layout.expanding_entry_card_item,
+                mLayoutParamsParent, false);
+    }
+}
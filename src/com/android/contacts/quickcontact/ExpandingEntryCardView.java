@@ -18,6 +18,7 @@ package com.android.contacts.quickcontact;
 import android.animation.ObjectAnimator;
 import android.content.Context;
 import android.content.Intent;
+import android.content.res.ColorStateList;
 import android.content.res.Resources;
 import android.graphics.ColorFilter;
 import android.graphics.Rect;
@@ -49,7 +50,9 @@ import android.widget.TextView;
 import com.android.contacts.R;
 
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 /**
  * Display entries in a LinearLayout that can be expanded to show all entries.
@@ -245,6 +248,8 @@ public class ExpandingEntryCardView extends CardView {
      */
     private List<View> mSeparators;
     private LinearLayout mContainer;
+    /** Shared with the other cards of the activity, or null to always inflate new views. */
+    private EntryViewPool mEntryViewPool;
 
     private final OnClickListener mExpandCollapseButtonListener = new OnClickListener() {
         @Override
@@ -281,6 +286,14 @@ public class ExpandingEntryCardView extends CardView {
         mBadgeIds = new ArrayList<Integer>();
     }
 
+    /**
+     * Sets the pool that entry views are taken from and given back to when the card is
+     * reinitialized. The pool is meant to be shared by all the cards of an activity.
+     */
+    public void setEntryViewPool(EntryViewPool entryViewPool) {
+        mEntryViewPool = entryViewPool;
+    }
+
     /**
      * Sets the Entry list to display.
      *
@@ -290,6 +303,7 @@ public class ExpandingEntryCardView extends CardView {
             boolean isExpanded, boolean isAlwaysExpanded,
             ExpandingEntryCardViewListener listener, ViewGroup animationViewGroup) {
         LayoutInflater layoutInflater = LayoutInflater.from(getContext());
+        recycleEntryViews();
         mIsExpanded = isExpanded;
         mIsAlwaysExpanded = isAlwaysExpanded;
         // If isAlwaysExpanded is true, mIsExpanded should be true
@@ -316,11 +330,30 @@ public class ExpandingEntryCardView extends CardView {
         } else {
             updateExpandCollapseButton(getExpandButtonText(), /* duration = */ 0);
             inflateInitialEntries(layoutInflater);
+            if (mEntryViewPool != null && !mAllEntriesInflated) {
+                // Get the views needed to expand the card ready in the background.
+                mEntryViewPool.prefill(mNumEntries - mCollapsedEntriesCount);
+            }
         }
         insertEntriesIntoViewGroup();
         applyColor();
     }
 
+    /**
+     * Removes all entries and separators, and gives the entry views back to the pool.
+     */
+    private void recycleEntryViews() {
+        mEntriesViewGroup.removeAllViews();
+        if (mEntryViews == null || mEntryViewPool == null) {
+            return;
+        }
+        for (List<View> viewList : mEntryViews) {
+            for (View view : viewList) {
+                mEntryViewPool.recycle((EntryView) view);
+            }
+        }
+    }
+
     /**
      * Sets the text for the expand button.
      *
@@ -355,25 +388,20 @@ public class ExpandingEntryCardView extends CardView {
         mOnCreateContextMenuListener = listener;
     }
 
+    /**
+     * Makes the children of the entries ViewGroup match the expanded or collapsed state. Only
+     * the entries and separators that appear or disappear are added or removed, the others
+     * stay attached.
+     */
     private void insertEntriesIntoViewGroup() {
-        mEntriesViewGroup.removeAllViews();
-
+        final List<View> children = new ArrayList<View>(mNumEntries + mEntryViews.size());
         if (mIsExpanded) {
             for (int i = 0; i < mEntryViews.size(); i++) {
                 List<View> viewList = mEntryViews.get(i);
                 if (i > 0) {
-                    View separator;
-                    if (mSeparators.size() <= i - 1) {
-                        separator = generateSeparator(viewList.get(0));
-                        mSeparators.add(separator);
-                    } else {
-                        separator = mSeparators.get(i - 1);
-                    }
-                    mEntriesViewGroup.addView(separator);
-                }
-                for (View view : viewList) {
-                    addEntry(view);
+                    children.add(getSeparator(i - 1, viewList.get(0)));
                 }
+                children.addAll(viewList);
             }
         } else {
             // We want to insert mCollapsedEntriesCount entries into the group. extraEntries is the
@@ -385,40 +413,40 @@ public class ExpandingEntryCardView extends CardView {
                     i++) {
                 List<View> entryViewList = mEntryViews.get(i);
                 if (i > 0) {
-                    View separator;
-                    if (mSeparators.size() <= i - 1) {
-                        separator = generateSeparator(entryViewList.get(0));
-                        mSeparators.add(separator);
-                    } else {
-                        separator = mSeparators.get(i - 1);
-                    }
-                    mEntriesViewGroup.addView(separator);
+                    children.add(getSeparator(i - 1, entryViewList.get(0)));
                 }
-                addEntry(entryViewList.get(0));
+                children.add(entryViewList.get(0));
                 numInViewGroup++;
                 // Insert entries in this list to hit mCollapsedEntriesCount.
                 for (int j = 1;
                         j < entryViewList.size() && numInViewGroup < mCollapsedEntriesCount &&
                         extraEntries > 0;
                         j++) {
-                    addEntry(entryViewList.get(j));
+                    children.add(entryViewList.get(j));
                     numInViewGroup++;
                     extraEntries--;
                 }
             }
         }
 
-        removeView(mExpandCollapseButton);
-        if (mCollapsedEntriesCount < mNumEntries
-                && mExpandCollapseButton.getParent() == null && !mIsAlwaysExpanded) {
-            mContainer.addView(mExpandCollapseButton, -1);
+        // The collapsed children are a subsequence of the expanded ones, so removing the views
+        // that shouldn't be shown leaves the remaining ones in the right order.
+        final Set<View> childSet = new HashSet<View>(children);
+        for (int i = mEntriesViewGroup.getChildCount() - 1; i >= 0; i--) {
+            if (!childSet.contains(mEntriesViewGroup.getChildAt(i))) {
+                mEntriesViewGroup.removeViewAt(i);
+            }
+        }
+        for (int i = 0; i < children.size(); i++) {
+            final View child = children.get(i);
+            if (mEntriesViewGroup.getChildAt(i) != child) {
+                mEntriesViewGroup.addView(child, i);
+            }
         }
-    }
 
-    private void addEntry(View entry) {
-        // If no title and the first entry in the group, add extra padding
-        if (TextUtils.isEmpty(mTitleTextView.getText()) &&
-                mEntriesViewGroup.getChildCount() == 0) {
+        // If no title, add extra padding to the first entry
+        if (TextUtils.isEmpty(mTitleTextView.getText()) && !children.isEmpty()) {
+            final View entry = children.get(0);
             entry.setPadding(entry.getPaddingLeft(),
                     getResources().getDimensionPixelSize(
                             R.dimen.expanding_entry_card_item_padding_top) +
@@ -427,7 +455,24 @@ public class ExpandingEntryCardView extends CardView {
                     entry.getPaddingRight(),
                     entry.getPaddingBottom());
         }
-        mEntriesViewGroup.addView(entry);
+
+        removeView(mExpandCollapseButton);
+        if (mCollapsedEntriesCount < mNumEntries
+                && mExpandCollapseButton.getParent() == null && !mIsAlwaysExpanded) {
+            mContainer.addView(mExpandCollapseButton, -1);
+        }
+    }
+
+    /**
+     * Returns the separator shown before the list at {@param index} + 1, creating it if needed.
+     */
+    private View getSeparator(int index, View firstEntryOfList) {
+        if (mSeparators.size() <= index) {
+            final View separator = generateSeparator(firstEntryOfList);
+            mSeparators.add(separator);
+            return separator;
+        }
+        return mSeparators.get(index);
     }
 
     private View generateSeparator(View entry) {
@@ -596,8 +641,15 @@ public class ExpandingEntryCardView extends CardView {
 
     private View createEntryView(LayoutInflater layoutInflater, final Entry entry,
             int iconVisibility) {
-        final EntryView view = (EntryView) layoutInflater.inflate(
-                R.layout.expanding_entry_card_item, this, false);
+        final EntryView view;
+        if (mEntryViewPool != null) {
+            view = mEntryViewPool.obtain();
+        } else {
+            view = (EntryView) layoutInflater.inflate(
+                    R.layout.expanding_entry_card_item, this, false);
+        }
+        // Pooled views may have been bound to another entry before.
+        view.reset();
 
         view.setContextMenuInfo(entry.getEntryContextMenuInfo());
         if (!TextUtils.isEmpty(entry.getPrimaryContentDescription())) {
@@ -606,12 +658,11 @@ public class ExpandingEntryCardView extends CardView {
 
         final ImageView icon = (ImageView) view.findViewById(R.id.icon);
         icon.setVisibility(iconVisibility);
-        if (entry.getIcon() != null) {
-            icon.setImageDrawable(entry.getIcon());
-        }
+        icon.setImageDrawable(entry.getIcon());
         final TextView header = (TextView) view.findViewById(R.id.header);
         if (!TextUtils.isEmpty(entry.getHeader())) {
             header.setText(entry.getHeader());
+            header.setVisibility(View.VISIBLE);
         } else {
             header.setVisibility(View.GONE);
         }
@@ -619,6 +670,7 @@ public class ExpandingEntryCardView extends CardView {
         final TextView subHeader = (TextView) view.findViewById(R.id.sub_header);
         if (!TextUtils.isEmpty(entry.getSubHeader())) {
             subHeader.setText(entry.getSubHeader());
+            subHeader.setVisibility(View.VISIBLE);
         } else {
             subHeader.setVisibility(View.GONE);
         }
@@ -626,13 +678,16 @@ public class ExpandingEntryCardView extends CardView {
         final ImageView subHeaderIcon = (ImageView) view.findViewById(R.id.icon_sub_header);
         if (entry.getSubHeaderIcon() != null) {
             subHeaderIcon.setImageDrawable(entry.getSubHeaderIcon());
+            subHeaderIcon.setVisibility(View.VISIBLE);
         } else {
+            subHeaderIcon.setImageDrawable(null);
             subHeaderIcon.setVisibility(View.GONE);
         }
 
         final TextView text = (TextView) view.findViewById(R.id.text);
         if (!TextUtils.isEmpty(entry.getText())) {
             text.setText(entry.getText());
+            text.setVisibility(View.VISIBLE);
         } else {
             text.setVisibility(View.GONE);
         }
@@ -640,7 +695,9 @@ public class ExpandingEntryCardView extends CardView {
         final ImageView textIcon = (ImageView) view.findViewById(R.id.icon_text);
         if (entry.getTextIcon() != null) {
             textIcon.setImageDrawable(entry.getTextIcon());
+            textIcon.setVisibility(View.VISIBLE);
         } else {
+            textIcon.setImageDrawable(null);
             textIcon.setVisibility(View.GONE);
         }
 
@@ -914,6 +971,15 @@ public class ExpandingEntryCardView extends CardView {
     public static final class EntryView extends RelativeLayout {
         private EntryContextMenuInfo mEntryContextMenuInfo;
 
+        // State from the layout, restored by reset() before the view is bound to another entry.
+        private int mDefaultPaddingTop;
+        private Drawable mDefaultBackground;
+        private boolean mDefaultClickable;
+        private boolean mDefaultLongClickable;
+        private int mDefaultHeaderTopMargin;
+        private int mDefaultHeaderBottomMargin;
+        private ColorStateList mDefaultHeaderTextColors;
+
         public EntryView(Context context) {
             super(context);
         }
@@ -922,6 +988,57 @@ public class ExpandingEntryCardView extends CardView {
             super(context, attrs);
         }
 
+        @Override
+        protected void onFinishInflate() {
+            super.onFinishInflate();
+            mDefaultPaddingTop = getPaddingTop();
+            mDefaultBackground = getBackground();
+            mDefaultClickable = isClickable();
+            mDefaultLongClickable = isLongClickable();
+            final TextView header = (TextView) findViewById(R.id.header);
+            final MarginLayoutParams headerLayoutParams =
+                    (MarginLayoutParams) header.getLayoutParams();
+            mDefaultHeaderTopMargin = headerLayoutParams.topMargin;
+            mDefaultHeaderBottomMargin = headerLayoutParams.bottomMargin;
+            mDefaultHeaderTextColors = header.getTextColors();
+        }
+
+        /**
+         * Restores the state that binding an entry changes, so that the view can be reused for
+         * another entry. Views, texts and icons that are always set when binding are left alone.
+         */
+        public void reset() {
+            mEntryContextMenuInfo = null;
+            setContentDescription(null);
+            setTag(null);
+            setOnClickListener(null);
+            setClickable(mDefaultClickable);
+            setLongClickable(mDefaultLongClickable);
+            setBackground(mDefaultBackground);
+            setPaddingRelative(getPaddingStart(), mDefaultPaddingTop, getPaddingEnd(),
+                    getPaddingBottom());
+
+            final TextView header = (TextView) findViewById(R.id.header);
+            final MarginLayoutParams headerLayoutParams =
+                    (MarginLayoutParams) header.getLayoutParams();
+            headerLayoutParams.topMargin = mDefaultHeaderTopMargin;
+            headerLayoutParams.bottomMargin = mDefaultHeaderBottomMargin;
+            header.setLayoutParams(headerLayoutParams);
+            header.setTextColor(mDefaultHeaderTextColors);
+
+            resetActionIcon((ImageView) findViewById(R.id.icon_alternate));
+            resetActionIcon((ImageView) findViewById(R.id.third_icon));
+        }
+
+        private static void resetActionIcon(ImageView icon) {
+            icon.setImageDrawable(null);
+            icon.setOnClickListener(null);
+            icon.setClickable(false);
+            icon.setTag(null);
+            icon.setContentDescription(null);
+            icon.setVisibility(View.GONE);
+        }
+
         public void setContextMenuInfo(EntryContextMenuInfo info) {
             mEntryContextMenuInfo = info;
         }
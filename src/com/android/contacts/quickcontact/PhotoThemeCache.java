@@ -0,0 +1,359 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.quickcontact;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.Context;
+import android.database.Cursor;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.media.ThumbnailUtils;
+import android.net.Uri;
+import android.provider.ContactsContract.Contacts;
+import android.support.v7.graphics.Palette;
+import android.util.AtomicFile;
+import android.util.Log;
+import android.util.LruCache;
+
+import com.android.contacts.common.util.MaterialColorMapUtils;
+import com.android.contacts.common.util.MaterialColorMapUtils.MaterialPalette;
+import com.android.contacts.util.ImageViewDrawableSetter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Remembers the theme that {@link QuickContactActivity} derives from a contact photo: the
+ * {@link MaterialPalette} extracted with {@link Palette} and whether the photo is white where
+ * QuickContacts places its header text. Both only depend on the photo bytes, so entries are keyed
+ * by the photo id along with fingerprints of the thumbnail and the full sized photo, which are
+ * cheap enough to compute on the UI thread. Entries are kept in a bounded LRU and
+ * persisted to the cache directory, so that a contact opened before has its theme available
+ * before the first frame is drawn.
+ */
+public class PhotoThemeCache {
+    private static final String TAG = "PhotoThemeCache";
+
+    private static final String CACHE_FILE_NAME = "quickcontact_photo_themes";
+    private static final int CACHE_FILE_VERSION = 2;
+
+    /** Maximum number of themes kept in memory and on disk. */
+    private static final int MAX_ENTRIES = 200;
+
+    /** Maximum number of starred contacts analyzed by {@link #prewarmStarredContacts}. */
+    private static final int MAX_STARRED_CONTACTS_TO_PREWARM = 30;
+
+    /** Author of Palette recommends using 24 colors when analyzing profile photos. */
+    private static final int NUMBER_OF_PALETTE_COLORS = 24;
+
+    /**
+     * Theme derived from a contact photo.
+     */
+    public static final class PhotoTheme {
+        public final MaterialPalette palette;
+        public final boolean isWhite;
+
+        public PhotoTheme(MaterialPalette palette, boolean isWhite) {
+            this.palette = palette;
+            this.isWhite = isWhite;
+        }
+    }
+
+    private static PhotoThemeCache sInstance;
+
+    private final Context mContext;
+    private final MaterialColorMapUtils mMaterialColorMapUtils;
+    private final LruCache<String, PhotoTheme> mCache =
+            new LruCache<String, PhotoTheme>(MAX_ENTRIES);
+
+    /** Serializes disk reads, disk writes and the prewarming of starred contacts. */
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+
+    private boolean mWriteScheduled;
+    private boolean mHasPrewarmed;
+
+    public synchronized static PhotoThemeCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new PhotoThemeCache(context.getApplicationContext());
+            sInstance.mExecutor.execute(sInstance.mReadFromDisk);
+        }
+        return sInstance;
+    }
+
+    private PhotoThemeCache(Context context) {
+        mContext = context;
+        mMaterialColorMapUtils = new MaterialColorMapUtils(context.getResources());
+    }
+
+    /**
+     * Returns the key identifying a photo, or null if there is no photo. Only samples the
+     * photo bytes, see {@link ImageViewDrawableSetter#fingerprint}, so it can be called from
+     * the UI thread.
+     *
+     * @param photoId the {@link Contacts#PHOTO_ID} of the contact. The photo data row is
+     * updated in place when the photo changes, the fingerprints tell the versions apart.
+     */
+    public static String computeKey(long photoId, byte[] thumbnailPhoto, byte[] photo) {
+        if (thumbnailPhoto == null && photo == null) {
+            return null;
+        }
+        return photoId + ":" + fingerprintToString(thumbnailPhoto) + ":"
+                + fingerprintToString(photo);
+    }
+
+    private static String fingerprintToString(byte[] bytes) {
+        // Keep a missing photo apart from an empty one.
+        return bytes == null ? "-"
+                : Integer.toHexString(ImageViewDrawableSetter.fingerprint(bytes));
+    }
+
+    /**
+     * Returns the cached theme for {@param key}, or null if it hasn't been computed yet.
+     */
+    public PhotoTheme get(String key) {
+        return key == null ? null : mCache.get(key);
+    }
+
+    /**
+     * Computes the theme of a photo and adds it to the cache. Must not be called from the UI
+     * thread.
+     *
+     * @param thumbnailPhoto compressed thumbnail, used for the palette so that the colors match
+     * other apps showing the same contact
+     * @param photo the decoded photo as shown by QuickContacts, used for the whiteness
+     */
+    public PhotoTheme computeAndPut(String key, byte[] thumbnailPhoto, Bitmap photo) {
+        final PhotoTheme theme = new PhotoTheme(computePalette(thumbnailPhoto),
+                WhitenessUtils.isBitmapWhiteAtTopOrBottom(photo));
+        if (key != null) {
+            mCache.put(key, theme);
+            scheduleWriteToDisk();
+        }
+        return theme;
+    }
+
+    private MaterialPalette computePalette(byte[] thumbnailPhoto) {
+        if (thumbnailPhoto != null && thumbnailPhoto.length > 0) {
+            final Bitmap bitmap = BitmapFactory.decodeByteArray(thumbnailPhoto, 0,
+                    thumbnailPhoto.length);
+            if (bitmap != null) {
+                try {
+                    final Palette palette = Palette.generate(bitmap, NUMBER_OF_PALETTE_COLORS);
+                    if (palette != null && palette.getVibrantSwatch() != null) {
+                        final int primaryColor = palette.getVibrantSwatch().getRgb();
+                        if (primaryColor != 0) {
+                            return mMaterialColorMapUtils.calculatePrimaryAndSecondaryColor(
+                                    primaryColor);
+                        }
+                    }
+                } finally {
+                    bitmap.recycle();
+                }
+            }
+        }
+        return MaterialColorMapUtils.getDefaultPrimaryAndSecondaryColors(
+                mContext.getResources());
+    }
+
+    /**
+     * Computes the themes of the starred contacts with photos in the background, so that opening
+     * them from the favorites doesn't need to wait for the photo analysis. Only the first call
+     * does any work.
+     */
+    public void prewarmStarredContacts() {
+        synchronized (this) {
+            if (mHasPrewarmed) {
+                return;
+            }
+            mHasPrewarmed = true;
+        }
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                prewarmStarredContactsInBackground();
+            }
+        });
+    }
+
+    private void prewarmStarredContactsInBackground() {
+        final ContentResolver resolver = mContext.getContentResolver();
+        final Cursor cursor = resolver.query(Contacts.CONTENT_URI,
+                new String[] {Contacts._ID, Contacts.PHOTO_ID},
+                Contacts.STARRED + "=1 AND " + Contacts.PHOTO_ID + " IS NOT NULL", null,
+                Contacts.LAST_TIME_CONTACTED + " DESC");
+        if (cursor == null) {
+            return;
+        }
+        try {
+            int count = 0;
+            while (cursor.moveToNext() && count < MAX_STARRED_CONTACTS_TO_PREWARM) {
+                count++;
+                final Uri contactUri = ContentUris.withAppendedId(Contacts.CONTENT_URI,
+                        cursor.getLong(0));
+                // Mirror what the contact loader hands to QuickContacts: the thumbnail, and the
+                // display photo if there is one or the thumbnail otherwise.
+                final byte[] thumbnailPhoto = readPhoto(resolver, contactUri, false);
+                final byte[] photo = readPhoto(resolver, contactUri, true);
+                final String key = computeKey(cursor.getLong(1), thumbnailPhoto, photo);
+                if (key == null || photo == null || mCache.get(key) != null) {
+                    continue;
+                }
+                final Bitmap bitmap = decodeSquareBitmap(photo);
+                if (bitmap != null) {
+                    computeAndPut(key, thumbnailPhoto, bitmap);
+                    bitmap.recycle();
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static byte[] readPhoto(ContentResolver resolver, Uri contactUri,
+            boolean preferHighres) {
+        final InputStream in = Contacts.openContactPhotoInputStream(resolver, contactUri,
+                preferHighres);
+        if (in == null) {
+            return null;
+        }
+        try {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[16 * 1024];
+            int size;
+            while ((size = in.read(buffer)) != -1) {
+                out.write(buffer, 0, size);
+            }
+            return out.toByteArray();
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to read photo of " + contactUri, e);
+            return null;
+        } finally {
+            try {
+                in.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+    }
+
+    /**
+     * Decodes {@param compressed} and crops it the same way the QuickContacts photo view does.
+     */
+    private static Bitmap decodeSquareBitmap(byte[] compressed) {
+        final Bitmap bitmap = BitmapFactory.decodeByteArray(compressed, 0, compressed.length);
+        if (bitmap == null || bitmap.getHeight() == bitmap.getWidth()) {
+            return bitmap;
+        }
+        final int size = Math.min(bitmap.getWidth(), bitmap.getHeight());
+        return ThumbnailUtils.extractThumbnail(bitmap, size, size,
+                ThumbnailUtils.OPTIONS_RECYCLE_INPUT);
+    }
+
+    private File getCacheFile() {
+        return new File(mContext.getCacheDir(), CACHE_FILE_NAME);
+    }
+
+    private void scheduleWriteToDisk() {
+        synchronized (this) {
+            if (mWriteScheduled) {
+                return;
+            }
+            mWriteScheduled = true;
+        }
+        mExecutor.execute(mWriteToDisk);
+    }
+
+    private final Runnable mReadFromDisk = new Runnable() {
+        @Override
+        public void run() {
+            final AtomicFile file = new AtomicFile(getCacheFile());
+            DataInputStream in = null;
+            try {
+                in = new DataInputStream(file.openRead());
+                if (in.readInt() != CACHE_FILE_VERSION) {
+                    return;
+                }
+                final int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    final String key = in.readUTF();
+                    final MaterialPalette palette = new MaterialPalette(in.readInt(),
+                            in.readInt());
+                    final boolean isWhite = in.readBoolean();
+                    // Don't override themes computed while the file was being read.
+                    if (mCache.get(key) == null) {
+                        mCache.put(key, new PhotoTheme(palette, isWhite));
+                    }
+                }
+            } catch (FileNotFoundException e) {
+                // Nothing was cached yet
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to read " + CACHE_FILE_NAME, e);
+            } finally {
+                if (in != null) {
+                    try {
+                        in.close();
+                    } catch (IOException e) {
+                        // Ignore
+                    }
+                }
+            }
+        }
+    };
+
+    private final Runnable mWriteToDisk = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (PhotoThemeCache.this) {
+                mWriteScheduled = false;
+            }
+            // Ordered from least to most recently used, so reading the file back restores the
+            // LRU order.
+            final Map<String, PhotoTheme> snapshot = mCache.snapshot();
+            final AtomicFile file = new AtomicFile(getCacheFile());
+            FileOutputStream fos = null;
+            try {
+                fos = file.startWrite();
+                final DataOutputStream out = new DataOutputStream(fos);
+                out.writeInt(CACHE_FILE_VERSION);
+                out.writeInt(snapshot.size());
+                for (Map.Entry<String, PhotoTheme> entry : snapshot.entrySet()) {
+                    out.writeUTF(entry.getKey());
+                    out.writeInt(entry.getValue().palette.mPrimaryColor);
+                    out.writeInt(entry.getValue().palette.mSecondaryColor);
+                    out.writeBoolean(entry.getValue().isWhite);
+                }
+                out.flush();
+                file.finishWrite(fos);
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to write " + CACHE_FILE_NAME, e);
+                if (fos != null) {
+                    file.failWrite(fos);
+                }
+            }
+        }
+    };
+}
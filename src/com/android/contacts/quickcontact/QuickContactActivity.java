@@ -24,16 +24,17 @@ import android.app.Fragment;
 import android.app.LoaderManager.LoaderCallbacks;
 import android.app.SearchManager;
 import android.content.ActivityNotFoundException;
+import android.content.BroadcastReceiver;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.Loader;
 import android.content.pm.PackageManager;
 import android.content.pm.ResolveInfo;
 import android.content.res.Resources;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.graphics.Color;
 import android.graphics.PorterDuff;
 import android.graphics.PorterDuffColorFilter;
@@ -69,13 +70,13 @@ import android.provider.ContactsContract.DataUsageFeedback;
 import android.provider.ContactsContract.Intents;
 import android.provider.ContactsContract.QuickContact;
 import android.provider.ContactsContract.RawContacts;
-import android.support.v7.graphics.Palette;
 import android.telecom.PhoneAccount;
 import android.telecom.TelecomManager;
 import android.text.BidiFormatter;
 import android.text.TextDirectionHeuristics;
 import android.text.TextUtils;
 import android.util.Log;
+import android.util.LruCache;
 import android.view.ContextMenu;
 import android.view.ContextMenu.ContextMenuInfo;
 import android.view.Menu;
@@ -128,15 +129,14 @@ import com.android.contacts.common.util.MaterialColorMapUtils.MaterialPalette;
 import com.android.contacts.common.util.ViewUtil;
 import com.android.contacts.detail.ContactDisplayUtils;
 import com.android.contacts.editor.ContactEditorFragment;
-import com.android.contacts.interactions.CalendarInteractionsLoader;
-import com.android.contacts.interactions.CallLogInteractionsLoader;
 import com.android.contacts.interactions.ContactDeletionInteraction;
 import com.android.contacts.interactions.ContactInteraction;
-import com.android.contacts.interactions.SmsInteractionsLoader;
+import com.android.contacts.interactions.ContactInteractionTimelineLoader;
 import com.android.contacts.quickcontact.ExpandingEntryCardView.Entry;
 import com.android.contacts.quickcontact.ExpandingEntryCardView.EntryContextMenuInfo;
 import com.android.contacts.quickcontact.ExpandingEntryCardView.EntryTag;
 import com.android.contacts.quickcontact.ExpandingEntryCardView.ExpandingEntryCardViewListener;
+import com.android.contacts.quickcontact.PhotoThemeCache.PhotoTheme;
 import com.android.contacts.util.ImageViewDrawableSetter;
 import com.android.contacts.util.PhoneCapabilityTester;
 import com.android.contacts.util.SchedulingUtils;
@@ -156,6 +156,14 @@ import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Mostly translucent {@link Activity} that shows QuickContact dialog. It loads
@@ -173,6 +181,55 @@ public class QuickContactActivity extends ContactsActivity {
 
     private static final String TAG = "QuickContact";
 
+    private static final int CARD_MODEL_THREAD_COUNT =
+            Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+    /**
+     * Builds the entries of the mimetypes of a contact in parallel. Bounded, and shared by all
+     * instances, so that heavily aggregated contacts can't starve the rest of the app.
+     */
+    private static final ThreadPoolExecutor sCardModelExecutor = new ThreadPoolExecutor(
+            CARD_MODEL_THREAD_COUNT, CARD_MODEL_THREAD_COUNT, 10, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                private final AtomicInteger mCount = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    return new Thread(r, "QuickContactCardModel #" + mCount.incrementAndGet());
+                }
+            });
+
+    static {
+        sCardModelExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    private static final int MAX_CACHED_CARD_MODELS = 8;
+
+    /**
+     * Entry views inflated in the background when QuickContacts starts, enough for the
+     * collapsed cards of a typical contact.
+     */
+    private static final int INITIAL_ENTRY_VIEW_POOL_SIZE = 12;
+
+    /**
+     * Card models of recently shown contacts, keyed by {@link #getCp2DataCardModelKey}, so that
+     * reopening an unchanged contact doesn't rebuild its cards.
+     */
+    private static final LruCache<String, Cp2DataCardModel> sCp2DataCardModelCache =
+            new LruCache<String, Cp2DataCardModel>(MAX_CACHED_CARD_MODELS);
+
+    /**
+     * The cached card models hold actions resolved against the installed apps, so they are
+     * dropped whenever a package is added, removed or changed.
+     */
+    private static final BroadcastReceiver sPackageChangeReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            sCp2DataCardModelCache.evictAll();
+        }
+    };
+    private static boolean sPackageChangeReceiverRegistered;
+
     private static final String KEY_THEME_COLOR = "theme_color";
 
     private static final int ANIMATION_STATUS_BAR_COLOR_CHANGE_DURATION = 150;
@@ -217,7 +274,7 @@ public class QuickContactActivity extends ContactsActivity {
     private ExpandingEntryCardView mAboutCard;
     private MultiShrinkScroller mScroller;
     private SelectAccountDialogFragmentListener mSelectAccountFragmentListener;
-    private AsyncTask<Void, Void, Cp2DataCardModel> mEntriesAndActionsTask;
+    private AsyncTask<Void, Cp2DataCardModel, Cp2DataCardModel> mEntriesAndActionsTask;
     private AsyncTask<Void, Void, Void> mRecentDataTask;
     /**
      * The last copy of Cp2DataCardModel that was passed to {@link #populateContactAndAboutCard}.
@@ -232,6 +289,7 @@ public class QuickContactActivity extends ContactsActivity {
     private ColorDrawable mWindowScrim;
     private boolean mIsEntranceAnimationFinished;
     private MaterialColorMapUtils mMaterialColorMapUtils;
+    private PhotoThemeCache mPhotoThemeCache;
     private boolean mIsExitAnimationInProgress;
     private boolean mHasComputedThemeColor;
 
@@ -278,12 +336,10 @@ public class QuickContactActivity extends ContactsActivity {
     private static final String KEY_LOADER_EXTRA_PHONES =
             QuickContactActivity.class.getCanonicalName() + ".KEY_LOADER_EXTRA_PHONES";
 
-    /** Id for the background Sms Loader */
-    private static final int LOADER_SMS_ID = 1;
+    /** Id for the background interaction timeline Loader (sms, calendar and call log) */
+    private static final int LOADER_INTERACTIONS_ID = 1;
     private static final int MAX_SMS_RETRIEVE = 3;
 
-    /** Id for the back Calendar Loader */
-    private static final int LOADER_CALENDAR_ID = 2;
     private static final String KEY_LOADER_EXTRA_EMAILS =
             QuickContactActivity.class.getCanonicalName() + ".KEY_LOADER_EXTRA_EMAILS";
     private static final int MAX_PAST_CALENDAR_RETRIEVE = 3;
@@ -293,19 +349,14 @@ public class QuickContactActivity extends ContactsActivity {
     private static final long FUTURE_MILLISECOND_TO_SEARCH_LOCAL_CALENDAR =
             7L * 24L * 60L * 60L * 1000L /* 7 days */;
 
-    /** Id for the background Call Log Loader */
-    private static final int LOADER_CALL_LOG_ID = 3;
     private static final int MAX_CALL_LOG_RETRIEVE = 3;
     private static final int MIN_NUM_CONTACT_ENTRIES_SHOWN = 3;
     private static final int MIN_NUM_COLLAPSED_RECENT_ENTRIES_SHOWN = 3;
     private static final int CARD_ENTRY_ID_EDIT_CONTACT = -2;
 
 
-    private static final int[] mRecentLoaderIds = new int[]{
-        LOADER_SMS_ID,
-        LOADER_CALENDAR_ID,
-        LOADER_CALL_LOG_ID};
-    private Map<Integer, List<ContactInteraction>> mRecentLoaderResults = new HashMap<>();
+    /** Whether the recent card was bound with the interactions of all sources */
+    private boolean mIsRecentDataComplete;
 
     private static final String FRAGMENT_TAG_SELECT_ACCOUNT = "select_account_fragment";
 
@@ -634,15 +685,32 @@ public class QuickContactActivity extends ContactsActivity {
 
         setContentView(R.layout.quickcontact_activity);
 
+        registerPackageChangeReceiver(getApplicationContext());
+
         mMaterialColorMapUtils = new MaterialColorMapUtils(getResources());
+        mPhotoThemeCache = PhotoThemeCache.getInstance(this);
 
         mScroller = (MultiShrinkScroller) findViewById(R.id.multiscroller);
+        mPhotoSetter.setListener(new ImageViewDrawableSetter.Listener() {
+            @Override
+            public void onImageSet(Bitmap bitmap) {
+                extractAndApplyTintFromPhotoViewAsynchronously();
+            }
+        });
 
         mContactCard = (ExpandingEntryCardView) findViewById(R.id.communication_card);
         mNoContactDetailsCard = (ExpandingEntryCardView) findViewById(R.id.no_contact_data_card);
         mRecentCard = (ExpandingEntryCardView) findViewById(R.id.recent_card);
         mAboutCard = (ExpandingEntryCardView) findViewById(R.id.about_card);
 
+        // The cards share their entry views, and the views are inflated in the background.
+        final EntryViewPool entryViewPool = new EntryViewPool(this);
+        mContactCard.setEntryViewPool(entryViewPool);
+        mNoContactDetailsCard.setEntryViewPool(entryViewPool);
+        mRecentCard.setEntryViewPool(entryViewPool);
+        mAboutCard.setEntryViewPool(entryViewPool);
+        entryViewPool.prefill(INITIAL_ENTRY_VIEW_POOL_SIZE);
+
         mNoContactDetailsCard.setOnClickListener(mEntryClickHandler);
         mContactCard.setOnClickListener(mEntryClickHandler);
         mContactCard.setExpandButtonText(
@@ -799,9 +867,7 @@ public class QuickContactActivity extends ContactsActivity {
         } else if (oldLookupUri != mLookupUri) {
             // After copying a directory contact, the contact URI changes. Therefore,
             // we need to restart the loader and reload the new contact.
-            for (int interactionLoaderId : mRecentLoaderIds) {
-                getLoaderManager().destroyLoader(interactionLoaderId);
-            }
+            getLoaderManager().destroyLoader(LOADER_INTERACTIONS_ID);
             mContactLoader = (ContactLoader) getLoaderManager().restartLoader(
                     LOADER_CONTACT_ID, null, mLoaderContactCallbacks);
         }
@@ -859,19 +925,61 @@ public class QuickContactActivity extends ContactsActivity {
         Trace.beginSection("Set display photo & name");
 
         mPhotoView.setIsBusiness(mContactData.isDisplayNameFromOrganization());
+        // The thumbnail is displayed right away while the photo is decoded in the background,
+        // the tint is extracted as soon as the thumbnail is displayed.
         mPhotoSetter.setupContactPhoto(data, mPhotoView);
-        extractAndApplyTintFromPhotoViewAsynchronously();
-        analyzeWhitenessOfPhotoAsynchronously();
         setHeaderNameText(ContactDisplayUtils.getDisplayName(this, data).toString());
 
         Trace.endSection();
 
-        mEntriesAndActionsTask = new AsyncTask<Void, Void, Cp2DataCardModel>() {
+        // If the contact hasn't changed since it was last shown, reuse its card model. The
+        // key is only valid for the data the ContactLoader just returned, so a stale model can't
+        // be bound.
+        final String cardModelKey = getCp2DataCardModelKey(data);
+        final Cp2DataCardModel cachedCardModel =
+                cardModelKey == null ? null : sCp2DataCardModelCache.get(cardModelKey);
+        if (cachedCardModel != null) {
+            if (mEntriesAndActionsTask != null) {
+                mEntriesAndActionsTask.cancel(/* mayInterruptIfRunning = */ false);
+            }
+            bindDataToCards(cachedCardModel);
+            showActivity();
+            return;
+        }
+
+        mEntriesAndActionsTask = new AsyncTask<Void, Cp2DataCardModel, Cp2DataCardModel>() {
+            private boolean mHasBoundContactCard;
 
             @Override
             protected Cp2DataCardModel doInBackground(
                     Void... params) {
-                return generateDataModelFromContact(data);
+                final Cp2DataCardModel cardDataModel = generateDataModelFromContact(data,
+                        new ContactCardModelListener() {
+                            @Override
+                            public void onContactCardModelReady(
+                                    Cp2DataCardModel contactCardModel) {
+                                publishProgress(contactCardModel);
+                            }
+                        });
+                if (cardDataModel != null && cardModelKey != null) {
+                    sCp2DataCardModelCache.put(cardModelKey, cardDataModel);
+                }
+                return cardDataModel;
+            }
+
+            @Override
+            protected void onProgressUpdate(Cp2DataCardModel... contactCardModels) {
+                super.onProgressUpdate(contactCardModels);
+                // Bind the contact card while the about card is still being built.
+                if (data == mContactData && !isCancelled()) {
+                    mHasBoundContactCard = true;
+                    mCachedCp2DataCardModel = contactCardModels[0];
+                    startInteractionLoaders(contactCardModels[0]);
+                    if (!mHasIntentLaunched) {
+                        populateContactCard(contactCardModels[0]);
+                    }
+                    showActivity();
+                }
             }
 
             @Override
@@ -880,9 +988,16 @@ public class QuickContactActivity extends ContactsActivity {
                 // Check that original AsyncTask parameters are still valid and the activity
                 // is still running before binding to UI. A new intent could invalidate
                 // the results, for example.
-                if (data == mContactData && !isCancelled()) {
-                    bindDataToCards(cardDataModel);
-                    showActivity();
+                if (cardDataModel != null && data == mContactData && !isCancelled()) {
+                    if (mHasBoundContactCard) {
+                        mCachedCp2DataCardModel = cardDataModel;
+                        if (!mHasIntentLaunched) {
+                            populateAboutCard(cardDataModel);
+                        }
+                    } else {
+                        bindDataToCards(cardDataModel);
+                        showActivity();
+                    }
                 }
             }
         };
@@ -907,25 +1022,7 @@ public class QuickContactActivity extends ContactsActivity {
                 phoneNumbers[i] = ((PhoneDataItem) phoneDataItems.get(i)).getNumber();
             }
         }
-        final Bundle phonesExtraBundle = new Bundle();
-        phonesExtraBundle.putStringArray(KEY_LOADER_EXTRA_PHONES, phoneNumbers);
-
-        Trace.beginSection("start sms loader");
-        getLoaderManager().initLoader(
-                LOADER_SMS_ID,
-                phonesExtraBundle,
-                mLoaderInteractionsCallbacks);
-        Trace.endSection();
 
-        Trace.beginSection("start call log loader");
-        getLoaderManager().initLoader(
-                LOADER_CALL_LOG_ID,
-                phonesExtraBundle,
-                mLoaderInteractionsCallbacks);
-        Trace.endSection();
-
-
-        Trace.beginSection("start calendar loader");
         final List<DataItem> emailDataItems = dataItemsMap.get(Email.CONTENT_ITEM_TYPE);
         if (emailDataItems != null && emailDataItems.size() == 1) {
             mOnlyOneEmail = true;
@@ -937,11 +1034,15 @@ public class QuickContactActivity extends ContactsActivity {
                 emailAddresses[i] = ((EmailDataItem) emailDataItems.get(i)).getAddress();
             }
         }
-        final Bundle emailsExtraBundle = new Bundle();
-        emailsExtraBundle.putStringArray(KEY_LOADER_EXTRA_EMAILS, emailAddresses);
+
+        final Bundle interactionsExtraBundle = new Bundle();
+        interactionsExtraBundle.putStringArray(KEY_LOADER_EXTRA_PHONES, phoneNumbers);
+        interactionsExtraBundle.putStringArray(KEY_LOADER_EXTRA_EMAILS, emailAddresses);
+
+        Trace.beginSection("start interactions loader");
         getLoaderManager().initLoader(
-                LOADER_CALENDAR_ID,
-                emailsExtraBundle,
+                LOADER_INTERACTIONS_ID,
+                interactionsExtraBundle,
                 mLoaderInteractionsCallbacks);
         Trace.endSection();
     }
@@ -959,24 +1060,6 @@ public class QuickContactActivity extends ContactsActivity {
         }
     }
 
-    private List<List<Entry>> buildAboutCardEntries(Map<String, List<DataItem>> dataItemsMap) {
-        final List<List<Entry>> aboutCardEntries = new ArrayList<>();
-        for (String mimetype : SORTED_ABOUT_CARD_MIMETYPES) {
-            final List<DataItem> mimeTypeItems = dataItemsMap.get(mimetype);
-            if (mimeTypeItems == null) {
-                continue;
-            }
-            // Set aboutCardTitleOut = null, since SORTED_ABOUT_CARD_MIMETYPES doesn't contain
-            // the name mimetype.
-            final List<Entry> aboutEntries = dataItemsToEntries(mimeTypeItems,
-                    /* aboutCardTitleOut = */ null);
-            if (aboutEntries.size() > 0) {
-                aboutCardEntries.add(aboutEntries);
-            }
-        }
-        return aboutCardEntries;
-    }
-
     @Override
     protected void onResume() {
         super.onResume();
@@ -992,11 +1075,14 @@ public class QuickContactActivity extends ContactsActivity {
         if (mHasIntentLaunched || cp2DataCardModel == null) {
             return;
         }
+        populateContactCard(cp2DataCardModel);
+        populateAboutCard(cp2DataCardModel);
+    }
+
+    private void populateContactCard(Cp2DataCardModel cp2DataCardModel) {
         Trace.beginSection("bind contact card");
 
         final List<List<Entry>> contactCardEntries = cp2DataCardModel.contactCardEntries;
-        final List<List<Entry>> aboutCardEntries = cp2DataCardModel.aboutCardEntries;
-        final String customAboutCardName = cp2DataCardModel.customAboutCardName;
 
         if (contactCardEntries.size() > 0) {
             mContactCard.initialize(contactCardEntries,
@@ -1010,8 +1096,17 @@ public class QuickContactActivity extends ContactsActivity {
             mContactCard.setVisibility(View.GONE);
         }
         Trace.endSection();
+    }
 
+    private void populateAboutCard(Cp2DataCardModel cp2DataCardModel) {
         Trace.beginSection("bind about card");
+
+        final List<List<Entry>> contactCardEntries = cp2DataCardModel.contactCardEntries;
+        // Copy the list, since the model may be bound again and the phonetic name is added below
+        final List<List<Entry>> aboutCardEntries =
+                new ArrayList<>(cp2DataCardModel.aboutCardEntries);
+        final String customAboutCardName = cp2DataCardModel.customAboutCardName;
+
         // Phonetic name is not a data item, so the entry needs to be created separately
         final String phoneticName = mContactData.getPhoneticName();
         if (!TextUtils.isEmpty(phoneticName)) {
@@ -1066,7 +1161,7 @@ public class QuickContactActivity extends ContactsActivity {
 
         // If the Recent card is already initialized (all recent data is loaded), show the About
         // card if it has entries. Otherwise About card visibility will be set in bindRecentData()
-        if (isAllRecentDataLoaded() && aboutCardEntries.size() > 0) {
+        if (mIsRecentDataComplete && aboutCardEntries.size() > 0) {
             mAboutCard.setVisibility(View.VISIBLE);
         }
         Trace.endSection();
@@ -1117,101 +1212,261 @@ public class QuickContactActivity extends ContactsActivity {
         mNoContactDetailsCard.setColorAndFilter(subHeaderTextColor, greyColorFilter);
     }
 
+    private static synchronized void registerPackageChangeReceiver(Context applicationContext) {
+        if (sPackageChangeReceiverRegistered) {
+            return;
+        }
+        sPackageChangeReceiverRegistered = true;
+        final IntentFilter filter = new IntentFilter(Intent.ACTION_PACKAGE_ADDED);
+        filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        filter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        filter.addDataScheme("package");
+        applicationContext.registerReceiver(sPackageChangeReceiver, filter);
+    }
+
     /**
-     * Builds the {@link DataItem}s Map out of the Contact.
+     * Returns the key of the card model of {@param data} in {@link #sCp2DataCardModelCache}, or
+     * null if the model can't be cached. The key changes whenever one of the raw contacts of
+     * the contact changes, when a raw contact is added or removed, or when the contact's data
+     * is used.
+     */
+    private String getCp2DataCardModelKey(Contact data) {
+        if (TextUtils.isEmpty(data.getLookupKey()) || data.isDirectoryEntry()) {
+            return null;
+        }
+        final StringBuilder sb = new StringBuilder(data.getLookupKey());
+        for (RawContact rawContact : data.getRawContacts()) {
+            final Long version = rawContact.getValues().getAsLong(RawContacts.VERSION);
+            if (version == null) {
+                return null;
+            }
+            sb.append('/').append(rawContact.getId()).append(':').append(version);
+            // Entries are sorted by usage, which is updated without bumping the VERSION.
+            for (DataItem dataItem : rawContact.getDataItems()) {
+                final Integer timesUsed = dataItem.getTimesUsed();
+                final Long lastTimeUsed = dataItem.getLastTimeUsed();
+                if (timesUsed != null || lastTimeUsed != null) {
+                    sb.append(',').append(dataItem.getId()).append(':').append(timesUsed)
+                            .append('@').append(lastTimeUsed);
+                }
+            }
+        }
+        // The entries also depend on the excluded mimetypes and on the locale of their strings.
+        sb.append('|').append(Arrays.toString(mExcludeMimes));
+        sb.append('|').append(getResources().getConfiguration().locale);
+        return sb.toString();
+    }
+
+    /**
+     * Receives the data model of the contact card before the about card has been built.
+     */
+    private interface ContactCardModelListener {
+        void onContactCardModelReady(Cp2DataCardModel contactCardModel);
+    }
+
+    /**
+     * Data items of one mimetype, and the entries built out of them on the card model executor.
+     */
+    private static class MimeTypeGroup {
+        public List<DataItem> dataItems;
+        public List<Entry> entries;
+        public String aboutCardName;
+    }
+
+    /**
+     * Builds the {@link DataItem}s Map out of the Contact. Every mimetype is filtered, collapsed,
+     * sorted and converted into entries on {@link #sCardModelExecutor}. The contact card
+     * mimetypes are processed first, and {@param listener} receives the model holding only the
+     * contact card once they are done, so that it can be bound while the about card is built.
      * @param data The contact to build the data from.
      * @return A pair containing a list of data items sorted within mimetype and sorted
      *  amongst mimetype. The map goes from mimetype string to the sorted list of data items within
-     *  mimetype
+     *  mimetype. Null if the thread was interrupted.
      */
     private Cp2DataCardModel generateDataModelFromContact(
-            Contact data) {
-        Trace.beginSection("Build data items map");
-
-        final Map<String, List<DataItem>> dataItemsMap = new HashMap<>();
-
-        final ResolveCache cache = ResolveCache.getInstance(this);
+            final Contact data, ContactCardModelListener listener) {
+        Trace.beginSection("Group data items by mimetype");
+
+        // Account types are shared by many raw contacts of an aggregated contact, so only look
+        // up their DataKinds once.
+        final AccountTypeManager accountTypeManager = AccountTypeManager.getInstance(this);
+        final Map<AccountType, Map<String, DataKind>> dataKindsByAccountType = new HashMap<>();
+        final Map<String, List<DataItem>> groupedDataItems = new HashMap<>();
         for (RawContact rawContact : data.getRawContacts()) {
+            final AccountType accountType = rawContact.getAccountType(this);
+            Map<String, DataKind> dataKinds = dataKindsByAccountType.get(accountType);
+            if (dataKinds == null) {
+                dataKinds = new HashMap<>();
+                dataKindsByAccountType.put(accountType, dataKinds);
+            }
             for (DataItem dataItem : rawContact.getDataItems()) {
                 dataItem.setRawContactId(rawContact.getId());
 
                 final String mimeType = dataItem.getMimeType();
                 if (mimeType == null) continue;
 
-                final AccountType accountType = rawContact.getAccountType(this);
-                final DataKind dataKind = AccountTypeManager.getInstance(this)
-                        .getKindOrFallback(accountType, mimeType);
+                DataKind dataKind = dataKinds.get(mimeType);
+                if (dataKind == null && !dataKinds.containsKey(mimeType)) {
+                    dataKind = accountTypeManager.getKindOrFallback(accountType, mimeType);
+                    dataKinds.put(mimeType, dataKind);
+                }
                 if (dataKind == null) continue;
 
                 dataItem.setDataKind(dataKind);
 
-                final boolean hasData = !TextUtils.isEmpty(dataItem.buildDataString(this,
-                        dataKind));
+                if (isMimeExcluded(mimeType)) continue;
 
-                if (isMimeExcluded(mimeType) || !hasData) continue;
-
-                List<DataItem> dataItemListByType = dataItemsMap.get(mimeType);
+                List<DataItem> dataItemListByType = groupedDataItems.get(mimeType);
                 if (dataItemListByType == null) {
                     dataItemListByType = new ArrayList<>();
-                    dataItemsMap.put(mimeType, dataItemListByType);
+                    groupedDataItems.put(mimeType, dataItemListByType);
                 }
                 dataItemListByType.add(dataItem);
             }
         }
         Trace.endSection();
 
-        Trace.beginSection("sort within mimetypes");
-        /*
-         * Sorting is a multi part step. The end result is to a have a sorted list of the most
-         * used data items, one per mimetype. Then, within each mimetype, the list of data items
-         * for that type is also sorted, based off of {super primary, primary, times used} in that
-         * order.
-         */
-        final List<List<DataItem>> dataItemsList = new ArrayList<>();
-        for (List<DataItem> mimeTypeDataItems : dataItemsMap.values()) {
-            // Remove duplicate data items
-            Collapser.collapseList(mimeTypeDataItems, this);
-            // Sort within mimetype
-            Collections.sort(mimeTypeDataItems, mWithinMimeTypeDataItemComparator);
-            // Add to the list of data item lists
-            dataItemsList.add(mimeTypeDataItems);
+        // Submit the contact card mimetypes before the about card ones, so that they are
+        // done first.
+        final List<Future<MimeTypeGroup>> contactCardFutures = new ArrayList<>();
+        for (Map.Entry<String, List<DataItem>> group : groupedDataItems.entrySet()) {
+            if (!SORTED_ABOUT_CARD_MIMETYPES.contains(group.getKey())) {
+                contactCardFutures.add(sCardModelExecutor.submit(
+                        newMimeTypeGroupTask(group.getValue(), data, /* isAboutCard = */ false)));
+            }
+        }
+        final Map<String, Future<MimeTypeGroup>> aboutCardFutures = new HashMap<>();
+        for (String mimeType : SORTED_ABOUT_CARD_MIMETYPES) {
+            final List<DataItem> dataItems = groupedDataItems.get(mimeType);
+            if (dataItems != null) {
+                aboutCardFutures.put(mimeType, sCardModelExecutor.submit(
+                        newMimeTypeGroupTask(dataItems, data, /* isAboutCard = */ true)));
+            }
         }
-        Trace.endSection();
-
-        Trace.beginSection("sort amongst mimetypes");
-        // Sort amongst mimetypes to bubble up the top data items for the contact card
-        Collections.sort(dataItemsList, mAmongstMimeTypeDataItemComparator);
-        Trace.endSection();
 
-        Trace.beginSection("cp2 data items to entries");
+        try {
+            Trace.beginSection("build contact card entries");
+            final Map<String, List<DataItem>> contactCardDataItemsMap = new HashMap<>();
+            final List<MimeTypeGroup> contactCardGroups = new ArrayList<>();
+            String aboutCardName = null;
+            for (Future<MimeTypeGroup> future : contactCardFutures) {
+                final MimeTypeGroup group = getMimeTypeGroup(future);
+                if (group == null || group.dataItems.isEmpty()) continue;
+                contactCardDataItemsMap.put(group.dataItems.get(0).getMimeType(),
+                        group.dataItems);
+                if (group.aboutCardName != null) {
+                    aboutCardName = group.aboutCardName;
+                }
+                if (group.entries.size() > 0) {
+                    contactCardGroups.add(group);
+                }
+            }
 
-        final List<List<Entry>> contactCardEntries = new ArrayList<>();
-        final List<List<Entry>> aboutCardEntries = buildAboutCardEntries(dataItemsMap);
-        final MutableString aboutCardName = new MutableString();
+            // Sort amongst mimetypes to bubble up the top data items for the contact card
+            Collections.sort(contactCardGroups, new Comparator<MimeTypeGroup>() {
+                @Override
+                public int compare(MimeTypeGroup lhs, MimeTypeGroup rhs) {
+                    return mAmongstMimeTypeDataItemComparator.compare(lhs.dataItems,
+                            rhs.dataItems);
+                }
+            });
+            final List<List<Entry>> contactCardEntries = new ArrayList<>();
+            for (MimeTypeGroup group : contactCardGroups) {
+                contactCardEntries.add(group.entries);
+            }
+            Trace.endSection();
 
-        for (int i = 0; i < dataItemsList.size(); ++i) {
-            final List<DataItem> dataItemsByMimeType = dataItemsList.get(i);
-            final DataItem topDataItem = dataItemsByMimeType.get(0);
-            if (SORTED_ABOUT_CARD_MIMETYPES.contains(topDataItem.getMimeType())) {
-                // About card mimetypes are built in buildAboutCardEntries, skip here
-                continue;
-            } else {
-                List<Entry> contactEntries = dataItemsToEntries(dataItemsList.get(i),
-                        aboutCardName);
-                if (contactEntries.size() > 0) {
-                    contactCardEntries.add(contactEntries);
+            final Cp2DataCardModel contactCardModel = new Cp2DataCardModel();
+            contactCardModel.customAboutCardName = aboutCardName;
+            contactCardModel.aboutCardEntries = new ArrayList<>();
+            contactCardModel.contactCardEntries = contactCardEntries;
+            contactCardModel.dataItemsMap = contactCardDataItemsMap;
+            listener.onContactCardModelReady(contactCardModel);
+
+            Trace.beginSection("build about card entries");
+            final Map<String, List<DataItem>> dataItemsMap =
+                    new HashMap<>(contactCardDataItemsMap);
+            final List<List<Entry>> aboutCardEntries = new ArrayList<>();
+            for (String mimeType : SORTED_ABOUT_CARD_MIMETYPES) {
+                final Future<MimeTypeGroup> future = aboutCardFutures.get(mimeType);
+                if (future == null) continue;
+                final MimeTypeGroup group = getMimeTypeGroup(future);
+                if (group == null || group.dataItems.isEmpty()) continue;
+                dataItemsMap.put(mimeType, group.dataItems);
+                if (group.entries.size() > 0) {
+                    aboutCardEntries.add(group.entries);
                 }
             }
+            Trace.endSection();
+
+            final Cp2DataCardModel dataModel = new Cp2DataCardModel();
+            dataModel.customAboutCardName = aboutCardName;
+            dataModel.aboutCardEntries = aboutCardEntries;
+            dataModel.contactCardEntries = contactCardEntries;
+            dataModel.dataItemsMap = dataItemsMap;
+            return dataModel;
+        } catch (InterruptedException e) {
+            for (Future<MimeTypeGroup> future : contactCardFutures) {
+                future.cancel(/* mayInterruptIfRunning = */ false);
+            }
+            for (Future<MimeTypeGroup> future : aboutCardFutures.values()) {
+                future.cancel(/* mayInterruptIfRunning = */ false);
+            }
+            Thread.currentThread().interrupt();
+            return null;
         }
+    }
 
-        Trace.endSection();
+    /**
+     * Returns a task that drops the data items of one mimetype that have no data, removes
+     * duplicates, sorts the remaining ones and converts them into entries.
+     */
+    private Callable<MimeTypeGroup> newMimeTypeGroupTask(final List<DataItem> dataItems,
+            final Contact data, final boolean isAboutCard) {
+        final Context context = getApplicationContext();
+        return new Callable<MimeTypeGroup>() {
+            @Override
+            public MimeTypeGroup call() {
+                final MimeTypeGroup group = new MimeTypeGroup();
+                group.dataItems = new ArrayList<>(dataItems.size());
+                for (DataItem dataItem : dataItems) {
+                    if (!TextUtils.isEmpty(dataItem.buildDataString(context,
+                            dataItem.getDataKind()))) {
+                        group.dataItems.add(dataItem);
+                    }
+                }
+                if (group.dataItems.isEmpty()) {
+                    group.entries = Collections.emptyList();
+                    return group;
+                }
+                // Remove duplicate data items
+                Collapser.collapseList(group.dataItems, context);
+                // Sort within mimetype
+                Collections.sort(group.dataItems, mWithinMimeTypeDataItemComparator);
+
+                // SORTED_ABOUT_CARD_MIMETYPES doesn't contain the name mimetype, so the about
+                // card entries never need the about card title.
+                final MutableString aboutCardName = isAboutCard ? null : new MutableString();
+                group.entries = dataItemsToEntries(group.dataItems, context, data,
+                        aboutCardName);
+                group.aboutCardName = aboutCardName == null ? null : aboutCardName.value;
+                return group;
+            }
+        };
+    }
 
-        final Cp2DataCardModel dataModel = new Cp2DataCardModel();
-        dataModel.customAboutCardName = aboutCardName.value;
-        dataModel.aboutCardEntries = aboutCardEntries;
-        dataModel.contactCardEntries = contactCardEntries;
-        dataModel.dataItemsMap = dataItemsMap;
-        return dataModel;
+    /**
+     * Returns the result of {@param future}, or null if building the group failed. A single
+     * malformed mimetype must not keep the rest of the contact from being displayed.
+     */
+    private static MimeTypeGroup getMimeTypeGroup(Future<MimeTypeGroup> future)
+            throws InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Log.e(TAG, "Failed to build the entries of a mimetype, skipping it", e.getCause());
+            return null;
+        }
     }
 
     /**
@@ -1564,11 +1819,12 @@ public class QuickContactActivity extends ContactsActivity {
                 iconResourceId);
     }
 
-    private List<Entry> dataItemsToEntries(List<DataItem> dataItems,
-            MutableString aboutCardTitleOut) {
+    private static List<Entry> dataItemsToEntries(List<DataItem> dataItems, Context context,
+            Contact contactData, MutableString aboutCardTitleOut) {
         final List<Entry> entries = new ArrayList<>();
         for (DataItem dataItem : dataItems) {
-            final Entry entry = dataItemToEntry(dataItem, this, mContactData, aboutCardTitleOut);
+            final Entry entry = dataItemToEntry(dataItem, context, contactData,
+                    aboutCardTitleOut);
             if (entry != null) {
                 entries.add(entry);
             }
@@ -1606,79 +1862,70 @@ public class QuickContactActivity extends ContactsActivity {
             return;
         }
         final Drawable imageViewDrawable = mPhotoView.getDrawable();
-        new AsyncTask<Void, Void, MaterialPalette>() {
+        final byte[] thumbnailPhoto = mContactData.getThumbnailPhotoBinaryData();
+        final String photoThemeKey = imageViewDrawable instanceof BitmapDrawable
+                ? PhotoThemeCache.computeKey(mContactData.getPhotoId(), thumbnailPhoto,
+                        mContactData.getPhotoBinaryData())
+                : null;
+        final PhotoTheme cachedTheme = mPhotoThemeCache.get(photoThemeKey);
+        if (cachedTheme != null) {
+            // The photo has been analyzed before, so the theme can be applied before the
+            // first frame. Wait for the pre draw, since tinting the header before the
+            // MultiShrinkScroller has been measured causes incorrect tinting calculations.
+            SchedulingUtils.doOnPreDraw(mScroller, /* drawNextFrame = */ false,
+                    new Runnable() {
+                        @Override
+                        public void run() {
+                            applyPhotoTheme(imageViewDrawable, cachedTheme);
+                        }
+                    });
+            return;
+        }
+        new AsyncTask<Void, Void, PhotoTheme>() {
             @Override
-            protected MaterialPalette doInBackground(Void... params) {
-
-                if (imageViewDrawable instanceof BitmapDrawable
-                        && mContactData.getThumbnailPhotoBinaryData() != null
-                        && mContactData.getThumbnailPhotoBinaryData().length > 0) {
+            protected PhotoTheme doInBackground(Void... params) {
+                if (imageViewDrawable instanceof BitmapDrawable) {
                     // Perform the color analysis on the thumbnail instead of the full sized
                     // image, so that our results will be as similar as possible to the Bugle
                     // app.
-                    final Bitmap bitmap = BitmapFactory.decodeByteArray(
-                            mContactData.getThumbnailPhotoBinaryData(), 0,
-                            mContactData.getThumbnailPhotoBinaryData().length);
-                    try {
-                        final int primaryColor = colorFromBitmap(bitmap);
-                        if (primaryColor != 0) {
-                            return mMaterialColorMapUtils.calculatePrimaryAndSecondaryColor(
-                                    primaryColor);
-                        }
-                    } finally {
-                        bitmap.recycle();
-                    }
+                    final Bitmap bitmap = ((BitmapDrawable) imageViewDrawable).getBitmap();
+                    return mPhotoThemeCache.computeAndPut(photoThemeKey, thumbnailPhoto, bitmap);
                 }
                 if (imageViewDrawable instanceof LetterTileDrawable) {
                     final int primaryColor = ((LetterTileDrawable) imageViewDrawable).getColor();
-                    return mMaterialColorMapUtils.calculatePrimaryAndSecondaryColor(primaryColor);
+                    return new PhotoTheme(
+                            mMaterialColorMapUtils.calculatePrimaryAndSecondaryColor(primaryColor),
+                            /* isWhite = */ false);
                 }
-                return MaterialColorMapUtils.getDefaultPrimaryAndSecondaryColors(getResources());
+                return new PhotoTheme(
+                        MaterialColorMapUtils.getDefaultPrimaryAndSecondaryColors(getResources()),
+                        /* isWhite = */ true);
             }
 
             @Override
-            protected void onPostExecute(MaterialPalette palette) {
-                super.onPostExecute(palette);
-                if (mHasComputedThemeColor) {
-                    // If we had previously computed a theme color from the contact photo,
-                    // then do not update the theme color. Changing the theme color several
-                    // seconds after QC has started, as a result of an updated/upgraded photo,
-                    // is a jarring experience. On the other hand, changing the theme color after
-                    // a rotation or onNewIntent() is perfectly fine.
-                    return;
-                }
-                // Check that the Photo has not changed. If it has changed, the new tint
-                // color needs to be extracted
-                if (imageViewDrawable == mPhotoView.getDrawable()) {
-                    mHasComputedThemeColor = true;
-                    setThemeColor(palette);
-                }
+            protected void onPostExecute(PhotoTheme theme) {
+                super.onPostExecute(theme);
+                applyPhotoTheme(imageViewDrawable, theme);
             }
         }.execute();
     }
 
-    /**
-     * Examine how many white pixels are in the bitmap in order to determine whether or not
-     * we need gradient overlays on top of the image.
-     */
-    private void analyzeWhitenessOfPhotoAsynchronously() {
-        final Drawable imageViewDrawable = mPhotoView.getDrawable();
-        new AsyncTask<Void, Void, Boolean>() {
-            @Override
-            protected Boolean doInBackground(Void... params) {
-                if (imageViewDrawable instanceof BitmapDrawable) {
-                    final Bitmap bitmap = ((BitmapDrawable) imageViewDrawable).getBitmap();
-                    return WhitenessUtils.isBitmapWhiteAtTopOrBottom(bitmap);
-                }
-                return !(imageViewDrawable instanceof LetterTileDrawable);
-            }
-
-            @Override
-            protected void onPostExecute(Boolean isWhite) {
-                super.onPostExecute(isWhite);
-                mScroller.setUseGradient(isWhite);
-            }
-        }.execute();
+    private void applyPhotoTheme(Drawable imageViewDrawable, PhotoTheme theme) {
+        mScroller.setUseGradient(theme.isWhite);
+        if (mHasComputedThemeColor) {
+            // If we had previously computed a theme color from the contact photo,
+            // then do not update the theme color. Changing the theme color several
+            // seconds after QC has started, as a result of an updated/upgraded photo,
+            // is a jarring experience. On the other hand, changing the theme color after
+            // a rotation or onNewIntent() is perfectly fine.
+            return;
+        }
+        // Check that the Photo has not changed. If it has changed, the new tint
+        // color needs to be extracted
+        if (imageViewDrawable == mPhotoView.getDrawable()) {
+            mHasComputedThemeColor = true;
+            setThemeColor(theme.palette);
+        }
     }
 
     private void setThemeColor(MaterialPalette palette) {
@@ -1714,16 +1961,6 @@ public class QuickContactActivity extends ContactsActivity {
         animation.start();
     }
 
-    private int colorFromBitmap(Bitmap bitmap) {
-        // Author of Palette recommends using 24 colors when analyzing profile photos.
-        final int NUMBER_OF_PALETTE_COLORS = 24;
-        final Palette palette = Palette.generate(bitmap, NUMBER_OF_PALETTE_COLORS);
-        if (palette != null && palette.getVibrantSwatch() != null) {
-            return palette.getVibrantSwatch().getRgb();
-        }
-        return 0;
-    }
-
     private List<Entry> contactInteractionsToEntries(List<ContactInteraction> interactions) {
         final List<Entry> entries = new ArrayList<>();
         for (ContactInteraction interaction : interactions) {
@@ -1823,86 +2060,56 @@ public class QuickContactActivity extends ContactsActivity {
         @Override
         public Loader<List<ContactInteraction>> onCreateLoader(int id, Bundle args) {
             Log.v(TAG, "onCreateLoader");
-            Loader<List<ContactInteraction>> loader = null;
-            switch (id) {
-                case LOADER_SMS_ID:
-                    Log.v(TAG, "LOADER_SMS_ID");
-                    loader = new SmsInteractionsLoader(
-                            QuickContactActivity.this,
-                            args.getStringArray(KEY_LOADER_EXTRA_PHONES),
-                            MAX_SMS_RETRIEVE);
-                    break;
-                case LOADER_CALENDAR_ID:
-                    Log.v(TAG, "LOADER_CALENDAR_ID");
-                    final String[] emailsArray = args.getStringArray(KEY_LOADER_EXTRA_EMAILS);
-                    List<String> emailsList = null;
-                    if (emailsArray != null) {
-                        emailsList = Arrays.asList(args.getStringArray(KEY_LOADER_EXTRA_EMAILS));
-                    }
-                    loader = new CalendarInteractionsLoader(
-                            QuickContactActivity.this,
-                            emailsList,
-                            MAX_FUTURE_CALENDAR_RETRIEVE,
-                            MAX_PAST_CALENDAR_RETRIEVE,
-                            FUTURE_MILLISECOND_TO_SEARCH_LOCAL_CALENDAR,
-                            PAST_MILLISECOND_TO_SEARCH_LOCAL_CALENDAR);
-                    break;
-                case LOADER_CALL_LOG_ID:
-                    Log.v(TAG, "LOADER_CALL_LOG_ID");
-                    loader = new CallLogInteractionsLoader(
-                            QuickContactActivity.this,
-                            args.getStringArray(KEY_LOADER_EXTRA_PHONES),
-                            MAX_CALL_LOG_RETRIEVE);
-            }
-            return loader;
+            final String[] emailsArray = args.getStringArray(KEY_LOADER_EXTRA_EMAILS);
+            List<String> emailsList = null;
+            if (emailsArray != null) {
+                emailsList = Arrays.asList(emailsArray);
+            }
+            return new ContactInteractionTimelineLoader(
+                    QuickContactActivity.this,
+                    args.getStringArray(KEY_LOADER_EXTRA_PHONES),
+                    emailsList,
+                    MAX_SMS_RETRIEVE,
+                    MAX_CALL_LOG_RETRIEVE,
+                    MAX_FUTURE_CALENDAR_RETRIEVE,
+                    MAX_PAST_CALENDAR_RETRIEVE,
+                    FUTURE_MILLISECOND_TO_SEARCH_LOCAL_CALENDAR,
+                    PAST_MILLISECOND_TO_SEARCH_LOCAL_CALENDAR);
         }
 
         @Override
         public void onLoadFinished(Loader<List<ContactInteraction>> loader,
                 List<ContactInteraction> data) {
-            mRecentLoaderResults.put(loader.getId(), data);
-
-            if (isAllRecentDataLoaded()) {
-                bindRecentData();
-            }
+            // Called once per finished source, the last call contains all of them.
+            mIsRecentDataComplete = ((ContactInteractionTimelineLoader) loader).isLoadComplete();
+            bindRecentData(data, mIsRecentDataComplete);
         }
 
         @Override
         public void onLoaderReset(Loader<List<ContactInteraction>> loader) {
-            mRecentLoaderResults.remove(loader.getId());
+            mIsRecentDataComplete = false;
         }
     };
 
-    private boolean isAllRecentDataLoaded() {
-        return mRecentLoaderResults.size() == mRecentLoaderIds.length;
-    }
-
-    private void bindRecentData() {
-        final List<ContactInteraction> allInteractions = new ArrayList<>();
+    /**
+     * Binds the recent card. {@param interactions} is already sorted by most recent. Until
+     * {@param isComplete} is true, the result only contains the sources that returned so far.
+     */
+    private void bindRecentData(final List<ContactInteraction> interactions,
+            final boolean isComplete) {
         final List<List<Entry>> interactionsWrapper = new ArrayList<>();
 
+        if (mRecentDataTask != null) {
+            // A newer (partial) result supersedes the one still being converted.
+            mRecentDataTask.cancel(/* mayInterruptIfRunning = */ false);
+        }
         mRecentDataTask = new AsyncTask<Void, Void, Void>() {
             @Override
             protected Void doInBackground(Void... params) {
-                Trace.beginSection("sort recent loader results");
-
-                for (List<ContactInteraction> loaderInteractions : mRecentLoaderResults.values()) {
-                    allInteractions.addAll(loaderInteractions);
-                }
-
-                // Sort the interactions by most recent
-                Collections.sort(allInteractions, new Comparator<ContactInteraction>() {
-                    @Override
-                    public int compare(ContactInteraction a, ContactInteraction b) {
-                        return a.getInteractionDate() >= b.getInteractionDate() ? -1 : 1;
-                    }
-                });
-
-                Trace.endSection();
                 Trace.beginSection("contactInteractionsToEntries");
 
                 // Wrap each interaction in its own list so that an icon is displayed for each entry
-                for (Entry contactInteraction : contactInteractionsToEntries(allInteractions)) {
+                for (Entry contactInteraction : contactInteractionsToEntries(interactions)) {
                     List<Entry> entryListWrapper = new ArrayList<>(1);
                     entryListWrapper.add(contactInteraction);
                     interactionsWrapper.add(entryListWrapper);
@@ -1917,7 +2124,7 @@ public class QuickContactActivity extends ContactsActivity {
                 super.onPostExecute(aVoid);
                 Trace.beginSection("initialize recents card");
 
-                if (allInteractions.size() > 0) {
+                if (interactions.size() > 0) {
                     mRecentCard.initialize(interactionsWrapper,
                     /* numInitialVisibleEntries = */ MIN_NUM_COLLAPSED_RECENT_ENTRIES_SHOWN,
                     /* isExpanded = */ mRecentCard.isExpanded(), /* isAlwaysExpanded = */ false,
@@ -1926,16 +2133,19 @@ public class QuickContactActivity extends ContactsActivity {
                 }
 
                 Trace.endSection();
+                mRecentDataTask = null;
 
                 // About card is initialized along with the contact card, but since it appears after
                 // the recent card in the UI, we hold off until making it visible until the recent
                 // card is also ready to avoid stuttering.
+                if (!isComplete) {
+                    return;
+                }
                 if (mAboutCard.shouldShow()) {
                     mAboutCard.setVisibility(View.VISIBLE);
                 } else {
                     mAboutCard.setVisibility(View.GONE);
                 }
-                mRecentDataTask = null;
             }
         };
         mRecentDataTask.execute();
@@ -17,23 +17,27 @@
 package com.android.contacts.quickcontact;
 
 import android.content.BroadcastReceiver;
+import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.content.SharedPreferences;
 import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.ResolveInfo;
 import android.graphics.drawable.Drawable;
+import android.net.Uri;
+import android.os.AsyncTask;
 import android.provider.ContactsContract.CommonDataKinds.SipAddress;
 import android.text.TextUtils;
 
 import com.android.contacts.util.PhoneCapabilityTester;
 import com.google.common.collect.Sets;
 
-import java.lang.ref.SoftReference;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Internally hold a cache of scaled icons based on {@link PackageManager}
@@ -60,8 +64,26 @@ public class ResolveCache {
             "com.google.android.browser",
             "com.android.browser");
 
+    private static final String PREFERENCES_NAME = "quickcontact_resolve_cache";
+    private static final String PREF_KEY_PREFIX_MIMETYPE = "mimetype:";
+    /**
+     * Separates the time an entry was resolved from the flattened component in the persisted
+     * values, which are "<time>|<component>", or "<time>|" if nothing handles the mimetype.
+     */
+    private static final char PREF_VALUE_SEPARATOR = '|';
+
+    /**
+     * Persisted resolves older than this are ignored, since packages installed while the process
+     * wasn't running could handle a mimetype better, and the default apps may have changed
+     * without any package broadcast. Every entry expires on its own.
+     */
+    private static final long PERSISTED_RESOLVES_MAX_AGE_MS = 24 * 60 * 60 * 1000;
+
     private final Context mContext;
     private final PackageManager mPackageManager;
+    private final SharedPreferences mPrefs;
+    /** Whether the persisted entries were restored, see {@link #restoreEntriesIfNeeded}. */
+    private volatile boolean mRestored;
 
     private static ResolveCache sInstance;
 
@@ -74,7 +96,7 @@ public class ResolveCache {
             final Context applicationContext = context.getApplicationContext();
             sInstance = new ResolveCache(applicationContext);
 
-            // Register for package-changes so that we can flush our cache
+            // Register for package-changes so that we can evict the affected entries
             final IntentFilter filter = new IntentFilter(Intent.ACTION_PACKAGE_ADDED);
             filter.addAction(Intent.ACTION_PACKAGE_REPLACED);
             filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
@@ -85,35 +107,61 @@ public class ResolveCache {
         return sInstance;
     }
 
-    private synchronized static void flush() {
-        sInstance = null;
-    }
-
     /**
-     * Called anytime a package is installed, uninstalled etc, so that we can wipe our cache
+     * Called anytime a package is installed, uninstalled etc, so that we can evict the entries
+     * it may affect.
      */
     private BroadcastReceiver mPackageIntentReceiver = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
-            flush();
+            final Uri data = intent.getData();
+            final String packageName = data == null ? null : data.getSchemeSpecificPart();
+            if (TextUtils.isEmpty(packageName)) {
+                clear();
+                return;
+            }
+            final boolean isRemoved = Intent.ACTION_PACKAGE_REMOVED.equals(intent.getAction());
+            AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+                @Override
+                public void run() {
+                    evictPackage(packageName, isRemoved);
+                }
+            });
         }
     };
 
     /**
      * Cached entry holding the best {@link ResolveInfo} for a specific
-     * MIME-type, along with a {@link SoftReference} to its icon.
+     * MIME-type, along with its lazily loaded icon.
      */
     private static class Entry {
-        public ResolveInfo bestResolve;
-        public Drawable icon;
+        /** Activity chosen for the mimetype, or null if nothing handles it. */
+        public final ComponentName component;
+        /** Intent used to resolve the mimetype, or null if restored from disk. */
+        public final Intent intent;
+        /** Best resolve, or null if nothing handles the mimetype or if restored from disk. */
+        public final ResolveInfo bestResolve;
+        public volatile Drawable icon;
+        public volatile boolean iconLoaded;
+
+        public Entry(ComponentName component, Intent intent, ResolveInfo bestResolve) {
+            this.component = component;
+            this.intent = intent;
+            this.bestResolve = bestResolve;
+        }
     }
 
-    private HashMap<String, Entry> mCache = new HashMap<String, Entry>();
+    /** Entries keyed by mimetype. Accessed from the background threads building QuickContacts. */
+    private final ConcurrentHashMap<String, Entry> mCache =
+            new ConcurrentHashMap<String, Entry>();
 
 
     private ResolveCache(Context context) {
         mContext = context;
         mPackageManager = context.getPackageManager();
+        // Only starts loading the file, the entries are restored by the first getEntry(), which
+        // runs in the background.
+        mPrefs = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
     }
 
     /**
@@ -121,38 +169,144 @@ public class ResolveCache {
      * or create and populate a new one if it doesn't exist.
      */
     protected Entry getEntry(String mimeType, Intent intent) {
+        restoreEntriesIfNeeded();
         Entry entry = mCache.get(mimeType);
         if (entry != null) return entry;
-        entry = new Entry();
 
         if (SipAddress.CONTENT_ITEM_TYPE.equals(mimeType)
                 && !PhoneCapabilityTester.isSipPhone(mContext)) {
             intent = null;
         }
 
+        ResolveInfo bestResolve = null;
         if (intent != null) {
             final List<ResolveInfo> matches = mPackageManager.queryIntentActivities(intent,
                     PackageManager.MATCH_DEFAULT_ONLY);
 
             // Pick first match, otherwise best found
-            ResolveInfo bestResolve = null;
             final int size = matches.size();
             if (size == 1) {
                 bestResolve = matches.get(0);
             } else if (size > 1) {
                 bestResolve = getBestResolve(intent, matches);
             }
+        }
 
-            if (bestResolve != null) {
-                final Drawable icon = bestResolve.loadIcon(mPackageManager);
+        final ComponentName component = bestResolve == null ? null : new ComponentName(
+                bestResolve.activityInfo.packageName, bestResolve.activityInfo.name);
+        entry = new Entry(component, intent == null ? null : new Intent(intent), bestResolve);
+        final Entry existing = mCache.putIfAbsent(mimeType, entry);
+        if (existing != null) {
+            return existing;
+        }
+        mPrefs.edit()
+                .putString(PREF_KEY_PREFIX_MIMETYPE + mimeType, System.currentTimeMillis()
+                        + String.valueOf(PREF_VALUE_SEPARATOR)
+                        + (component == null ? "" : component.flattenToString()))
+                .apply();
+        return entry;
+    }
 
-                entry.bestResolve = bestResolve;
-                entry.icon = icon;
+    /**
+     * Restores the mimetype to activity mapping persisted by previous processes, the first time
+     * it is called. Reads the preferences file and checks every component with the
+     * {@link PackageManager}, so this must be called from a background thread.
+     */
+    private void restoreEntriesIfNeeded() {
+        if (mRestored) {
+            return;
+        }
+        synchronized (this) {
+            if (!mRestored) {
+                restoreEntries();
+                mRestored = true;
             }
         }
+    }
 
-        mCache.put(mimeType, entry);
-        return entry;
+    /**
+     * Components that no longer exist are dropped, since the package changed while we weren't
+     * listening. Expired and malformed entries are removed from the preferences.
+     */
+    private void restoreEntries() {
+        final Map<String, ?> persisted = mPrefs.getAll();
+        final long now = System.currentTimeMillis();
+        final SharedPreferences.Editor editor = mPrefs.edit();
+        for (Map.Entry<String, ?> pref : persisted.entrySet()) {
+            if (!pref.getKey().startsWith(PREF_KEY_PREFIX_MIMETYPE)
+                    || !(pref.getValue() instanceof String)) {
+                // Left by an older version.
+                editor.remove(pref.getKey());
+                continue;
+            }
+            final String mimeType = pref.getKey().substring(PREF_KEY_PREFIX_MIMETYPE.length());
+            final String value = (String) pref.getValue();
+            final int separator = value.indexOf(PREF_VALUE_SEPARATOR);
+            long savedAt = -1;
+            if (separator > 0) {
+                try {
+                    savedAt = Long.parseLong(value.substring(0, separator));
+                } catch (NumberFormatException e) {
+                    // Handled below
+                }
+            }
+            final long age = now - savedAt;
+            if (savedAt < 0 || age < 0 || age > PERSISTED_RESOLVES_MAX_AGE_MS) {
+                editor.remove(pref.getKey());
+                continue;
+            }
+            final String flattened = value.substring(separator + 1);
+            ComponentName component = null;
+            if (!flattened.isEmpty()) {
+                component = ComponentName.unflattenFromString(flattened);
+                if (component == null || !isActivityAvailable(component)) {
+                    editor.remove(pref.getKey());
+                    continue;
+                }
+            }
+            // Don't override an entry resolved in the meantime.
+            mCache.putIfAbsent(mimeType, new Entry(component, null, null));
+        }
+        editor.apply();
+    }
+
+    private boolean isActivityAvailable(ComponentName component) {
+        try {
+            return mPackageManager.getActivityInfo(component, 0).isEnabled();
+        } catch (PackageManager.NameNotFoundException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Evicts the entries resolved to {@param packageName}. Unless the package was removed, also
+     * evicts the entries whose intent it can now handle, since it may be a better match.
+     */
+    private void evictPackage(String packageName, boolean isRemoved) {
+        // Restored entries must be checked against the package too.
+        restoreEntriesIfNeeded();
+        final SharedPreferences.Editor editor = mPrefs.edit();
+        for (Map.Entry<String, Entry> cached : mCache.entrySet()) {
+            final Entry entry = cached.getValue();
+            boolean evict = entry.component != null
+                    && packageName.equals(entry.component.getPackageName());
+            if (!evict && !isRemoved) {
+                if (entry.intent == null) {
+                    // Restored from disk, so we don't know which intents it handles.
+                    evict = true;
+                } else {
+                    final Intent packageIntent = new Intent(entry.intent);
+                    packageIntent.setPackage(packageName);
+                    evict = !mPackageManager.queryIntentActivities(packageIntent,
+                            PackageManager.MATCH_DEFAULT_ONLY).isEmpty();
+                }
+            }
+            if (evict) {
+                mCache.remove(cached.getKey(), entry);
+                editor.remove(PREF_KEY_PREFIX_MIMETYPE + cached.getKey());
+            }
+        }
+        editor.apply();
     }
 
     /**
@@ -197,19 +351,41 @@ public class ResolveCache {
      * given {@link Intent}.
      */
     public boolean hasResolve(String mimeType, Intent intent) {
-        return getEntry(mimeType, intent).bestResolve != null;
+        return getEntry(mimeType, intent).component != null;
     }
 
     /**
      * Return the best icon for the given {@link Action}, which is usually
      * based on the {@link ResolveInfo} found through a
-     * {@link PackageManager} query.
+     * {@link PackageManager} query. The icon is loaded on first use, so this must be called from
+     * a background thread.
      */
     public Drawable getIcon(String mimeType, Intent intent) {
-        return getEntry(mimeType, intent).icon;
+        final Entry entry = getEntry(mimeType, intent);
+        if (!entry.iconLoaded && entry.component != null) {
+            synchronized (entry) {
+                if (!entry.iconLoaded) {
+                    entry.icon = loadIcon(entry);
+                    entry.iconLoaded = true;
+                }
+            }
+        }
+        return entry.icon;
+    }
+
+    private Drawable loadIcon(Entry entry) {
+        if (entry.bestResolve != null) {
+            return entry.bestResolve.loadIcon(mPackageManager);
+        }
+        try {
+            return mPackageManager.getActivityIcon(entry.component);
+        } catch (PackageManager.NameNotFoundException e) {
+            return null;
+        }
     }
 
     public void clear() {
         mCache.clear();
+        mPrefs.edit().clear().apply();
     }
 }
@@ -18,7 +18,6 @@
 package com.android.contacts.quickcontact;
 
 import android.graphics.Bitmap;
-import android.graphics.Color;
 import android.os.Trace;
 
 /**
@@ -49,83 +48,103 @@ public class WhitenessUtils {
      */
     private static final float LUMINANCE_OF_WHITE =  0.90f;
 
+    /**
+     * Fixed point weights of the red, green and blue channels used to compute the luma. They are
+     * scaled by 2^16 and add up to exactly 2^16.
+     */
+    private static final int LUMA_RED_WEIGHT = 13933;
+    private static final int LUMA_GREEN_WEIGHT = 46871;
+    private static final int LUMA_BLUE_WEIGHT = 4732;
+    private static final int LUMA_SHIFT = 16;
+
+    /**
+     * {@link #LUMINANCE_OF_WHITE} in the fixed point scale of the weighted channel sum.
+     */
+    private static final int WEIGHTED_LUMA_OF_WHITE =
+            (int) (LUMINANCE_OF_WHITE * 255 * (1 << LUMA_SHIFT));
+
+    /**
+     * Pixels are sampled as if the bitmap was scaled down so that its smaller side is at least
+     * this long. Taken from Palette.
+     */
+    private static final int CALCULATE_BITMAP_MIN_DIMENSION = 100;
+
+    /**
+     * Row buffer reused across calls on the same thread, since photos are analyzed on
+     * background threads.
+     */
+    private static final ThreadLocal<int[]> sRowBuffer = new ThreadLocal<int[]>();
+
     /**
      * Returns true if 20% of the image's top right corner is white, or 20% of the bottom
      * of the image is white.
      */
-    public static boolean isBitmapWhiteAtTopOrBottom(Bitmap largeBitmap) {
+    public static boolean isBitmapWhiteAtTopOrBottom(Bitmap bitmap) {
         Trace.beginSection("isBitmapWhiteAtTopOrBottom");
         try {
-            final Bitmap smallBitmap = scaleBitmapDown(largeBitmap);
-
-            final int[] rgbPixels = new int[smallBitmap.getWidth() * smallBitmap.getHeight()];
-            smallBitmap.getPixels(rgbPixels, 0, smallBitmap.getWidth(), 0, 0,
-                    smallBitmap.getWidth(), smallBitmap.getHeight());
+            final int width = bitmap.getWidth();
+            final int height = bitmap.getHeight();
+            if (width == 0 || height == 0) {
+                return false;
+            }
+            final int step = Math.max(1,
+                    Math.min(width, height) / CALCULATE_BITMAP_MIN_DIMENSION);
+            final int[] row = getRowBuffer(width);
 
             // look at top right corner of the bitmap
-            int whiteCount = 0;
-            for (int y = 0; y < smallBitmap.getHeight() * HEIGHT_PERCENT_ANALYZED; y++) {
-                for (int x = (int) (smallBitmap.getWidth() * (1 - THIRD));
-                        x < smallBitmap.getWidth(); x++) {
-                    final int rgb = rgbPixels[y * smallBitmap.getWidth() + x];
-                    if (isWhite(rgb)) {
-                        whiteCount ++;
-                    }
-                }
-            }
-            int totalPixels = (int) (smallBitmap.getHeight() * smallBitmap.getWidth()
-                    * THIRD * HEIGHT_PERCENT_ANALYZED);
-            if (whiteCount / (float) totalPixels > PROPORTION_WHITE_CUTOFF) {
+            final int bandHeight = (int) Math.ceil(height * HEIGHT_PERCENT_ANALYZED);
+            final int cornerLeft = (int) (width * (1 - THIRD));
+            if (isBandWhite(bitmap, row, cornerLeft, 0, bandHeight, step)) {
                 return true;
             }
 
             // look at bottom portion of bitmap
-            whiteCount = 0;
-            for (int y = (int) (smallBitmap.getHeight() * (1 - HEIGHT_PERCENT_ANALYZED));
-                    y <  smallBitmap.getHeight(); y++) {
-                for (int x = 0; x < smallBitmap.getWidth(); x++) {
-                    final int rgb = rgbPixels[y * smallBitmap.getWidth() + x];
-                    if (isWhite(rgb)) {
-                        whiteCount ++;
-                    }
-                }
-            }
-
-            totalPixels = (int) (smallBitmap.getHeight()
-                    * smallBitmap.getWidth() * HEIGHT_PERCENT_ANALYZED);
-
-            return whiteCount / (float) totalPixels > PROPORTION_WHITE_CUTOFF;
+            return isBandWhite(bitmap, row, 0, (int) (height * (1 - HEIGHT_PERCENT_ANALYZED)),
+                    height, step);
         } finally {
             Trace.endSection();
         }
     }
 
-    private static boolean isWhite(int rgb) {
-        return calculateXyzLuma(rgb) > LUMINANCE_OF_WHITE;
-    }
-
-    private static float calculateXyzLuma(int rgb) {
-        return (0.2126f * Color.red(rgb) +
-                0.7152f * Color.green(rgb) +
-                0.0722f * Color.blue(rgb)) / 255f;
-    }
-
     /**
-     * Scale down the bitmap in order to make color analysis faster. Taken from Palette.
+     * Returns true if more than {@link #PROPORTION_WHITE_CUTOFF} of the sampled pixels between
+     * column {@param left} and the right edge, and between rows {@param top} and
+     * {@param bottom}, are white. Only every {@param step}th row and column is sampled, and
+     * each sampled row is read with a single {@link Bitmap#getPixels} call.
      */
-    private static Bitmap scaleBitmapDown(Bitmap bitmap) {
-        final int CALCULATE_BITMAP_MIN_DIMENSION = 100;
-        final int minDimension = Math.min(bitmap.getWidth(), bitmap.getHeight());
+    private static boolean isBandWhite(Bitmap bitmap, int[] row, int left, int top, int bottom,
+            int step) {
+        final int width = bitmap.getWidth() - left;
+        if (width <= 0 || bottom <= top) {
+            return false;
+        }
+        int whiteCount = 0;
+        int sampleCount = 0;
+        for (int y = top; y < bottom; y += step) {
+            bitmap.getPixels(row, 0, width, left, y, width, 1);
+            for (int x = 0; x < width; x += step) {
+                if (isWhite(row[x])) {
+                    whiteCount++;
+                }
+                sampleCount++;
+            }
+        }
+        return whiteCount > sampleCount * PROPORTION_WHITE_CUTOFF;
+    }
 
-        if (minDimension <= CALCULATE_BITMAP_MIN_DIMENSION) {
-            // If the bitmap is small enough already, just return it
-            return bitmap;
+    private static int[] getRowBuffer(int width) {
+        int[] row = sRowBuffer.get();
+        if (row == null || row.length < width) {
+            row = new int[width];
+            sRowBuffer.set(row);
         }
+        return row;
+    }
 
-        final float scaleRatio = CALCULATE_BITMAP_MIN_DIMENSION / (float) minDimension;
-        return Bitmap.createScaledBitmap(bitmap,
-                Math.round(bitmap.getWidth() * scaleRatio),
-                Math.round(bitmap.getHeight() * scaleRatio),
-                false);
+    private static boolean isWhite(int rgb) {
+        final int weightedLuma = LUMA_RED_WEIGHT * ((rgb >> 16) & 0xFF)
+                + LUMA_GREEN_WEIGHT * ((rgb >> 8) & 0xFF)
+                + LUMA_BLUE_WEIGHT * (rgb & 0xFF);
+        return weightedLuma > WEIGHTED_LUMA_OF_WHITE;
     }
 }
@@ -18,8 +18,10 @@
 package com.android.contacts.util;
 
 import android.content.ClipData;
+import android.content.ContentResolver;
 import android.content.Context;
 import android.content.Intent;
+import android.content.res.AssetFileDescriptor;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.net.Uri;
@@ -33,10 +35,13 @@ import com.google.common.io.Closeables;
 
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.Locale;
@@ -50,6 +55,15 @@ public class ContactPhotoUtils {
 
     private static final String PHOTO_DATE_FORMAT = "'IMG'_yyyyMMdd_HHmmss";
 
+    /** Size of the buffer used to copy photos that aren't stored in a regular file. */
+    private static final int COPY_BUFFER_SIZE = 16 * 1024;
+
+    /** JPEG quality used to re-encode photos that had to be scaled down before being saved. */
+    private static final int SCALED_PHOTO_JPEG_QUALITY = 95;
+
+    /** Direct buffer kept for the next copy that needs one. Guarded by the class. */
+    private static ByteBuffer sCopyBuffer;
+
     /**
      * Generate a new, unique file to be used as an out-of-band communication
      * channel, since hi-res Bitmaps are too big to serialize into a Bundle.
@@ -94,9 +108,14 @@ public class ContactPhotoUtils {
      * @throws FileNotFoundException
      */
     public static Bitmap getBitmapFromUri(Context context, Uri uri) throws FileNotFoundException {
+        return decodeBitmapFromUri(context, uri, null);
+    }
+
+    private static Bitmap decodeBitmapFromUri(Context context, Uri uri,
+            BitmapFactory.Options options) throws FileNotFoundException {
         final InputStream imageStream = context.getContentResolver().openInputStream(uri);
         try {
-            return BitmapFactory.decodeStream(imageStream);
+            return BitmapFactory.decodeStream(imageStream, null, options);
         } finally {
             Closeables.closeQuietly(imageStream);
         }
@@ -107,7 +126,8 @@ public class ContactPhotoUtils {
      * something goes wrong.
      */
     public static byte[] compressBitmap(Bitmap bitmap) {
-        final int size = bitmap.getWidth() * bitmap.getHeight() * 4;
+        // PNG-compressed photos are much smaller than their raw pixels, this is only a hint.
+        final int size = bitmap.getWidth() * bitmap.getHeight();
         final ByteArrayOutputStream out = new ByteArrayOutputStream(size);
         try {
             bitmap.compress(Bitmap.CompressFormat.PNG, 100, out);
@@ -148,21 +168,23 @@ public class ContactPhotoUtils {
      */
     public static boolean savePhotoFromUriToUri(Context context, Uri inputUri, Uri outputUri,
             boolean deleteAfterSave) {
+        final ContentResolver resolver = context.getContentResolver();
+        AssetFileDescriptor outputDescriptor = null;
+        AssetFileDescriptor inputDescriptor = null;
         FileOutputStream outputStream = null;
-        InputStream inputStream = null;
+        FileInputStream inputStream = null;
         try {
-            outputStream = context.getContentResolver()
-                    .openAssetFileDescriptor(outputUri, "rw").createOutputStream();
-            inputStream = context.getContentResolver().openInputStream(
-                    inputUri);
-
-            final byte[] buffer = new byte[16 * 1024];
-            int length;
-            int totalLength = 0;
-            while ((length = inputStream.read(buffer)) > 0) {
-                outputStream.write(buffer, 0, length);
-                totalLength += length;
+            outputDescriptor = resolver.openAssetFileDescriptor(outputUri, "rw");
+            inputDescriptor = resolver.openAssetFileDescriptor(inputUri, "r");
+            if (outputDescriptor == null || inputDescriptor == null) {
+                throw new FileNotFoundException("Could not open photo uri");
             }
+            outputStream = outputDescriptor.createOutputStream();
+            inputStream = inputDescriptor.createInputStream();
+
+            final FileChannel output = outputStream.getChannel();
+            final long totalLength = copyPhoto(inputDescriptor, inputStream.getChannel(), output);
+            truncateOutput(outputDescriptor, output, totalLength);
             Log.v(TAG, "Wrote " + totalLength + " bytes for photo " + inputUri.toString());
         } catch (IOException e) {
             Log.e(TAG, "Failed to write photo: " + inputUri.toString() + " because: " + e);
@@ -170,12 +192,162 @@ public class ContactPhotoUtils {
         } finally {
             Closeables.closeQuietly(inputStream);
             Closeables.closeQuietly(outputStream);
+            Closeables.closeQuietly(inputDescriptor);
+            Closeables.closeQuietly(outputDescriptor);
             if (deleteAfterSave) {
                 context.getContentResolver().delete(inputUri, null, null);
             }
         }
         return true;
     }
-}
 
+    /**
+     * Given an input photo stored in a uri, save it to a destination uri like
+     * {@link #savePhotoFromUriToUri}, but first scale it down if it is larger than
+     * {@param maxDimension} in either direction. This saves the provider from reading and
+     * scaling down camera-sized photos itself. Scaled photos are re-encoded as JPEG, which also
+     * drops their metadata. Photos that are small enough are copied as is.
+     *
+     * This decodes the photo, so it must not be called from the UI thread.
+     */
+    public static boolean saveScaledPhotoFromUriToUri(Context context, Uri inputUri,
+            Uri outputUri, int maxDimension, boolean deleteAfterSave) {
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        try {
+            decodeBitmapFromUri(context, inputUri, options);
+        } catch (FileNotFoundException e) {
+            // Let savePhotoFromUriToUri() report the failure and clean up.
+            options.outWidth = -1;
+        }
+        final int largestDimension = Math.max(options.outWidth, options.outHeight);
+        if (maxDimension <= 0 || largestDimension <= maxDimension) {
+            return savePhotoFromUriToUri(context, inputUri, outputUri, deleteAfterSave);
+        }
 
+        AssetFileDescriptor outputDescriptor = null;
+        FileOutputStream outputStream = null;
+        Bitmap bitmap = null;
+        Bitmap scaled = null;
+        try {
+            // Decode at the smallest power of two subsampling that is still at least as
+            // large as maxDimension, then scale the rest of the way.
+            options.inJustDecodeBounds = false;
+            options.inSampleSize = 1;
+            while (largestDimension / (options.inSampleSize * 2) >= maxDimension) {
+                options.inSampleSize *= 2;
+            }
+            bitmap = decodeBitmapFromUri(context, inputUri, options);
+            if (bitmap == null) {
+                Log.e(TAG, "Failed to decode photo: " + inputUri.toString());
+                return false;
+            }
+            final float scale = maxDimension
+                    / (float) Math.max(bitmap.getWidth(), bitmap.getHeight());
+            scaled = scale >= 1 ? bitmap : Bitmap.createScaledBitmap(bitmap,
+                    Math.max(1, Math.round(bitmap.getWidth() * scale)),
+                    Math.max(1, Math.round(bitmap.getHeight() * scale)), true);
+
+            outputDescriptor = context.getContentResolver().openAssetFileDescriptor(
+                    outputUri, "rw");
+            if (outputDescriptor == null) {
+                throw new FileNotFoundException("Could not open photo uri");
+            }
+            outputStream = outputDescriptor.createOutputStream();
+            if (!scaled.compress(Bitmap.CompressFormat.JPEG, SCALED_PHOTO_JPEG_QUALITY,
+                    outputStream)) {
+                throw new IOException("Could not compress photo");
+            }
+            final FileChannel output = outputStream.getChannel();
+            truncateOutput(outputDescriptor, output, output.position());
+            Log.v(TAG, "Wrote " + scaled.getWidth() + "x" + scaled.getHeight()
+                    + " scaled photo for " + inputUri.toString());
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write photo: " + inputUri.toString() + " because: " + e);
+            return false;
+        } finally {
+            Closeables.closeQuietly(outputStream);
+            Closeables.closeQuietly(outputDescriptor);
+            if (scaled != null && scaled != bitmap) {
+                scaled.recycle();
+            }
+            if (bitmap != null) {
+                bitmap.recycle();
+            }
+            if (deleteAfterSave) {
+                context.getContentResolver().delete(inputUri, null, null);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * "rw" doesn't truncate, so drop whatever a larger previous photo left after the
+     * {@param length} bytes that were just written, if the output is a regular file.
+     */
+    private static void truncateOutput(AssetFileDescriptor descriptor, FileChannel output,
+            long length) throws IOException {
+        if (descriptor.getParcelFileDescriptor().getStatSize() >= 0
+                && descriptor.getStartOffset() == 0) {
+            output.truncate(length);
+        }
+    }
+
+    /**
+     * Copies the photo read from {@param input} to {@param output}. When the input is a regular
+     * file, the kernel copies it without going through our heap. Otherwise (e.g. the input is
+     * a pipe) the bytes go through a pooled direct buffer.
+     *
+     * @return the number of bytes that were copied.
+     */
+    private static long copyPhoto(AssetFileDescriptor inputDescriptor, FileChannel input,
+            FileChannel output) throws IOException {
+        final long inputSize = inputDescriptor.getParcelFileDescriptor().getStatSize();
+        if (inputSize >= 0) {
+            final long start = inputDescriptor.getStartOffset();
+            final long declaredLength = inputDescriptor.getDeclaredLength();
+            final long end = declaredLength != AssetFileDescriptor.UNKNOWN_LENGTH
+                    ? start + declaredLength : inputSize;
+            long position = start;
+            while (position < end) {
+                final long transferred = input.transferTo(position, end - position, output);
+                if (transferred <= 0) {
+                    break;
+                }
+                position += transferred;
+            }
+            return position - start;
+        }
+
+        final ByteBuffer buffer = obtainCopyBuffer();
+        try {
+            long totalLength = 0;
+            int length;
+            while ((length = input.read(buffer)) > 0) {
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    output.write(buffer);
+                }
+                buffer.clear();
+                totalLength += length;
+            }
+            return totalLength;
+        } finally {
+            recycleCopyBuffer(buffer);
+        }
+    }
+
+    private static synchronized ByteBuffer obtainCopyBuffer() {
+        final ByteBuffer buffer = sCopyBuffer;
+        if (buffer == null) {
+            return ByteBuffer.allocateDirect(COPY_BUFFER_SIZE);
+        }
+        sCopyBuffer = null;
+        return buffer;
+    }
+
+    private static synchronized void recycleCopyBuffer(ByteBuffer buffer) {
+        buffer.clear();
+        sCopyBuffer = buffer;
+    }
+}
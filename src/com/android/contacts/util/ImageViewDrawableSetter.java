@@ -25,7 +25,10 @@ import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.graphics.drawable.TransitionDrawable;
 import android.media.ThumbnailUtils;
+import android.os.AsyncTask;
 import android.text.TextUtils;
+import android.util.DisplayMetrics;
+import android.util.Log;
 import android.widget.ImageView;
 
 import com.android.contacts.common.ContactPhotoManager;
@@ -34,18 +37,39 @@ import com.android.contacts.common.lettertiles.LetterTileDrawable;
 import com.android.contacts.common.model.Contact;
 import com.android.contacts.common.model.RawContact;
 
-import java.util.Arrays;
-
 /**
  * Initialized with a target ImageView. When provided with a compressed image
- * (i.e. a byte[]), it appropriately updates the ImageView's Drawable.
+ * (i.e. a byte[]), it appropriately updates the ImageView's Drawable. Photos
+ * are decoded on a background thread. Until then, the contact's thumbnail (or
+ * its default image) is displayed as a placeholder, which fades into the photo
+ * once it is decoded; use {@link #setListener} to find out when that happens.
  */
 public class ImageViewDrawableSetter {
+    /**
+     * Notified on the UI thread once the image passed to the setter has been
+     * applied to the target.
+     */
+    public interface Listener {
+        /**
+         * @param bitmap the photo that is now displayed, or null if a default
+         *     image is displayed instead.
+         */
+        void onImageSet(Bitmap bitmap);
+    }
+
+    /** Number of bytes of a compressed image used to fingerprint it. */
+    private static final int FINGERPRINT_SAMPLES = 256;
+
     private ImageView mTarget;
     private byte[] mCompressed;
+    private int mCompressedFingerprint;
     private Drawable mPreviousDrawable;
+    /** Whether {@link #mPreviousDrawable} is only displayed until the photo is decoded. */
+    private boolean mShowingPlaceholder;
     private int mDurationInMillis = 0;
     private Contact mContact;
+    private Listener mListener;
+    private DecodeTask mDecodeTask;
     private static final String TAG = "ImageViewDrawableSetter";
 
     public ImageViewDrawableSetter() {
@@ -73,6 +97,10 @@ public class ImageViewDrawableSetter {
         mDurationInMillis = durationInMillis;
     }
 
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
     public ImageView getTarget() {
         return mTarget;
     }
@@ -84,9 +112,11 @@ public class ImageViewDrawableSetter {
      */
     protected void setTarget(ImageView target) {
         if (mTarget != target) {
+            cancelDecode();
             mTarget = target;
             mCompressed = null;
             mPreviousDrawable = null;
+            mShowingPlaceholder = false;
         }
     }
 
@@ -94,31 +124,87 @@ public class ImageViewDrawableSetter {
         return mCompressed;
     }
 
+    /**
+     * Returns the photo that is currently displayed by the target, or null if
+     * it displays a default image or nothing yet.
+     */
+    protected Bitmap getDisplayedBitmap() {
+        return previousBitmap();
+    }
+
+    /**
+     * Starts displaying {@param compressed}, or a default image if it is null.
+     * Returns the photo that is displayed until then, see
+     * {@link #getDisplayedBitmap}.
+     */
     protected Bitmap setCompressedImage(byte[] compressed, Context c, Account account) {
-        if (mPreviousDrawable == null) {
-            // If we don't already have a drawable, skip the exit-early test
-            // below; otherwise we might not end up setting the default image.
-        } else if (mPreviousDrawable != null
-                && mPreviousDrawable instanceof BitmapDrawable
-                && Arrays.equals(mCompressed, compressed)) {
-            // TODO: the worst case is when the arrays are equal but not
-            // identical. This takes about 1ms (more with high-res photos). A
-            // possible optimization is to sparsely sample chunks of the arrays
-            // to compare.
+        // Compare fingerprints rather than the whole arrays, which takes about
+        // 1ms for high-res photos when they are equal but not identical. The
+        // array is usually the same instance anyway, in which case it isn't
+        // even fingerprinted again.
+        final int fingerprint = compressed == mCompressed ? mCompressedFingerprint
+                : fingerprint(compressed);
+        final boolean isSamePhoto = compressed != null && mCompressed != null
+                && compressed.length == mCompressed.length
+                && fingerprint == mCompressedFingerprint;
+        if (isSamePhoto && mDecodeTask != null) {
+            // The photo is already being decoded, the listener will be notified
+            // when it is done.
+            return previousBitmap();
+        } else if (isSamePhoto && mPreviousDrawable instanceof BitmapDrawable) {
+            notifyImageSet();
             return previousBitmap();
         }
 
-        final Drawable newDrawable = (compressed == null)
-                ? defaultDrawable(c,account)
-                : decodedBitmapDrawable(compressed);
-
+        cancelDecode();
         // Remember this for next time, so that we can check if it changed.
         mCompressed = compressed;
+        mCompressedFingerprint = fingerprint;
+
+        if (compressed == null) {
+            setDrawable(defaultDrawable(c, account));
+            return previousBitmap();
+        }
+
+        final byte[] thumbnail = mContact != null ? mContact.getThumbnailPhotoBinaryData() : null;
+        if (mPreviousDrawable == null && thumbnail != null) {
+            // The thumbnail is small enough to be decoded right away, so that the target
+            // doesn't stay empty while the photo is decoded.
+            final Bitmap bitmap = decodeBitmap(thumbnail, getTargetSize());
+            if (bitmap != null) {
+                setDrawable(new BitmapDrawable(mTarget.getResources(), bitmap));
+                if (thumbnail == compressed) {
+                    // The contact has no larger photo, this is all there is to display.
+                    return previousBitmap();
+                }
+                mShowingPlaceholder = true;
+            }
+        }
+        if (mPreviousDrawable == null && mContact != null) {
+            // Don't notify the listener: this isn't what the photo looks like.
+            setDrawable(defaultDrawable(c, account), /* notify = */ false);
+            mShowingPlaceholder = true;
+        }
+        mDecodeTask = new DecodeTask(compressed, getTargetSize(), account);
+        mDecodeTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+        return previousBitmap();
+    }
 
+    private void setDrawable(Drawable newDrawable) {
+        setDrawable(newDrawable, /* notify = */ true);
+    }
+
+    private void setDrawable(Drawable newDrawable, boolean notify) {
         // If we don't have a new Drawable, something went wrong... bail out.
-        if (newDrawable == null) return previousBitmap();
+        if (newDrawable == null) return;
 
-        if (mPreviousDrawable == null || mDurationInMillis == 0) {
+        // Always fade out placeholders, replacing them at once looks like a glitch.
+        final int durationInMillis = mShowingPlaceholder
+                ? Math.max(mDurationInMillis, mTarget.getResources().getInteger(
+                        android.R.integer.config_shortAnimTime))
+                : mDurationInMillis;
+        mShowingPlaceholder = false;
+        if (mPreviousDrawable == null || durationInMillis == 0) {
             // Set the new one immediately.
             mTarget.setImageDrawable(newDrawable);
         } else {
@@ -128,14 +214,61 @@ public class ImageViewDrawableSetter {
             beforeAndAfter[1] = newDrawable;
             final TransitionDrawable transition = new TransitionDrawable(beforeAndAfter);
             mTarget.setImageDrawable(transition);
-            transition.startTransition(mDurationInMillis);
+            transition.startTransition(durationInMillis);
         }
 
         // Remember this for next time, so that we can transition from it to the
         // new one.
         mPreviousDrawable = newDrawable;
 
-        return previousBitmap();
+        if (notify) {
+            notifyImageSet();
+        }
+    }
+
+    private void notifyImageSet() {
+        if (mListener != null) {
+            mListener.onImageSet(previousBitmap());
+        }
+    }
+
+    private void cancelDecode() {
+        if (mDecodeTask != null) {
+            mDecodeTask.cancel(/* mayInterruptIfRunning = */ false);
+            mDecodeTask = null;
+        }
+    }
+
+    /**
+     * Returns the size (in pixels) the photo should at least be decoded at to
+     * fill the target without being scaled up.
+     */
+    private int getTargetSize() {
+        final int size = Math.max(mTarget.getWidth(), mTarget.getHeight());
+        if (size > 0) {
+            return size;
+        }
+        // The target hasn't been laid out yet, it can't be larger than the screen.
+        final DisplayMetrics metrics = mTarget.getResources().getDisplayMetrics();
+        return Math.max(metrics.widthPixels, metrics.heightPixels);
+    }
+
+    /**
+     * Fingerprints a compressed image by sampling {@link #FINGERPRINT_SAMPLES}
+     * bytes spread over the whole array, along with its length. Cheap enough to
+     * be called from the UI thread.
+     */
+    public static int fingerprint(byte[] compressed) {
+        if (compressed == null) {
+            return 0;
+        }
+        final int length = compressed.length;
+        final int step = Math.max(1, length / FINGERPRINT_SAMPLES);
+        int hash = length;
+        for (int i = length - 1; i >= 0; i -= step) {
+            hash = 31 * hash + compressed[i];
+        }
+        return hash;
     }
 
     private Bitmap previousBitmap() {
@@ -170,14 +303,60 @@ public class ImageViewDrawableSetter {
                 c, true, request, account);
     }
 
-    private BitmapDrawable decodedBitmapDrawable(byte[] compressed) {
-        final Resources rsrc = mTarget.getResources();
-        Bitmap bitmap = BitmapFactory.decodeByteArray(compressed, 0, compressed.length);
-        if (bitmap.getHeight() != bitmap.getWidth()) {
+    /**
+     * Decodes {@param compressed} at the smallest power of two subsampling that
+     * is still at least {@param targetSize} large, and crops it into a square.
+     */
+    private static Bitmap decodeBitmap(byte[] compressed, int targetSize) {
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(compressed, 0, compressed.length, options);
+        final int size = Math.min(options.outWidth, options.outHeight);
+        if (size <= 0) {
+            return null;
+        }
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = 1;
+        while (size / (options.inSampleSize * 2) >= targetSize) {
+            options.inSampleSize *= 2;
+        }
+        Bitmap bitmap = BitmapFactory.decodeByteArray(compressed, 0, compressed.length, options);
+        if (bitmap != null && bitmap.getHeight() != bitmap.getWidth()) {
             // Crop the bitmap into a square.
-            final int size = Math.min(bitmap.getWidth(), bitmap.getHeight());
-            bitmap = ThumbnailUtils.extractThumbnail(bitmap, size, size);
+            final int croppedSize = Math.min(bitmap.getWidth(), bitmap.getHeight());
+            bitmap = ThumbnailUtils.extractThumbnail(bitmap, croppedSize, croppedSize);
+        }
+        return bitmap;
+    }
+
+    private class DecodeTask extends AsyncTask<Void, Void, Bitmap> {
+        private final byte[] mBytes;
+        private final int mTargetSize;
+        private final Account mAccount;
+
+        public DecodeTask(byte[] bytes, int targetSize, Account account) {
+            mBytes = bytes;
+            mTargetSize = targetSize;
+            mAccount = account;
+        }
+
+        @Override
+        protected Bitmap doInBackground(Void... params) {
+            return decodeBitmap(mBytes, mTargetSize);
+        }
+
+        @Override
+        protected void onPostExecute(Bitmap bitmap) {
+            if (mDecodeTask != this) {
+                return;
+            }
+            mDecodeTask = null;
+            if (bitmap == null) {
+                Log.w(TAG, "Could not decode contact photo");
+                setDrawable(defaultDrawable(mTarget.getContext(), mAccount));
+            } else {
+                setDrawable(new BitmapDrawable(mTarget.getResources(), bitmap));
+            }
         }
-        return new BitmapDrawable(rsrc, bitmap);
     }
 }
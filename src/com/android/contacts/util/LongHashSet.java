@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.util;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import java.util.Arrays;
+
+/**
+ * A set of primitive longs backed by an open addressing hash table, for use with large
+ * numbers of ids where a {@code HashSet<Long>} would box every element. Not thread safe.
+ */
+public class LongHashSet {
+    private static final int MIN_CAPACITY = 8;
+
+    private long[] mKeys;
+    private boolean[] mUsed;
+    private int mSize;
+
+    public LongHashSet() {
+        this(MIN_CAPACITY);
+    }
+
+    /**
+     * Creates a set that can hold {@code expectedSize} elements without resizing.
+     */
+    public LongHashSet(int expectedSize) {
+        allocate(tableSizeFor(expectedSize));
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    /** Number of slots of the hash table. */
+    @VisibleForTesting
+    int getCapacity() {
+        return mKeys.length;
+    }
+
+    public boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    public boolean contains(long key) {
+        return indexOf(key) >= 0;
+    }
+
+    /**
+     * Adds {@code key} to the set.
+     *
+     * @return true if the set did not already contain it
+     */
+    public boolean add(long key) {
+        final int mask = mKeys.length - 1;
+        int i = hash(key) & mask;
+        while (mUsed[i]) {
+            if (mKeys[i] == key) {
+                return false;
+            }
+            i = (i + 1) & mask;
+        }
+        mKeys[i] = key;
+        mUsed[i] = true;
+        mSize++;
+        if (mSize * 4 > mKeys.length * 3) {
+            rehash(mKeys.length * 2);
+        }
+        return true;
+    }
+
+    public void addAll(long[] keys) {
+        if (keys == null) {
+            return;
+        }
+        for (long key : keys) {
+            add(key);
+        }
+    }
+
+    /**
+     * Removes {@code key} from the set.
+     *
+     * @return true if the set contained it
+     */
+    public boolean remove(long key) {
+        int i = indexOf(key);
+        if (i < 0) {
+            return false;
+        }
+        mUsed[i] = false;
+        mSize--;
+
+        // Shift back the following entries of the probe sequence, so lookups never stop at
+        // the hole we just created.
+        final int mask = mKeys.length - 1;
+        int j = i;
+        while (true) {
+            j = (j + 1) & mask;
+            if (!mUsed[j]) {
+                return true;
+            }
+            final int home = hash(mKeys[j]) & mask;
+            final boolean reachable = i <= j ? (i < home && home <= j) : (i < home || home <= j);
+            if (reachable) {
+                continue;
+            }
+            mKeys[i] = mKeys[j];
+            mUsed[i] = true;
+            mUsed[j] = false;
+            i = j;
+        }
+    }
+
+    public void clear() {
+        if (mSize == 0) {
+            return;
+        }
+        Arrays.fill(mUsed, false);
+        mSize = 0;
+    }
+
+    /**
+     * Returns the elements of the set in no particular order.
+     */
+    public long[] toArray() {
+        final long[] result = new long[mSize];
+        int n = 0;
+        for (int i = 0; i < mKeys.length; i++) {
+            if (mUsed[i]) {
+                result[n++] = mKeys[i];
+            }
+        }
+        return result;
+    }
+
+    private int indexOf(long key) {
+        final int mask = mKeys.length - 1;
+        int i = hash(key) & mask;
+        while (mUsed[i]) {
+            if (mKeys[i] == key) {
+                return i;
+            }
+            i = (i + 1) & mask;
+        }
+        return -1;
+    }
+
+    private void rehash(int capacity) {
+        final long[] oldKeys = mKeys;
+        final boolean[] oldUsed = mUsed;
+        allocate(capacity);
+        mSize = 0;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldUsed[i]) {
+                add(oldKeys[i]);
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        mKeys = new long[capacity];
+        mUsed = new boolean[capacity];
+    }
+
+    private static int tableSizeFor(int expectedSize) {
+        int capacity = MIN_CAPACITY;
+        while (capacity * 3 < expectedSize * 4) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+
+    @VisibleForTesting
+    static int hash(long key) {
+        final long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.util;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.os.AsyncTask;
+import android.provider.ContactsContract.DisplayPhoto;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Size constraints that the contacts provider puts on photos, shared by all the flows that
+ * pick, crop or save a contact photo.
+ *
+ * The provider is queried once per process, on a background thread started by the first
+ * {@link #getInstance}. Until it has answered, UI code gets {@link #DEFAULT_DISPLAY_PHOTO_MAX_DIM}.
+ */
+public class PhotoConstraints {
+    /** Display photo dimension used until the provider has been queried. */
+    public static final int DEFAULT_DISPLAY_PHOTO_MAX_DIM = 720;
+
+    private static PhotoConstraints sInstance;
+
+    private final Context mContext;
+    private final AtomicBoolean mQueryStarted = new AtomicBoolean();
+    private final Object mQueryLock = new Object();
+    /** Guarded by {@link #mQueryLock}. */
+    private boolean mQueried;
+    /** 0 if unknown. */
+    private volatile int mDisplayPhotoMaxDim;
+
+    public static synchronized PhotoConstraints getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new PhotoConstraints(context.getApplicationContext());
+        }
+        sInstance.queryInBackground();
+        return sInstance;
+    }
+
+    private PhotoConstraints(Context context) {
+        mContext = context;
+    }
+
+    /**
+     * Returns the height and width (in pixels) of the display photos stored by the provider,
+     * or {@link #DEFAULT_DISPLAY_PHOTO_MAX_DIM} if it isn't known yet. Never blocks.
+     */
+    public int getDisplayPhotoMaxDim() {
+        final int displayPhotoMaxDim = mDisplayPhotoMaxDim;
+        return displayPhotoMaxDim != 0 ? displayPhotoMaxDim : DEFAULT_DISPLAY_PHOTO_MAX_DIM;
+    }
+
+    /**
+     * Like {@link #getDisplayPhotoMaxDim}, but waits for the provider to be queried if it
+     * hasn't been yet in this process. Returns 0 if the dimension can't be determined. Must not
+     * be called from the UI thread.
+     */
+    public int loadDisplayPhotoMaxDim() {
+        queryIfNeeded();
+        return mDisplayPhotoMaxDim;
+    }
+
+    private void queryInBackground() {
+        if (!mQueryStarted.compareAndSet(false, true)) {
+            return;
+        }
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                queryIfNeeded();
+            }
+        });
+    }
+
+    private void queryIfNeeded() {
+        synchronized (mQueryLock) {
+            if (mQueried) {
+                return;
+            }
+            mQueried = true;
+
+            int displayPhotoMaxDim = 0;
+            final Cursor c = mContext.getContentResolver().query(
+                    DisplayPhoto.CONTENT_MAX_DIMENSIONS_URI,
+                    new String[] {DisplayPhoto.DISPLAY_MAX_DIM}, null, null, null);
+            if (c != null) {
+                try {
+                    if (c.moveToFirst()) {
+                        displayPhotoMaxDim = c.getInt(0);
+                    }
+                } finally {
+                    c.close();
+                }
+            }
+            if (displayPhotoMaxDim > 0) {
+                mDisplayPhotoMaxDim = displayPhotoMaxDim;
+            }
+        }
+    }
+}
@@ -0,0 +1,288 @@
+/**
+ * Copyright (C) 2014, The Linux Foundation. All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *     * Neither the name of The Linux Foundation nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.android.contacts.util;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.RemoteException;
+import android.os.ServiceManager;
+import android.telephony.SubscriptionManager;
+import android.telephony.TelephonyManager;
+import android.util.Log;
+
+import com.android.contacts.common.SimContactsConstants;
+import com.android.internal.telephony.IIccPhoneBook;
+import com.android.internal.telephony.TelephonyIntents;
+import com.android.internal.telephony.uicc.AdnRecord;
+import com.android.internal.telephony.uicc.IccConstants;
+
+import java.util.List;
+
+/**
+ * Caches the ADN capacity and the number of used entries of every SIM slot, so checking
+ * whether a card is full does not require reading the whole ADN table.
+ *
+ * <p>Each slot is loaded lazily on first use and then kept up to date through
+ * {@link #onContactInserted} and {@link #onContactDeleted}. SIM state and airplane mode
+ * changes invalidate all slots. Since other apps can write to the card as well, a "full"
+ * verdict is always confirmed against the card before it is returned.
+ */
+public class SimCapacityCache {
+    private static final String TAG = "SimCapacityCache";
+
+    private static final int UNKNOWN = -1;
+
+    private static SimCapacityCache sInstance;
+
+    private final Context mContext;
+    /** Guarded by this, like {@link #mUsed} and {@link #mGeneration}. */
+    private final int[] mCapacity;
+    private final int[] mUsed;
+    /**
+     * Incremented whenever the cached values of a slot change. The card is queried without
+     * holding the lock, since that can take seconds, and the result is only stored if the
+     * generation didn't change in the meantime.
+     */
+    private final int[] mGeneration;
+
+    public synchronized static SimCapacityCache getInstance(Context context) {
+        if (sInstance == null) {
+            final Context applicationContext = context.getApplicationContext();
+            sInstance = new SimCapacityCache(applicationContext);
+
+            // The card may have been swapped or powered down, reload on next access.
+            final IntentFilter filter = new IntentFilter(
+                    TelephonyIntents.ACTION_SIM_STATE_CHANGED);
+            filter.addAction(Intent.ACTION_AIRPLANE_MODE_CHANGED);
+            applicationContext.registerReceiver(sInstance.mInvalidateReceiver, filter);
+        }
+        return sInstance;
+    }
+
+    private final BroadcastReceiver mInvalidateReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            // Never waits for a query of the card, the lock is only held briefly.
+            invalidate();
+        }
+    };
+
+    private SimCapacityCache(Context context) {
+        mContext = context;
+        final int phoneCount = TelephonyManager.getDefault().getPhoneCount();
+        mCapacity = new int[phoneCount];
+        mUsed = new int[phoneCount];
+        mGeneration = new int[phoneCount];
+        clear();
+    }
+
+    /**
+     * Returns true if no more contacts can be inserted into the card in the given slot.
+     * May query the card, must not be called from the UI thread.
+     */
+    public boolean isFull(int slot) {
+        if (!isValidSlot(slot)) {
+            return false;
+        }
+        final int capacity = loadCapacity(slot);
+        if (capacity <= 0 || loadUsedCount(slot) < capacity) {
+            return false;
+        }
+        // Something else may have freed entries since we counted, double check.
+        final int generation = getGeneration(slot);
+        final int used = queryUsedCount(slot);
+        synchronized (this) {
+            if (generation == mGeneration[slot]) {
+                mUsed[slot] = used;
+            }
+        }
+        return used >= capacity;
+    }
+
+    /**
+     * Returns the number of entries which can still be written to the card in the given
+     * slot, or -1 if the capacity of the card could not be read.
+     */
+    public int getFreeCount(int slot) {
+        if (!isValidSlot(slot)) {
+            return UNKNOWN;
+        }
+        final int capacity = loadCapacity(slot);
+        if (capacity <= 0) {
+            return UNKNOWN;
+        }
+        return Math.max(0, capacity - loadUsedCount(slot));
+    }
+
+    /**
+     * Returns the total number of ADN entries of the card in the given slot, or 0 if the
+     * capacity could not be read.
+     */
+    public int getCapacity(int slot) {
+        if (!isValidSlot(slot)) {
+            return 0;
+        }
+        return Math.max(0, loadCapacity(slot));
+    }
+
+    public synchronized void onContactInserted(int slot) {
+        if (isValidSlot(slot)) {
+            mGeneration[slot]++;
+            if (mUsed[slot] != UNKNOWN) {
+                mUsed[slot]++;
+            }
+        }
+    }
+
+    public synchronized void onContactDeleted(int slot) {
+        if (isValidSlot(slot)) {
+            mGeneration[slot]++;
+            if (mUsed[slot] > 0) {
+                mUsed[slot]--;
+            }
+        }
+    }
+
+    /**
+     * Forgets everything about the given slot, for example after a write to the card failed
+     * unexpectedly.
+     */
+    public synchronized void invalidate(int slot) {
+        if (isValidSlot(slot)) {
+            mGeneration[slot]++;
+            mCapacity[slot] = UNKNOWN;
+            mUsed[slot] = UNKNOWN;
+        }
+    }
+
+    public synchronized void invalidate() {
+        clear();
+    }
+
+    private void clear() {
+        for (int i = 0; i < mCapacity.length; i++) {
+            mGeneration[i]++;
+            mCapacity[i] = UNKNOWN;
+            mUsed[i] = UNKNOWN;
+        }
+    }
+
+    private boolean isValidSlot(int slot) {
+        return slot >= 0 && slot < mCapacity.length;
+    }
+
+    private synchronized int getGeneration(int slot) {
+        return mGeneration[slot];
+    }
+
+    private int loadCapacity(int slot) {
+        final int generation;
+        synchronized (this) {
+            if (mCapacity[slot] != UNKNOWN) {
+                return mCapacity[slot];
+            }
+            generation = mGeneration[slot];
+        }
+        final int capacity = queryCapacity(slot);
+        if (capacity <= 0) {
+            // The phonebook may not be ready yet, try again next time.
+            return capacity;
+        }
+        synchronized (this) {
+            if (generation == mGeneration[slot]) {
+                mCapacity[slot] = capacity;
+            }
+        }
+        return capacity;
+    }
+
+    private int loadUsedCount(int slot) {
+        final int generation;
+        synchronized (this) {
+            if (mUsed[slot] != UNKNOWN) {
+                return mUsed[slot];
+            }
+            generation = mGeneration[slot];
+        }
+        final int used = queryUsedCount(slot);
+        synchronized (this) {
+            if (generation == mGeneration[slot]) {
+                mUsed[slot] = used;
+            }
+        }
+        return used;
+    }
+
+    private int queryUsedCount(int slot) {
+        final Uri iccUri;
+        final int[] subId = SubscriptionManager.getSubId(slot);
+        if (!TelephonyManager.getDefault().isMultiSimEnabled() || subId == null) {
+            iccUri = Uri.parse(SimContactsConstants.SIM_URI);
+        } else {
+            iccUri = Uri.parse(SimContactsConstants.SIM_SUB_URI + subId[0]);
+        }
+        final Cursor c = mContext.getContentResolver().query(iccUri, null, null, null, null);
+        if (c == null) {
+            return 0;
+        }
+        try {
+            return c.getCount();
+        } finally {
+            c.close();
+        }
+    }
+
+    private int queryCapacity(int slot) {
+        final int[] subId = SubscriptionManager.getSubId(slot);
+        try {
+            IIccPhoneBook iccIpb = IIccPhoneBook.Stub.asInterface(
+                    ServiceManager.getService("simphonebook"));
+            if (iccIpb != null) {
+                final List<AdnRecord> list;
+                if (subId != null && TelephonyManager.getDefault().isMultiSimEnabled()) {
+                    list = iccIpb.getAdnRecordsInEfForSubscriber(subId[0], IccConstants.EF_ADN);
+                } else {
+                    list = iccIpb.getAdnRecordsInEf(IccConstants.EF_ADN);
+                }
+                if (list != null) {
+                    return list.size();
+                }
+            }
+        } catch (RemoteException ex) {
+            Log.e(TAG, "Failed to IIccPhoneBookMSim", ex);
+        }
+        return 0;
+    }
+}
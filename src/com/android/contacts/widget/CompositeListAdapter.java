@@ -40,26 +40,47 @@ public class CompositeListAdapter extends BaseAdapter {
     private ListAdapter[] mAdapters;
     private int[] mCounts;
     private int[] mViewTypeCounts;
+    private boolean[] mAllItemsEnabledByAdapter;
+    /**
+     * Prefix sums of {@link #mCounts}: the adapter at index i holds the positions from
+     * mStarts[i] to mStarts[i + 1] - 1. Has one more element than there are adapters.
+     */
+    private int[] mStarts;
+    /** Prefix sums of {@link #mViewTypeCounts}, laid out like {@link #mStarts}. */
+    private int[] mViewTypeStarts;
+    /** Adapters whose counts changed since the prefix sums were last computed. */
+    private boolean[] mInvalidAdapters;
     private int mSize = 0;
     private int mCount = 0;
     private int mViewTypeCount = 0;
+    private int mDisabledAdapterCount = 0;
     private boolean mAllItemsEnabled = true;
-    private boolean mCacheValid = true;
-
-    private DataSetObserver mDataSetObserver = new DataSetObserver() {
+    /** Index of the first invalid adapter, or {@link #mSize} if the cache is valid. */
+    private int mFirstInvalidAdapter = 0;
+
+    /**
+     * Observes one sub-adapter, so that only its part of the cache is recomputed when it
+     * changes.
+     */
+    private class AdapterDataSetObserver extends DataSetObserver {
+        private final int mIndex;
+
+        public AdapterDataSetObserver(int index) {
+            mIndex = index;
+        }
 
         @Override
         public void onChanged() {
-            invalidate();
+            invalidate(mIndex);
             notifyDataChanged();
         }
 
         @Override
         public void onInvalidated() {
-            invalidate();
+            invalidate(mIndex);
             notifyDataChanged();
         }
-    };
+    }
 
     public CompositeListAdapter() {
         this(INITIAL_CAPACITY);
@@ -69,6 +90,10 @@ public class CompositeListAdapter extends BaseAdapter {
         mAdapters = new ListAdapter[INITIAL_CAPACITY];
         mCounts = new int[INITIAL_CAPACITY];
         mViewTypeCounts = new int[INITIAL_CAPACITY];
+        mAllItemsEnabledByAdapter = new boolean[INITIAL_CAPACITY];
+        mInvalidAdapters = new boolean[INITIAL_CAPACITY];
+        mStarts = new int[INITIAL_CAPACITY + 1];
+        mViewTypeStarts = new int[INITIAL_CAPACITY + 1];
     }
 
     @VisibleForTesting
@@ -79,31 +104,41 @@ public class CompositeListAdapter extends BaseAdapter {
             System.arraycopy(mAdapters, 0, newAdapters, 0, mSize);
             mAdapters = newAdapters;
 
-            int[] newCounts = new int[newCapacity];
-            System.arraycopy(mCounts, 0, newCounts, 0, mSize);
-            mCounts = newCounts;
+            mCounts = grow(mCounts, mSize, newCapacity);
+            mViewTypeCounts = grow(mViewTypeCounts, mSize, newCapacity);
+            mStarts = grow(mStarts, mSize + 1, newCapacity + 1);
+            mViewTypeStarts = grow(mViewTypeStarts, mSize + 1, newCapacity + 1);
 
-            int[] newViewTypeCounts = new int[newCapacity];
-            System.arraycopy(mViewTypeCounts, 0, newViewTypeCounts, 0, mSize);
-            mViewTypeCounts = newViewTypeCounts;
-        }
+            boolean[] newAllItemsEnabled = new boolean[newCapacity];
+            System.arraycopy(mAllItemsEnabledByAdapter, 0, newAllItemsEnabled, 0, mSize);
+            mAllItemsEnabledByAdapter = newAllItemsEnabled;
 
-        adapter.registerDataSetObserver(mDataSetObserver);
+            boolean[] newInvalidAdapters = new boolean[newCapacity];
+            System.arraycopy(mInvalidAdapters, 0, newInvalidAdapters, 0, mSize);
+            mInvalidAdapters = newInvalidAdapters;
+        }
 
-        int count = adapter.getCount();
-        int viewTypeCount = adapter.getViewTypeCount();
+        adapter.registerDataSetObserver(new AdapterDataSetObserver(mSize));
 
         mAdapters[mSize] = adapter;
-        mCounts[mSize] = count;
-        mCount += count;
-        mAllItemsEnabled &= adapter.areAllItemsEnabled();
-        mViewTypeCounts[mSize] = viewTypeCount;
-        mViewTypeCount += viewTypeCount;
+        // The new adapter doesn't hold any position yet, it is counted by ensureCacheValid().
+        mCounts[mSize] = 0;
+        mViewTypeCounts[mSize] = 0;
+        mAllItemsEnabledByAdapter[mSize] = true;
+        mStarts[mSize + 1] = mStarts[mSize];
+        mViewTypeStarts[mSize + 1] = mViewTypeStarts[mSize];
         mSize++;
+        invalidate(mSize - 1);
 
         notifyDataChanged();
     }
 
+    private static int[] grow(int[] array, int size, int newCapacity) {
+        int[] newArray = new int[newCapacity];
+        System.arraycopy(array, 0, newArray, 0, size);
+        return newArray;
+    }
+
     protected void notifyDataChanged() {
         if (getCount() > 0) {
             notifyDataSetChanged();
@@ -113,27 +148,69 @@ public class CompositeListAdapter extends BaseAdapter {
     }
 
     protected void invalidate() {
-        mCacheValid = false;
+        for (int i = 0; i < mSize; i++) {
+            mInvalidAdapters[i] = true;
+        }
+        mFirstInvalidAdapter = 0;
     }
 
+    private void invalidate(int index) {
+        mInvalidAdapters[index] = true;
+        mFirstInvalidAdapter = Math.min(mFirstInvalidAdapter, index);
+    }
+
+    /**
+     * Queries the invalid adapters again and recomputes the prefix sums from the first of them.
+     * The adapters before it, and the valid ones after it, are not queried.
+     */
     protected void ensureCacheValid() {
-        if (mCacheValid) {
+        if (mFirstInvalidAdapter >= mSize) {
             return;
         }
 
-        mCount = 0;
-        mAllItemsEnabled = true;
-        mViewTypeCount = 0;
-        for (int i = 0; i < mSize; i++) {
-            int count = mAdapters[i].getCount();
-            int viewTypeCount = mAdapters[i].getViewTypeCount();
-            mCounts[i] = count;
-            mCount += count;
-            mAllItemsEnabled &= mAdapters[i].areAllItemsEnabled();
-            mViewTypeCount += viewTypeCount;
+        for (int i = mFirstInvalidAdapter; i < mSize; i++) {
+            if (mInvalidAdapters[i]) {
+                final ListAdapter adapter = mAdapters[i];
+                mCounts[i] = adapter.getCount();
+                mViewTypeCounts[i] = adapter.getViewTypeCount();
+                final boolean allItemsEnabled = adapter.areAllItemsEnabled();
+                if (allItemsEnabled != mAllItemsEnabledByAdapter[i]) {
+                    mDisabledAdapterCount += allItemsEnabled ? -1 : 1;
+                    mAllItemsEnabledByAdapter[i] = allItemsEnabled;
+                }
+                mInvalidAdapters[i] = false;
+            }
+            mStarts[i + 1] = mStarts[i] + mCounts[i];
+            mViewTypeStarts[i + 1] = mViewTypeStarts[i] + mViewTypeCounts[i];
         }
 
-        mCacheValid = true;
+        mCount = mStarts[mSize];
+        mViewTypeCount = mViewTypeStarts[mSize];
+        mAllItemsEnabled = mDisabledAdapterCount == 0;
+        mFirstInvalidAdapter = mSize;
+    }
+
+    /**
+     * Returns the index of the adapter holding {@param position}, found by a binary search on
+     * the prefix sums. The cache must be valid.
+     */
+    private int findAdapter(int position) {
+        if (position < 0 || position >= mCount) {
+            throw new ArrayIndexOutOfBoundsException(position);
+        }
+        // Find the last adapter starting at or before the position. Empty adapters start where
+        // the next one does, so this skips them.
+        int low = 0;
+        int high = mSize - 1;
+        while (low < high) {
+            final int mid = (low + high + 1) >>> 1;
+            if (mStarts[mid] <= position) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
     }
 
     public int getCount() {
@@ -143,30 +220,14 @@ public class CompositeListAdapter extends BaseAdapter {
 
     public Object getItem(int position) {
         ensureCacheValid();
-        int start = 0;
-        for (int i = 0; i < mCounts.length; i++) {
-            int end = start + mCounts[i];
-            if (position >= start && position < end) {
-                return mAdapters[i].getItem(position - start);
-            }
-            start = end;
-        }
-
-        throw new ArrayIndexOutOfBoundsException(position);
+        final int index = findAdapter(position);
+        return mAdapters[index].getItem(position - mStarts[index]);
     }
 
     public long getItemId(int position) {
         ensureCacheValid();
-        int start = 0;
-        for (int i = 0; i < mCounts.length; i++) {
-            int end = start + mCounts[i];
-            if (position >= start && position < end) {
-                return mAdapters[i].getItemId(position - start);
-            }
-            start = end;
-        }
-
-        throw new ArrayIndexOutOfBoundsException(position);
+        final int index = findAdapter(position);
+        return mAdapters[index].getItemId(position - mStarts[index]);
     }
 
     @Override
@@ -178,32 +239,15 @@ public class CompositeListAdapter extends BaseAdapter {
     @Override
     public int getItemViewType(int position) {
         ensureCacheValid();
-        int start = 0;
-        int viewTypeOffset = 0;
-        for (int i = 0; i < mCounts.length; i++) {
-            int end = start + mCounts[i];
-            if (position >= start && position < end) {
-                return viewTypeOffset + mAdapters[i].getItemViewType(position - start);
-            }
-            viewTypeOffset += mViewTypeCounts[i];
-            start = end;
-        }
-
-        throw new ArrayIndexOutOfBoundsException(position);
+        final int index = findAdapter(position);
+        return mViewTypeStarts[index]
+                + mAdapters[index].getItemViewType(position - mStarts[index]);
     }
 
     public View getView(int position, View convertView, ViewGroup parent) {
         ensureCacheValid();
-        int start = 0;
-        for (int i = 0; i < mCounts.length; i++) {
-            int end = start + mCounts[i];
-            if (position >= start && position < end) {
-                return mAdapters[i].getView(position - start, convertView, parent);
-            }
-            start = end;
-        }
-
-        throw new ArrayIndexOutOfBoundsException(position);
+        final int index = findAdapter(position);
+        return mAdapters[index].getView(position - mStarts[index], convertView, parent);
     }
 
     @Override
@@ -215,16 +259,8 @@ public class CompositeListAdapter extends BaseAdapter {
     @Override
     public boolean isEnabled(int position) {
         ensureCacheValid();
-        int start = 0;
-        for (int i = 0; i < mCounts.length; i++) {
-            int end = start + mCounts[i];
-            if (position >= start && position < end) {
-                return mAdapters[i].areAllItemsEnabled()
-                        || mAdapters[i].isEnabled(position - start);
-            }
-            start = end;
-        }
-
-        throw new ArrayIndexOutOfBoundsException(position);
+        final int index = findAdapter(position);
+        return mAdapters[index].areAllItemsEnabled()
+                || mAdapters[index].isEnabled(position - mStarts[index]);
     }
 }
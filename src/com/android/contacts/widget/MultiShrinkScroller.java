@@ -144,8 +144,35 @@ public class MultiShrinkScroller extends FrameLayout {
     private final boolean mIsTwoPanel;
     private final int mActionBarSize;
 
-    // Objects used to perform color filtering on the header. These are stored as fields for
-    // the sole purpose of avoiding "new" operations inside animation loops.
+    /**
+     * Number of steps the header ratio is quantized into when picking the photo's tint. Adjacent
+     * steps differ by up to 3 or 4 color levels, which isn't visible while the header is moving.
+     * The header rests at its fully expanded and collapsed sizes, which fall exactly on steps,
+     * and at its intermediate size, which has a slot of its own. More steps would make
+     * rebuilding the filters, whenever the tint color changes, more expensive.
+     */
+    private static final int PHOTO_TINT_STEPS = 128;
+    /** Slot of the exact tint of the intermediate header size, after the quantized steps. */
+    private static final int PHOTO_TINT_INTERMEDIATE_SLOT = PHOTO_TINT_STEPS + 1;
+
+    // Color filters and gradient alphas for every quantized header ratio, and for the
+    // intermediate ratio. They only depend on the tint color, on whether the photo is a letter
+    // tile and on the portrait header sizes, so they are computed once instead of inside every
+    // animation frame.
+    private final ColorMatrixColorFilter[] mPhotoTintFilters
+            = new ColorMatrixColorFilter[PHOTO_TINT_INTERMEDIATE_SLOT + 1];
+    private final int[] mPhotoTintGradientAlphas = new int[PHOTO_TINT_INTERMEDIATE_SLOT + 1];
+    private int mPhotoTintFiltersColor;
+    private boolean mPhotoTintFiltersForLetterTile;
+    private float mPhotoTintFiltersIntermediateRatio = Float.NaN;
+
+    // Rects used to measure the title. These are stored as fields for the sole purpose of
+    // avoiding "new" operations while laying out the header.
+    private final Rect mLargeTextViewRect = new Rect();
+    private final Rect mInvisiblePlaceholderTextViewRect = new Rect();
+
+    // Objects used to compute the color filters of the header. These are stored as fields for
+    // the sole purpose of avoiding "new" operations while building mPhotoTintFilters.
     private final ColorMatrix mWhitenessColorMatrix = new ColorMatrix();
     private final ColorMatrix mColorMatrix = new ColorMatrix();
     private final float[] mAlphaMatrixValues = {
@@ -982,8 +1009,8 @@ public class MultiShrinkScroller extends FrameLayout {
      * finishes moving into its target location/size.
      */
     private void calculateCollapsedLargeTitlePadding() {
-        final Rect largeTextViewRect = new Rect();
-        final Rect invisiblePlaceholderTextViewRect = new Rect();
+        final Rect largeTextViewRect = mLargeTextViewRect;
+        final Rect invisiblePlaceholderTextViewRect = mInvisiblePlaceholderTextViewRect;
         mToolbar.getBoundsOnScreen(largeTextViewRect);
         mInvisiblePlaceholderTextView.getBoundsOnScreen(invisiblePlaceholderTextViewRect);
         if (isLayoutRtl()) {
@@ -1033,9 +1060,9 @@ public class MultiShrinkScroller extends FrameLayout {
     }
 
     private void updatePhotoTintAndDropShadow() {
-        // Let's keep an eye on how long this method takes to complete. Right now, it takes ~0.2ms
-        // on a Nexus 5. If it starts to get much slower, there are a number of easy optimizations
-        // available.
+        // Let's keep an eye on how long this method takes to complete. It runs on every frame
+        // while the header is scrolled, so it must not allocate or evaluate the tint curves.
+        // Those are precomputed by buildPhotoTintFilters().
         Trace.beginSection("updatePhotoTintAndDropShadow");
 
         if (mIsTwoPanel && !mPhotoView.isBasedOffLetterTile()) {
@@ -1043,6 +1070,7 @@ public class MultiShrinkScroller extends FrameLayout {
             // tile photos.
             mTitleGradientDrawable.setAlpha(0xFF);
             mActionBarGradientDrawable.setAlpha(0xFF);
+            Trace.endSection();
             return;
         }
 
@@ -1056,9 +1084,6 @@ public class MultiShrinkScroller extends FrameLayout {
             mPhotoViewContainer.setElevation(0);
         }
 
-        // Reuse an existing mColorFilter (to avoid GC pauses) to change the photo's tint.
-        mPhotoView.clearColorFilter();
-
         // Ratio of current size to maximum size of the header.
         final float ratio;
         // The value that "ratio" will have when the header is at its starting/intermediate size.
@@ -1072,6 +1097,53 @@ public class MultiShrinkScroller extends FrameLayout {
             ratio = intermediateRatio;
         }
 
+        final boolean isLetterTile = mPhotoView.isBasedOffLetterTile();
+        if (mPhotoTintFiltersColor != mHeaderTintColor
+                || mPhotoTintFiltersForLetterTile != isLetterTile
+                || Float.compare(mPhotoTintFiltersIntermediateRatio, intermediateRatio) != 0) {
+            buildPhotoTintFilters(intermediateRatio, isLetterTile);
+        }
+        // The header rests at the intermediate size when QuickContact opens, use its exact tint.
+        final int step = ratio == intermediateRatio ? PHOTO_TINT_INTERMEDIATE_SLOT
+                : Math.round(Math.max(0, Math.min(ratio, 1)) * PHOTO_TINT_STEPS);
+
+        // Reuse the precomputed filters (to avoid GC pauses) to change the photo's tint.
+        mPhotoView.setColorFilter(mPhotoTintFilters[step]);
+        // Tell the photo view what tint we are trying to achieve. Depending on the type of
+        // drawable used, the photo view may or may not use this tint.
+        mPhotoView.setTint(mHeaderTintColor);
+
+        final int gradientAlpha = mPhotoTintGradientAlphas[step];
+        mTitleGradientDrawable.setAlpha(gradientAlpha);
+        mActionBarGradientDrawable.setAlpha(gradientAlpha);
+
+        Trace.endSection();
+    }
+
+    /**
+     * Computes the photo's color filter and the gradients' alpha for every quantized header
+     * ratio and for {@param intermediateRatio}, using the current {@link #mHeaderTintColor}.
+     */
+    private void buildPhotoTintFilters(float intermediateRatio, boolean isLetterTile) {
+        Trace.beginSection("buildPhotoTintFilters");
+        for (int step = 0; step <= PHOTO_TINT_STEPS; step++) {
+            buildPhotoTintFilter(step, step / (float) PHOTO_TINT_STEPS, intermediateRatio,
+                    isLetterTile);
+        }
+        buildPhotoTintFilter(PHOTO_TINT_INTERMEDIATE_SLOT, intermediateRatio, intermediateRatio,
+                isLetterTile);
+        mPhotoTintFiltersColor = mHeaderTintColor;
+        mPhotoTintFiltersForLetterTile = isLetterTile;
+        mPhotoTintFiltersIntermediateRatio = intermediateRatio;
+        Trace.endSection();
+    }
+
+    /**
+     * Computes the color filter and gradient alpha of the header at {@param ratio} into
+     * {@param slot} of the tables.
+     */
+    private void buildPhotoTintFilter(int slot, float ratio, float intermediateRatio,
+            boolean isLetterTile) {
         final float linearBeforeMiddle = Math.max(1 - (1 - ratio) / intermediateRatio, 0);
 
         // Want a function with a derivative of 0 at x=0. I don't want it to grow too
@@ -1085,11 +1157,11 @@ public class MultiShrinkScroller extends FrameLayout {
                 1 - mWhiteBlendingPathInterpolator.getInterpolation(1 - ratio), Color.WHITE));
 
         final float colorAlpha;
-        if (mPhotoView.isBasedOffLetterTile()) {
+        if (isLetterTile) {
             // Since the letter tile only has white and grey, tint it more slowly. Otherwise
-            // it will be completely invisible before we reach the intermediate point. The values
-            // for TILE_EXPONENT and slowingFactor are chosen to achieve DESIRED_INTERMEDIATE_ALPHA
-            // at the intermediate/starting position.
+            // it will be completely invisible before we reach the intermediate point. The
+            // values for TILE_EXPONENT and slowingFactor are chosen to achieve
+            // DESIRED_INTERMEDIATE_ALPHA at the intermediate/starting position.
             final float DESIRED_INTERMEDIATE_ALPHA = 0.9f;
             final float TILE_EXPONENT = 1.5f;
             final float slowingFactor = (float) ((1 - intermediateRatio) / intermediateRatio
@@ -1103,16 +1175,9 @@ public class MultiShrinkScroller extends FrameLayout {
             mColorMatrix.postConcat(multiplyBlendMatrix(mHeaderTintColor, colorAlpha));
         }
 
-        mPhotoView.setColorFilter(new ColorMatrixColorFilter(mColorMatrix));
-        // Tell the photo view what tint we are trying to achieve. Depending on the type of
-        // drawable used, the photo view may or may not use this tint.
-        mPhotoView.setTint(mHeaderTintColor);
-
-        final int gradientAlpha = (int) (255 * linearBeforeMiddle);
-        mTitleGradientDrawable.setAlpha(gradientAlpha);
-        mActionBarGradientDrawable.setAlpha(gradientAlpha);
-
-        Trace.endSection();
+        // ColorMatrixColorFilter copies the matrix, so mColorMatrix can be reused.
+        mPhotoTintFilters[slot] = new ColorMatrixColorFilter(mColorMatrix);
+        mPhotoTintGradientAlphas[slot] = (int) (255 * linearBeforeMiddle);
     }
 
     private float calculateHeightRatio(int height) {
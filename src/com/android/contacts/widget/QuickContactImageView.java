@@ -5,6 +5,7 @@ import com.android.contacts.common.lettertiles.LetterTileDrawable;
 import android.content.Context;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
+import android.graphics.drawable.TransitionDrawable;
 import android.util.AttributeSet;
 import android.widget.ImageView;
 
@@ -17,6 +18,9 @@ import com.android.contacts.R;
  * In addition to supporting {@link ImageView#setColorFilter} this also supports a {@link #setTint}
  * method.
  *
+ * A {@link TransitionDrawable} between two {@link BitmapDrawable}s is drawn as is, and behaves
+ * like its last layer otherwise.
+ *
  * This entire class can be deleted once use of LetterTileDrawable is no longer used
  * inside QuickContactsActivity at all.
  */
@@ -65,6 +69,20 @@ public class QuickContactImageView extends ImageView {
 
     @Override
     public void setImageDrawable(Drawable drawable) {
+        if (drawable instanceof TransitionDrawable) {
+            final TransitionDrawable transition = (TransitionDrawable) drawable;
+            final Drawable last = transition.getDrawable(transition.getNumberOfLayers() - 1);
+            if (!(last instanceof BitmapDrawable)
+                    || !(transition.getDrawable(0) instanceof BitmapDrawable)) {
+                setImageDrawable(last);
+                return;
+            }
+            mOriginalDrawable = last;
+            mBitmapDrawable = (BitmapDrawable) last;
+            setTint(mTintColor);
+            super.setImageDrawable(transition);
+            return;
+        }
         // There is no way to avoid all this casting. Blending modes aren't equally
         // supported for all drawable types.
         final BitmapDrawable bitmapDrawable;
@@ -0,0 +1,107 @@
+/**
+ * Copyright (C) 2014, The Linux Foundation. All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *     * Neither the name of The Linux Foundation nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.android.contacts.editor;
+
+import android.test.MoreAsserts;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+
+/**
+ * Test case for {@link MultiPickSelection}.
+ */
+@SmallTest
+public class MultiPickSelectionTest extends TestCase {
+    private MultiPickSelection mSelection;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mSelection = new MultiPickSelection();
+        mSelection.setTotalCount(4);
+    }
+
+    public void testSelectItems() {
+        mSelection.setSelected(10, true);
+        mSelection.setSelected(11, true);
+        mSelection.setSelected(12, true);
+        mSelection.setSelected(11, false);
+
+        assertTrue(mSelection.isSelected(10));
+        assertFalse(mSelection.isSelected(11));
+        assertEquals(2, mSelection.size());
+        assertFalse(mSelection.isAllSelected());
+        assertFalse(mSelection.needsAllIds());
+
+        long[] ids = mSelection.getSelectedIds();
+        Arrays.sort(ids);
+        MoreAsserts.assertEquals(new long[] {10, 12}, ids);
+    }
+
+    public void testSelectEveryItem() {
+        for (long id = 10; id < 14; id++) {
+            mSelection.setSelected(id, true);
+        }
+        assertTrue(mSelection.isAllSelected());
+    }
+
+    public void testSelectAll() {
+        mSelection.selectAll();
+        assertTrue(mSelection.isAllSelected());
+        assertTrue(mSelection.needsAllIds());
+        assertTrue(mSelection.isSelected(10));
+        assertEquals(4, mSelection.size());
+
+        mSelection.setSelected(10, false);
+        assertFalse(mSelection.isSelected(10));
+        assertTrue(mSelection.isSelected(11));
+        assertFalse(mSelection.isAllSelected());
+        assertEquals(3, mSelection.size());
+
+        mSelection.setSelected(10, true);
+        assertTrue(mSelection.isAllSelected());
+
+        mSelection.clear();
+        assertTrue(mSelection.isEmpty());
+        assertFalse(mSelection.isSelected(10));
+    }
+
+    public void testCopy() {
+        mSelection.selectAll();
+        MultiPickSelection copy = mSelection.copy();
+        mSelection.setSelected(10, false);
+
+        assertTrue(copy.isSelected(10));
+        assertEquals(4, copy.size());
+    }
+}
@@ -13,53 +13,96 @@ import java.util.List;
 public class CallLogInteractionsLoaderTest extends AndroidTestCase {
 
     public void testCallLogInteractions_pruneDuplicates_containsDuplicates() {
-        List<ContactInteraction> interactions = new ArrayList<>();
+        List<List<CallLogInteraction>> interactionsPerNumber = new ArrayList<>();
         int maxToRetrieve = 5;
 
-        ContentValues interactionOneValues = new ContentValues();
-        interactionOneValues.put(Calls.DATE, 1L);
-        interactions.add(new CallLogInteraction(interactionOneValues));
+        List<CallLogInteraction> numberOne = new ArrayList<>();
+        numberOne.add(newCallLogInteraction(/* id = */ 1L, /* date = */ 1L));
+        interactionsPerNumber.add(numberOne);
 
-        ContentValues interactionTwoValues = new ContentValues();
-        interactionTwoValues.put(Calls.DATE, 1L);
-        interactions.add(new CallLogInteraction(interactionTwoValues));
+        List<CallLogInteraction> numberTwo = new ArrayList<>();
+        numberTwo.add(newCallLogInteraction(/* id = */ 1L, /* date = */ 1L));
+        interactionsPerNumber.add(numberTwo);
 
-        interactions = CallLogInteractionsLoader.pruneDuplicateCallLogInteractions(interactions,
-                maxToRetrieve);
+        List<ContactInteraction> interactions = CallLogInteractionsLoader
+                .mergeCallLogInteractions(interactionsPerNumber, maxToRetrieve);
         assertEquals(1, interactions.size());
     }
 
     public void testCallLogInteractions_pruneDuplicates_containsNoDuplicates() {
-        List<ContactInteraction> interactions = new ArrayList<>();
+        List<List<CallLogInteraction>> interactionsPerNumber = new ArrayList<>();
         int maxToRetrieve = 5;
 
-        ContentValues interactionOneValues = new ContentValues();
-        interactionOneValues.put(Calls.DATE, 1L);
-        interactions.add(new CallLogInteraction(interactionOneValues));
+        List<CallLogInteraction> numberOne = new ArrayList<>();
+        numberOne.add(newCallLogInteraction(/* id = */ 1L, /* date = */ 1L));
+        interactionsPerNumber.add(numberOne);
 
-        ContentValues interactionTwoValues = new ContentValues();
-        interactionTwoValues.put(Calls.DATE, 5L);
-        interactions.add(new CallLogInteraction(interactionTwoValues));
+        List<CallLogInteraction> numberTwo = new ArrayList<>();
+        numberTwo.add(newCallLogInteraction(/* id = */ 2L, /* date = */ 5L));
+        interactionsPerNumber.add(numberTwo);
 
-        interactions = CallLogInteractionsLoader.pruneDuplicateCallLogInteractions(interactions,
-                maxToRetrieve);
+        List<ContactInteraction> interactions = CallLogInteractionsLoader
+                .mergeCallLogInteractions(interactionsPerNumber, maxToRetrieve);
         assertEquals(2, interactions.size());
     }
 
+    public void testCallLogInteractions_pruneDuplicates_sameDateDifferentCalls() {
+        List<List<CallLogInteraction>> interactionsPerNumber = new ArrayList<>();
+        int maxToRetrieve = 5;
+
+        List<CallLogInteraction> numberOne = new ArrayList<>();
+        numberOne.add(newCallLogInteraction(/* id = */ 1L, /* date = */ 1L));
+        interactionsPerNumber.add(numberOne);
+
+        List<CallLogInteraction> numberTwo = new ArrayList<>();
+        numberTwo.add(newCallLogInteraction(/* id = */ 2L, /* date = */ 1L));
+        interactionsPerNumber.add(numberTwo);
+
+        List<ContactInteraction> interactions = CallLogInteractionsLoader
+                .mergeCallLogInteractions(interactionsPerNumber, maxToRetrieve);
+        assertEquals(2, interactions.size());
+    }
+
+    public void testCallLogInteractions_mergesMostRecentFirst() {
+        List<List<CallLogInteraction>> interactionsPerNumber = new ArrayList<>();
+        int maxToRetrieve = 5;
+
+        List<CallLogInteraction> numberOne = new ArrayList<>();
+        numberOne.add(newCallLogInteraction(/* id = */ 3L, /* date = */ 9L));
+        numberOne.add(newCallLogInteraction(/* id = */ 1L, /* date = */ 2L));
+        interactionsPerNumber.add(numberOne);
+
+        List<CallLogInteraction> numberTwo = new ArrayList<>();
+        numberTwo.add(newCallLogInteraction(/* id = */ 2L, /* date = */ 5L));
+        interactionsPerNumber.add(numberTwo);
+
+        List<ContactInteraction> interactions = CallLogInteractionsLoader
+                .mergeCallLogInteractions(interactionsPerNumber, maxToRetrieve);
+        assertEquals(3, interactions.size());
+        assertEquals(9L, interactions.get(0).getInteractionDate());
+        assertEquals(5L, interactions.get(1).getInteractionDate());
+        assertEquals(2L, interactions.get(2).getInteractionDate());
+    }
+
     public void testCallLogInteractions_maxToRetrieve() {
-        List<ContactInteraction> interactions = new ArrayList<>();
+        List<List<CallLogInteraction>> interactionsPerNumber = new ArrayList<>();
         int maxToRetrieve = 1;
 
-        ContentValues interactionOneValues = new ContentValues();
-        interactionOneValues.put(Calls.DATE, 1L);
-        interactions.add(new CallLogInteraction(interactionOneValues));
-
-        ContentValues interactionTwoValues = new ContentValues();
-        interactionTwoValues.put(Calls.DATE, 5L);
-        interactions.add(new CallLogInteraction(interactionTwoValues));
+        List<CallLogInteraction> numberOne = new ArrayList<>();
+        numberOne.add(newCallLogInteraction(/* id = */ 2L, /* date = */ 5L));
+        numberOne.add(newCallLogInteraction(/* id = */ 1L, /* date = */ 1L));
+        interactionsPerNumber.add(numberOne);
 
-        interactions = CallLogInteractionsLoader.pruneDuplicateCallLogInteractions(interactions,
-                maxToRetrieve);
+        List<ContactInteraction> interactions = CallLogInteractionsLoader
+                .mergeCallLogInteractions(interactionsPerNumber, maxToRetrieve);
         assertEquals(1, interactions.size());
+        assertEquals(5L, interactions.get(0).getInteractionDate());
+    }
+
+    private static CallLogInteraction newCallLogInteraction(long id, long date) {
+        ContentValues values = new ContentValues();
+        values.put(Calls._ID, id);
+        values.put(Calls.DATE, date);
+        return new CallLogInteraction(values);
     }
 }
@@ -0,0 +1,67 @@
+package com.android.contacts.interactions;
+
+import android.content.ContentValues;
+import android.provider.CallLog.Calls;
+import android.provider.Telephony.Sms;
+import android.test.AndroidTestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests {@link ContactInteractionTimelineLoader}
+ */
+public class ContactInteractionTimelineLoaderTest extends AndroidTestCase {
+
+    public void testMergeMostRecentFirst_interleavesSources() {
+        List<List<ContactInteraction>> sources = new ArrayList<>();
+        sources.add(callLogInteractions(9L, 5L, 1L));
+        sources.add(smsInteractions(8L, 6L));
+
+        List<ContactInteraction> merged =
+                ContactInteractionTimelineLoader.mergeMostRecentFirst(sources);
+        assertDates(merged, 9L, 8L, 6L, 5L, 1L);
+    }
+
+    public void testMergeMostRecentFirst_sortsUnsortedSource() {
+        List<List<ContactInteraction>> sources = new ArrayList<>();
+        sources.add(callLogInteractions(4L, 7L, 2L));
+        sources.add(smsInteractions(5L));
+
+        List<ContactInteraction> merged =
+                ContactInteractionTimelineLoader.mergeMostRecentFirst(sources);
+        assertDates(merged, 7L, 5L, 4L, 2L);
+    }
+
+    public void testMergeMostRecentFirst_noSources() {
+        List<List<ContactInteraction>> sources = new ArrayList<>();
+        assertEquals(0, ContactInteractionTimelineLoader.mergeMostRecentFirst(sources).size());
+    }
+
+    private static List<ContactInteraction> callLogInteractions(long... dates) {
+        List<ContactInteraction> interactions = new ArrayList<>();
+        for (long date : dates) {
+            ContentValues values = new ContentValues();
+            values.put(Calls.DATE, date);
+            interactions.add(new CallLogInteraction(values));
+        }
+        return interactions;
+    }
+
+    private static List<ContactInteraction> smsInteractions(long... dates) {
+        List<ContactInteraction> interactions = new ArrayList<>();
+        for (long date : dates) {
+            ContentValues values = new ContentValues();
+            values.put(Sms.DATE, date);
+            interactions.add(new SmsInteraction(values));
+        }
+        return interactions;
+    }
+
+    private static void assertDates(List<ContactInteraction> interactions, long... dates) {
+        assertEquals(dates.length, interactions.size());
+        for (int i = 0; i < dates.length; i++) {
+            assertEquals(dates[i], interactions.get(i).getInteractionDate());
+        }
+    }
+}
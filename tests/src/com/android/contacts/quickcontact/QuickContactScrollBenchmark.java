@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.quickcontact;
+
+import android.animation.ObjectAnimator;
+import android.content.Intent;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.provider.ContactsContract.Contacts;
+import android.provider.ContactsContract.QuickContact;
+import android.test.ActivityInstrumentationTestCase2;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+import android.view.Choreographer;
+import android.view.MotionEvent;
+
+import com.android.contacts.R;
+import com.android.contacts.widget.MultiShrinkScroller;
+
+/**
+ * Flings the header of {@link QuickContactActivity} up and animates it back down several times,
+ * and counts the frames that took longer than the display's refresh interval. Results are
+ * logged with the tag {@link #TAG}. Run it on two builds to compare them.
+ *
+ * The device must have at least one contact, otherwise the benchmark is skipped.
+ */
+@LargeTest
+public class QuickContactScrollBenchmark
+        extends ActivityInstrumentationTestCase2<QuickContactActivity> {
+    private static final String TAG = "QuickContactScrollBenchmark";
+
+    private static final int FLINGS = 10;
+    private static final int FLING_MOVES = 8;
+    private static final int FLING_MOVE_INTERVAL_MILLIS = 8;
+    private static final int SCROLL_BACK_DURATION_MILLIS = 300;
+    /** Time given to the contact to load and to the entrance animation to finish. */
+    private static final int LOAD_WAIT_MILLIS = 2000;
+    private static final int SETTLE_WAIT_MILLIS = 800;
+
+    public QuickContactScrollBenchmark() {
+        super(QuickContactActivity.class);
+    }
+
+    public void testFlingHeader() throws Throwable {
+        final Uri lookupUri = findContact();
+        if (lookupUri == null) {
+            Log.w(TAG, "No contact on the device, skipping benchmark");
+            return;
+        }
+        final Intent intent = new Intent(QuickContact.ACTION_QUICK_CONTACT, lookupUri);
+        intent.putExtra(QuickContact.EXTRA_MODE, QuickContact.MODE_LARGE);
+        setActivityIntent(intent);
+        final QuickContactActivity activity = getActivity();
+        SystemClock.sleep(LOAD_WAIT_MILLIS);
+        getInstrumentation().waitForIdleSync();
+
+        final MultiShrinkScroller scroller =
+                (MultiShrinkScroller) activity.findViewById(R.id.multiscroller);
+        final int startScroll = scroller.getScroll();
+        final float frameIntervalMillis =
+                1000 / activity.getWindowManager().getDefaultDisplay().getRefreshRate();
+        final FrameCounter counter = new FrameCounter(frameIntervalMillis);
+
+        runTestOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                counter.start();
+            }
+        });
+        for (int i = 0; i < FLINGS; i++) {
+            flingUp(scroller);
+            SystemClock.sleep(SETTLE_WAIT_MILLIS);
+            runTestOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    ObjectAnimator.ofInt(scroller, "scroll", startScroll)
+                            .setDuration(SCROLL_BACK_DURATION_MILLIS).start();
+                }
+            });
+            SystemClock.sleep(SETTLE_WAIT_MILLIS);
+        }
+        runTestOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                counter.stop();
+            }
+        });
+
+        Log.i(TAG, "frames=" + counter.mFrames + " dropped=" + counter.mDroppedFrames
+                + " worst=" + counter.mWorstFrameMillis + "ms"
+                + " interval=" + frameIntervalMillis + "ms");
+    }
+
+    private Uri findContact() {
+        final Cursor cursor = getInstrumentation().getTargetContext().getContentResolver().query(
+                Contacts.CONTENT_URI, new String[] {Contacts._ID, Contacts.LOOKUP_KEY},
+                null, null, null);
+        if (cursor == null) {
+            return null;
+        }
+        try {
+            if (!cursor.moveToFirst()) {
+                return null;
+            }
+            return Contacts.getLookupUri(cursor.getLong(0), cursor.getString(1));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Injects a quick upward swipe through the middle of {@param scroller}. Event times are
+     * spaced by {@link #FLING_MOVE_INTERVAL_MILLIS} so that the release velocity is high enough
+     * for a fling, regardless of how long the injection itself takes.
+     */
+    private void flingUp(MultiShrinkScroller scroller) {
+        final int[] location = new int[2];
+        scroller.getLocationOnScreen(location);
+        final float x = location[0] + scroller.getWidth() / 2f;
+        final float fromY = location[1] + scroller.getHeight() * 0.8f;
+        final float toY = location[1] + scroller.getHeight() * 0.2f;
+
+        final long downTime = SystemClock.uptimeMillis();
+        long eventTime = downTime;
+        sendPointer(downTime, eventTime, MotionEvent.ACTION_DOWN, x, fromY);
+        for (int i = 1; i <= FLING_MOVES; i++) {
+            eventTime += FLING_MOVE_INTERVAL_MILLIS;
+            sendPointer(downTime, eventTime, MotionEvent.ACTION_MOVE, x,
+                    fromY + (toY - fromY) * i / FLING_MOVES);
+        }
+        sendPointer(downTime, eventTime, MotionEvent.ACTION_UP, x, toY);
+    }
+
+    private void sendPointer(long downTime, long eventTime, int action, float x, float y) {
+        final MotionEvent event = MotionEvent.obtain(downTime, eventTime, action, x, y, 0);
+        getInstrumentation().sendPointerSync(event);
+        event.recycle();
+    }
+
+    /**
+     * Records the time between consecutive frames. Must be used from the UI thread.
+     */
+    private static class FrameCounter implements Choreographer.FrameCallback {
+        private final float mFrameIntervalMillis;
+        private boolean mRunning;
+        private long mLastFrameTimeNanos;
+        int mFrames;
+        int mDroppedFrames;
+        float mWorstFrameMillis;
+
+        public FrameCounter(float frameIntervalMillis) {
+            mFrameIntervalMillis = frameIntervalMillis;
+        }
+
+        public void start() {
+            mRunning = true;
+            mLastFrameTimeNanos = 0;
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+
+        public void stop() {
+            mRunning = false;
+            Choreographer.getInstance().removeFrameCallback(this);
+        }
+
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            if (!mRunning) {
+                return;
+            }
+            if (mLastFrameTimeNanos != 0) {
+                final float frameMillis = (frameTimeNanos - mLastFrameTimeNanos) / 1000000f;
+                mFrames++;
+                // A frame that took more than one and a half intervals missed a vsync.
+                if (frameMillis > mFrameIntervalMillis * 1.5f) {
+                    mDroppedFrames += Math.round(frameMillis / mFrameIntervalMillis) - 1;
+                }
+                mWorstFrameMillis = Math.max(mWorstFrameMillis, frameMillis);
+            }
+            mLastFrameTimeNanos = frameTimeNanos;
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+    }
+}
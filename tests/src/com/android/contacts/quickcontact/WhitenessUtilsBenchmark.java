@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.quickcontact;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+/**
+ * Compares {@link WhitenessUtils#isBitmapWhiteAtTopOrBottom} with the previous implementation,
+ * which scaled the bitmap down and copied all of its pixels, for several photo sizes. Results are
+ * logged with the tag {@link #TAG}.
+ */
+@LargeTest
+public class WhitenessUtilsBenchmark extends AndroidTestCase {
+    private static final String TAG = "WhitenessUtilsBenchmark";
+
+    private static final int[] PHOTO_SIZES = {96, 256, 480, 720, 1080};
+    private static final int WARMUP_ITERATIONS = 20;
+    private static final int MEASURED_ITERATIONS = 100;
+
+    public void testWhiteTop() {
+        assertBothImplementations(true, createBitmap(256, Color.WHITE, Color.BLACK));
+    }
+
+    public void testWhiteBottom() {
+        assertBothImplementations(true, createBitmap(256, Color.BLACK, Color.WHITE));
+    }
+
+    public void testDark() {
+        assertBothImplementations(false, createBitmap(256, Color.DKGRAY, Color.BLUE));
+    }
+
+    public void testNonSquare() {
+        final Bitmap bitmap = Bitmap.createBitmap(300, 120, Bitmap.Config.ARGB_8888);
+        bitmap.eraseColor(Color.RED);
+        assertBothImplementations(false, bitmap);
+        bitmap.eraseColor(Color.WHITE);
+        assertBothImplementations(true, bitmap);
+    }
+
+    public void testBenchmark() {
+        for (int size : PHOTO_SIZES) {
+            final Bitmap bitmap = createBitmap(size, Color.DKGRAY, Color.DKGRAY);
+            final long legacyNanos = measure(bitmap, /* legacy = */ true);
+            final long currentNanos = measure(bitmap, /* legacy = */ false);
+            Log.i(TAG, size + "x" + size + ": legacy=" + legacyNanos / 1000 + "us/op current="
+                    + currentNanos / 1000 + "us/op");
+            bitmap.recycle();
+        }
+    }
+
+    private static long measure(Bitmap bitmap, boolean legacy) {
+        boolean sink = false;
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            sink ^= run(bitmap, legacy);
+        }
+        final long start = System.nanoTime();
+        for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+            sink ^= run(bitmap, legacy);
+        }
+        final long elapsed = System.nanoTime() - start;
+        // Keep the results alive so that the calls can't be optimized away.
+        assertFalse(sink && elapsed < 0);
+        return elapsed / MEASURED_ITERATIONS;
+    }
+
+    private static boolean run(Bitmap bitmap, boolean legacy) {
+        return legacy ? legacyIsBitmapWhiteAtTopOrBottom(bitmap)
+                : WhitenessUtils.isBitmapWhiteAtTopOrBottom(bitmap);
+    }
+
+    private static void assertBothImplementations(boolean expected, Bitmap bitmap) {
+        assertEquals(expected, legacyIsBitmapWhiteAtTopOrBottom(bitmap));
+        assertEquals(expected, WhitenessUtils.isBitmapWhiteAtTopOrBottom(bitmap));
+    }
+
+    /**
+     * Creates a square bitmap whose top half is {@param topColor} and whose bottom half is
+     * {@param bottomColor}.
+     */
+    private static Bitmap createBitmap(int size, int topColor, int bottomColor) {
+        final int[] pixels = new int[size * size];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = i < pixels.length / 2 ? topColor : bottomColor;
+        }
+        return Bitmap.createBitmap(pixels, size, size, Bitmap.Config.ARGB_8888);
+    }
+
+    /**
+     * The implementation of {@link WhitenessUtils#isBitmapWhiteAtTopOrBottom} before it sampled
+     * rows directly from the bitmap.
+     */
+    private static boolean legacyIsBitmapWhiteAtTopOrBottom(Bitmap largeBitmap) {
+        final Bitmap smallBitmap = legacyScaleBitmapDown(largeBitmap);
+
+        final int[] rgbPixels = new int[smallBitmap.getWidth() * smallBitmap.getHeight()];
+        smallBitmap.getPixels(rgbPixels, 0, smallBitmap.getWidth(), 0, 0,
+                smallBitmap.getWidth(), smallBitmap.getHeight());
+
+        int whiteCount = 0;
+        for (int y = 0; y < smallBitmap.getHeight() * 0.2f; y++) {
+            for (int x = (int) (smallBitmap.getWidth() * (1 - 0.33f));
+                    x < smallBitmap.getWidth(); x++) {
+                if (legacyIsWhite(rgbPixels[y * smallBitmap.getWidth() + x])) {
+                    whiteCount++;
+                }
+            }
+        }
+        int totalPixels = (int) (smallBitmap.getHeight() * smallBitmap.getWidth()
+                * 0.33f * 0.2f);
+        if (whiteCount / (float) totalPixels > 0.1f) {
+            return true;
+        }
+
+        whiteCount = 0;
+        for (int y = (int) (smallBitmap.getHeight() * (1 - 0.2f));
+                y < smallBitmap.getHeight(); y++) {
+            for (int x = 0; x < smallBitmap.getWidth(); x++) {
+                if (legacyIsWhite(rgbPixels[y * smallBitmap.getWidth() + x])) {
+                    whiteCount++;
+                }
+            }
+        }
+        totalPixels = (int) (smallBitmap.getHeight() * smallBitmap.getWidth() * 0.2f);
+        return whiteCount / (float) totalPixels > 0.1f;
+    }
+
+    private static boolean legacyIsWhite(int rgb) {
+        return (0.2126f * Color.red(rgb) + 0.7152f * Color.green(rgb)
+                + 0.0722f * Color.blue(rgb)) / 255f > 0.90f;
+    }
+
+    private static Bitmap legacyScaleBitmapDown(Bitmap bitmap) {
+        final int minDimension = Math.min(bitmap.getWidth(), bitmap.getHeight());
+        if (minDimension <= 100) {
+            return bitmap;
+        }
+        final float scaleRatio = 100 / (float) minDimension;
+        return Bitmap.createScaledBitmap(bitmap,
+                Math.round(bitmap.getWidth() * scaleRatio),
+                Math.round(bitmap.getHeight() * scaleRatio),
+                false);
+    }
+}
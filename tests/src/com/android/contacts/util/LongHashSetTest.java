@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.util;
+
+import android.test.MoreAsserts;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+
+/**
+ * Test case for {@link LongHashSet}.
+ */
+@SmallTest
+public class LongHashSetTest extends TestCase {
+    /** Capacity of a set created with the default constructor. */
+    private static final int DEFAULT_CAPACITY = 16;
+
+    private LongHashSet mSet;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mSet = new LongHashSet();
+        assertEquals(DEFAULT_CAPACITY, mSet.getCapacity());
+    }
+
+    public void testEmpty() {
+        assertEquals(0, mSet.size());
+        assertTrue(mSet.isEmpty());
+        assertFalse(mSet.contains(0));
+        assertFalse(mSet.remove(0));
+        assertEquals(0, mSet.toArray().length);
+    }
+
+    public void testAddContainsRemove() {
+        assertTrue(mSet.add(10));
+        assertTrue(mSet.add(11));
+        assertFalse(mSet.add(10));
+        assertEquals(2, mSet.size());
+        assertTrue(mSet.contains(10));
+        assertTrue(mSet.contains(11));
+        assertFalse(mSet.contains(12));
+
+        assertTrue(mSet.remove(10));
+        assertFalse(mSet.remove(10));
+        assertFalse(mSet.contains(10));
+        assertTrue(mSet.contains(11));
+        assertEquals(1, mSet.size());
+    }
+
+    public void testCollidingKeys() {
+        final long[] keys = findKeysWithHomeSlot(3, 4);
+        for (long key : keys) {
+            assertTrue(mSet.add(key));
+        }
+        for (long key : keys) {
+            assertFalse(mSet.add(key));
+            assertTrue(mSet.contains(key));
+        }
+        assertEquals(keys.length, mSet.size());
+        for (long key : keys) {
+            assertTrue(mSet.remove(key));
+            assertFalse(mSet.contains(key));
+        }
+        assertTrue(mSet.isEmpty());
+    }
+
+    public void testRemoveInMiddleOfProbeChain() {
+        // a, b and c share slot 2 and end up in slots 2, 3 and 4. d belongs to slot 3, so it
+        // is pushed to slot 5 and must not be shifted before its home slot.
+        final long[] slot2 = findKeysWithHomeSlot(2, 3);
+        final long d = findKeysWithHomeSlot(3, 1)[0];
+        mSet.addAll(slot2);
+        mSet.add(d);
+
+        assertTrue(mSet.remove(slot2[1]));
+        assertTrue(mSet.contains(slot2[0]));
+        assertFalse(mSet.contains(slot2[1]));
+        assertTrue(mSet.contains(slot2[2]));
+        assertTrue(mSet.contains(d));
+
+        assertTrue(mSet.remove(slot2[0]));
+        assertTrue(mSet.contains(slot2[2]));
+        assertTrue(mSet.contains(d));
+        assertEquals(2, mSet.size());
+
+        // The slots freed by the shifts can be reused.
+        assertTrue(mSet.add(slot2[0]));
+        assertTrue(mSet.add(slot2[1]));
+        assertEquals(4, mSet.size());
+        assertSameElements(new long[] { slot2[0], slot2[1], slot2[2], d }, mSet.toArray());
+    }
+
+    public void testRemoveInProbeChainWrappingAround() {
+        // The chain of the last slot continues at the start of the table.
+        final long[] lastSlot = findKeysWithHomeSlot(DEFAULT_CAPACITY - 1, 3);
+        final long first = findKeysWithHomeSlot(0, 1)[0];
+        mSet.addAll(lastSlot);
+        mSet.add(first);
+
+        assertTrue(mSet.remove(lastSlot[0]));
+        assertTrue(mSet.contains(lastSlot[1]));
+        assertTrue(mSet.contains(lastSlot[2]));
+        assertTrue(mSet.contains(first));
+
+        assertTrue(mSet.remove(lastSlot[2]));
+        assertTrue(mSet.contains(lastSlot[1]));
+        assertTrue(mSet.contains(first));
+        assertEquals(2, mSet.size());
+    }
+
+    public void testGrowth() {
+        // The table is grown once it is more than three quarters full.
+        final int maxSizeBeforeGrowth = DEFAULT_CAPACITY * 3 / 4;
+        for (int i = 0; i < maxSizeBeforeGrowth; i++) {
+            mSet.add(i * 100);
+        }
+        assertEquals(DEFAULT_CAPACITY, mSet.getCapacity());
+        mSet.add(maxSizeBeforeGrowth * 100);
+        assertEquals(DEFAULT_CAPACITY * 2, mSet.getCapacity());
+
+        for (int i = maxSizeBeforeGrowth + 1; i < 1000; i++) {
+            assertTrue(mSet.add(i * 100));
+        }
+        assertEquals(1000, mSet.size());
+        assertTrue(mSet.getCapacity() * 3 >= mSet.size() * 4);
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(mSet.contains(i * 100));
+            assertFalse(mSet.contains(i * 100 + 1));
+        }
+        for (int i = 0; i < 1000; i += 2) {
+            assertTrue(mSet.remove(i * 100));
+        }
+        assertEquals(500, mSet.size());
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(i % 2 == 1, mSet.contains(i * 100));
+        }
+    }
+
+    public void testExpectedSize() {
+        final LongHashSet set = new LongHashSet(100);
+        final int capacity = set.getCapacity();
+        for (int i = 0; i < 100; i++) {
+            set.add(i);
+        }
+        assertEquals(capacity, set.getCapacity());
+    }
+
+    public void testToArrayAddAllClear() {
+        mSet.addAll(new long[] { 5, 3, 5, 9 });
+        mSet.addAll(null);
+        assertEquals(3, mSet.size());
+        assertSameElements(new long[] { 3, 5, 9 }, mSet.toArray());
+
+        mSet.clear();
+        assertTrue(mSet.isEmpty());
+        assertFalse(mSet.contains(5));
+        assertEquals(0, mSet.toArray().length);
+
+        assertTrue(mSet.add(5));
+        assertSameElements(new long[] { 5 }, mSet.toArray());
+    }
+
+    public void testZeroAndNegativeKeys() {
+        // 0 is also the value of the unused slots, it must still be a regular key.
+        assertFalse(mSet.contains(0));
+        assertTrue(mSet.add(0));
+        assertTrue(mSet.add(-1));
+        assertTrue(mSet.add(Long.MIN_VALUE));
+        assertTrue(mSet.add(Long.MAX_VALUE));
+        assertFalse(mSet.add(0));
+        assertEquals(4, mSet.size());
+        assertTrue(mSet.contains(0));
+        assertTrue(mSet.contains(-1));
+        assertTrue(mSet.contains(Long.MIN_VALUE));
+        assertTrue(mSet.contains(Long.MAX_VALUE));
+        assertFalse(mSet.contains(1));
+        assertSameElements(new long[] { Long.MIN_VALUE, -1, 0, Long.MAX_VALUE },
+                mSet.toArray());
+
+        assertTrue(mSet.remove(0));
+        assertFalse(mSet.contains(0));
+        assertTrue(mSet.contains(-1));
+        assertTrue(mSet.remove(Long.MIN_VALUE));
+        assertEquals(2, mSet.size());
+    }
+
+    /**
+     * Returns {@param count} distinct keys whose home slot in a table of the default capacity
+     * is {@param slot}.
+     */
+    private static long[] findKeysWithHomeSlot(int slot, int count) {
+        final long[] keys = new long[count];
+        int found = 0;
+        for (long key = 1; found < count; key++) {
+            if ((LongHashSet.hash(key) & (DEFAULT_CAPACITY - 1)) == slot) {
+                keys[found++] = key;
+            }
+        }
+        return keys;
+    }
+
+    private static void assertSameElements(long[] expected, long[] actual) {
+        final long[] sorted = actual.clone();
+        Arrays.sort(sorted);
+        final long[] sortedExpected = expected.clone();
+        Arrays.sort(sortedExpected);
+        MoreAsserts.assertEquals(sortedExpected, sorted);
+    }
+}
@@ -18,6 +18,8 @@ package com.android.contacts.widget;
 import android.content.Context;
 import android.database.DataSetObserver;
 import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.ArrayAdapter;
@@ -33,6 +35,7 @@ import java.util.List;
  * Tests for {@link CompositeListAdapter}.
  */
 public class CompositeListAdapterTest extends AndroidTestCase {
+    private static final String TAG = "CompositeListAdapterTest";
 
     private final class MockAdapter extends ArrayAdapter<String> {
         boolean allItemsEnabled = true;
@@ -321,4 +324,96 @@ public class CompositeListAdapterTest extends AndroidTestCase {
         assertTrue(adapter.isEnabled(3));
         assertFalse(adapter.isEnabled(4));
     }
+
+    public void testManyPartitions() {
+        CompositeListAdapter adapter = new CompositeListAdapter();
+        List<MockAdapter> partitions = createPartitions(adapter, 60);
+
+        // Every third partition is empty, the others hold "<partition>:<index>" items.
+        int position = 0;
+        for (int i = 0; i < partitions.size(); i++) {
+            for (int j = 0; j < partitions.get(i).getCount(); j++) {
+                assertEquals(i + ":" + j, adapter.getItem(position));
+                assertEquals(j, adapter.getItemId(position));
+                position++;
+            }
+        }
+        assertEquals(position, adapter.getCount());
+
+        // Changing one partition shifts the positions of the following ones only.
+        addItem(partitions.get(30), "30:x");
+        assertEquals(position + 1, adapter.getCount());
+        int start = 0;
+        for (int i = 0; i < 30; i++) {
+            start += partitions.get(i).getCount();
+        }
+        assertEquals("30:x", adapter.getItem(start + partitions.get(30).getCount() - 1));
+        assertEquals("31:0", adapter.getItem(start + partitions.get(30).getCount()));
+        assertEquals("59:4", adapter.getItem(position));
+    }
+
+    public void testGetItemOutOfBounds() {
+        CompositeListAdapter adapter = new CompositeListAdapter();
+        adapter.addAdapter(mAdapter1);
+        adapter.addAdapter(mAdapter2);
+
+        try {
+            adapter.getItem(2);
+            fail();
+        } catch (ArrayIndexOutOfBoundsException expected) {
+        }
+        try {
+            adapter.getItem(-1);
+            fail();
+        } catch (ArrayIndexOutOfBoundsException expected) {
+        }
+    }
+
+    /**
+     * Measures the position lookups a list does while scrolling through 64 partitions, with
+     * one partition changing now and then. Logs the average cost of a lookup.
+     */
+    @LargeTest
+    public void testManyPartitionsBenchmark() {
+        final int partitionCount = 64;
+        final int iterations = 50;
+        CompositeListAdapter adapter = new CompositeListAdapter();
+        List<MockAdapter> partitions = createPartitions(adapter, partitionCount);
+
+        int lookups = 0;
+        final long start = System.nanoTime();
+        for (int iteration = 0; iteration < iterations; iteration++) {
+            addItem(partitions.get(iteration % partitionCount), "changed");
+            final int count = adapter.getCount();
+            for (int position = 0; position < count; position++) {
+                adapter.getItem(position);
+                adapter.getItemViewType(position);
+                adapter.isEnabled(position);
+                lookups += 3;
+            }
+        }
+        final long elapsed = System.nanoTime() - start;
+        Log.i(TAG, partitionCount + " partitions: " + (elapsed / lookups) + "ns per lookup");
+    }
+
+    private void addItem(MockAdapter partition, String item) {
+        partition.viewTypes.put(partition.getCount(), 0);
+        partition.add(item);
+    }
+
+    private List<MockAdapter> createPartitions(CompositeListAdapter adapter, int count) {
+        List<MockAdapter> partitions = new ArrayList<MockAdapter>(count);
+        for (int i = 0; i < count; i++) {
+            List<String> items = new ArrayList<String>();
+            if (i % 3 != 0) {
+                for (int j = 0; j < i % 5 + 1; j++) {
+                    items.add(i + ":" + j);
+                }
+            }
+            MockAdapter partition = new MockAdapter(getContext(), items);
+            partitions.add(partition);
+            adapter.addAdapter(partition);
+        }
+        return partitions;
+    }
 }